@@ -0,0 +1,193 @@
+package com.company.bench;
+
+import com.company.LogThread;
+import com.company.POP3Defines;
+import com.company.POP3Session;
+import com.company.ResponseWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Общие средства наборов JMH: доступ к фикстурам {@code Users/} и создание
+ * сессий, ответы которых отбрасываются.
+ * <p>Сервер ищет почтовые ящики в директории {@code USERS_DIRECTORY}
+ * относительно рабочей директории, поэтому наборы запускаются из
+ * директории {@code bench/fixtures}, содержащей ящик {@value #USER}
+ * с письмами {@value #SMALL}, {@value #MULTIPART} и {@value #ATTACHMENTS}.
+ * Большие ящики не хранятся в репозитории, а создаются при первом запуске
+ * копированием письма {@value #SMALL} (см. {@link #maildrop(int, int)}).
+ * <p>Почтовый ящик блокируется на время сессии, поэтому при запуске набора
+ * в нескольких потоках ({@code -t}) каждый поток JMH входит в свою копию
+ * ящика (см. {@link #user(int)}), а сессия закрывается в методе
+ * {@code @TearDown} набора.
+ */
+public final class BenchFixtures implements POP3Defines {
+    /**
+     * Пользователь с фикстурами писем.
+     */
+    public static final String USER = "bench";
+    /**
+     * Пароль пользователя {@value #USER}.
+     */
+    public static final String PASSWORD = "bench";
+    /**
+     * Короткое текстовое письмо.
+     */
+    public static final String SMALL = "small";
+    /**
+     * Письмо с вложенными частями multipart/mixed и multipart/alternative.
+     */
+    public static final String MULTIPART = "multipart";
+    /**
+     * Письмо с несколькими вложениями, одно из которых больше порога
+     * чтения вложений в память.
+     */
+    public static final String ATTACHMENTS = "attachments";
+
+    private BenchFixtures() {
+    }
+
+    /**
+     * Возвращает директорию пользователя.
+     *
+     * @param user имя пользователя
+     * @return директория пользователя
+     * @throws IllegalStateException если директория не найдена
+     */
+    public static File userHome(String user) {
+        File home = new File(USERS_DIRECTORY, user);
+        if (!home.isDirectory())
+            throw new IllegalStateException("Fixture " + home.getAbsolutePath()
+                    + " not found, run benchmarks from the bench/fixtures directory");
+        return home;
+    }
+
+    /**
+     * Возвращает директорию письма пользователя {@value #USER}.
+     *
+     * @param letter имя письма
+     * @return директория письма
+     */
+    public static File letter(String letter) {
+        return new File(userHome(USER), letter);
+    }
+
+    /**
+     * Возвращает имя пользователя с фикстурами писем для потока JMH с
+     * заданным номером. Поток с номером {@code 0} использует ящик
+     * {@value #USER}, остальные - его копии без подготовленных файлов
+     * писем. Если копии нет, то она создаётся.
+     *
+     * @param thread номер потока JMH
+     * @return имя пользователя с паролем {@value #PASSWORD}
+     * @throws IOException если копию ящика не удалось создать
+     */
+    public static String user(int thread) throws IOException {
+        if (thread == 0)
+            return USER;
+        String user = "generated-" + USER + "-t" + thread;
+        File home = new File(USERS_DIRECTORY, user);
+        File done = new File(home, PASS_FILE);
+        if (done.isFile())
+            return user;
+        for (String letter : new String[]{SMALL, MULTIPART, ATTACHMENTS}) {
+            File dir = new File(home, letter);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            File[] files = letter(letter).listFiles();
+            if (files == null)
+                throw new IOException("Cannot list " + letter(letter));
+            for (File file : files) {
+                if (file.getName().equals(RENDERED_FILE) || file.getName().equals(MANIFEST_FILE))
+                    continue;
+                Files.copy(file.toPath(), new File(dir, file.getName()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.write(done.toPath(), PASSWORD.getBytes(StandardCharsets.US_ASCII));
+        return user;
+    }
+
+    /**
+     * Возвращает имя пользователя, ящик которого содержит заданное
+     * количество копий письма {@value #SMALL} с разными уникальными
+     * идентификаторами. У каждого потока JMH свой ящик. Если ящика нет, то
+     * он создаётся.
+     *
+     * @param letters количество писем
+     * @param thread  номер потока JMH
+     * @return имя пользователя с паролем {@value #PASSWORD}
+     * @throws IOException если ящик не удалось создать
+     */
+    public static String maildrop(int letters, int thread) throws IOException {
+        String user = "generated-" + letters + (thread == 0 ? "" : "-t" + thread);
+        File home = new File(USERS_DIRECTORY, user);
+        File done = new File(home, PASS_FILE);
+        if (done.isFile())
+            return user;
+        File template = letter(SMALL);
+        String header = new String(Files.readAllBytes(new File(template, "header.json").toPath()),
+                StandardCharsets.UTF_8);
+        for (int i = 0; i < letters; i++) {
+            File dir = new File(home, String.format("m%06d", i));
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            for (String name : new String[]{"parts.json", "body.txt"})
+                Files.copy(new File(template, name).toPath(), new File(dir, name).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            Files.write(new File(dir, "header.json").toPath(), header.replace("bench-small", user + "-" + i)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(done.toPath(), PASSWORD.getBytes(StandardCharsets.US_ASCII));
+        return user;
+    }
+
+    /**
+     * Создаёт поток логирования, отбрасывающий все сообщения ниже
+     * уровня предупреждений. Поток не запускается.
+     *
+     * @return поток логирования
+     */
+    public static LogThread quietLog() {
+        return new LogThread(LogThread.LEVEL_WARN, LogThread.OVERFLOW_DROP, false);
+    }
+
+    /**
+     * Создаёт буферизованный поток ответов, отбрасывающий данные.
+     *
+     * @return поток ответов
+     */
+    public static ResponseWriter discardingWriter() {
+        return new ResponseWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    /**
+     * Создаёт сессию и выполняет вход пользователя.
+     *
+     * @param user     имя пользователя
+     * @param password пароль
+     * @param out      поток ответов
+     * @return сессия в состоянии {@code POP3_STATE_TRANSACTION}
+     * @throws IllegalStateException если вход не удался
+     */
+    public static POP3Session login(String user, String password, ResponseWriter out) {
+        POP3Session session = new POP3Session(out, quietLog(), 0);
+        session.processSession("USER " + user);
+        if (session.processSession("PASS " + password) != POP3_DEFAULT_AFFIRMATIVE_RESPONSE)
+            throw new IllegalStateException("Cannot log in as " + user);
+        return session;
+    }
+}
@@ -0,0 +1,63 @@
+package com.company.bench;
+
+import com.company.POP3Session;
+import com.company.ResponseWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время разбора и выполнения коротких команд
+ * {@link POP3Session#processSession(byte[], int, int)} в открытой сессии.
+ * Команда передаётся байтами, как её получает соединение, а ответы
+ * отбрасываются, поэтому измеряется разбор команды, выбор обработчика и
+ * формирование ответа. Наряду с обычными командами измеряются команда в
+ * нижнем регистре и неправильные строки.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDispatchBenchmark {
+    @Param({"NOOP", "STAT", "LAST", "CAPA", "LIST 2", "UIDL 2", "noop", "XYZ", "RETR x"})
+    public String command;
+
+    private byte[] line;
+    private ResponseWriter out;
+    private POP3Session session;
+
+    @Setup
+    public void setUp(ThreadParams thread) throws IOException {
+        line = command.getBytes(StandardCharsets.US_ASCII);
+        out = BenchFixtures.discardingWriter();
+        session = BenchFixtures.login(BenchFixtures.user(thread.getThreadIndex()), BenchFixtures.PASSWORD, out);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public int dispatch() throws IOException {
+        int status = session.processSession(line, 0, line.length);
+        out.flush();
+        return status;
+    }
+}
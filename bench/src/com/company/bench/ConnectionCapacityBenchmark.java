@@ -0,0 +1,283 @@
+package com.company.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Сравнивает количество одновременных соединений, которое выдерживает
+ * сервер в разных режимах обслуживания клиентов.
+ * <p>Для каждого режима запускается отдельный процесс сервера, после чего
+ * открывается заданное количество соединений, каждое из которых ожидает
+ * приветствия сервера и остаётся открытым. Когда все соединения открыты,
+ * каждому клиенту отправляется команда {@code NOOP}, чтобы убедиться, что
+ * сервер продолжает отвечать. Клиентская сторона использует один
+ * {@link Selector}, поэтому сама не ограничена количеством потоков.
+ * Ограничение количества сессий сервера устанавливается выше числа
+ * открываемых соединений, чтобы измерялся сам режим, а не контроль допуска.
+ * <p>Параметры задаются в виде {@code --имя=значение}:
+ * <ul>
+ * <li>{@code --modes} - режимы через запятую (по-умолчанию {@code thread,virtual,nio});
+ * <li>{@code --connections} - количество соединений (по-умолчанию 2000);
+ * <li>{@code --port} - порт сервера (по-умолчанию 11110);
+ * <li>{@code --timeout} - время ожидания каждой фазы в секундах (по-умолчанию 60);
+ * <li>{@code --server-opts} - дополнительные параметры JVM сервера через пробел,
+ * например {@code -Xmx256m}.
+ * </ul>
+ * Режим {@code virtual} требует запуска на Java 21 или новее.
+ */
+public class ConnectionCapacityBenchmark {
+    /**
+     * Команда, отправляемая каждому клиенту после открытия всех соединений.
+     */
+    private static final byte[] NOOP = "NOOP\r\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Количество одновременно устанавливаемых соединений. Открытие всех
+     * соединений разом переполняет очередь приёма сервера, и время
+     * измерения определяется повторными попытками TCP, а не сервером.
+     */
+    private static final int CONNECT_BATCH = 50;
+
+    /**
+     * Результат измерения для одного режима.
+     */
+    private static class Result {
+        String mode;
+        int welcomed;
+        int failed;
+        long connectMillis;
+        int noopAnswered;
+        long noopMillis;
+    }
+
+    /**
+     * Состояние одного клиентского соединения.
+     */
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        int linesExpected = 1;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modes = "thread,virtual,nio";
+        int connections = 2000;
+        int port = 11110;
+        int timeout = 60;
+        String serverOpts = "";
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--modes": modes = value; break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--timeout": timeout = Integer.parseInt(value); break;
+                case "--server-opts": serverOpts = value; break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        List<Result> results = new ArrayList<>();
+        for (String mode : modes.split(","))
+            results.add(measure(mode.trim(), connections, port, timeout * 1000L, serverOpts));
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %8s %12s %10s %12s%n",
+                "mode", "requested", "welcomed", "failed", "connect ms", "noop ok", "noop ms");
+        for (Result r : results)
+            System.out.printf("%-8s %10d %10d %8d %12d %10d %12d%n",
+                    r.mode, connections, r.welcomed, r.failed, r.connectMillis, r.noopAnswered, r.noopMillis);
+    }
+
+    /**
+     * Запускает сервер в заданном режиме и измеряет количество
+     * обслуживаемых им соединений.
+     *
+     * @param mode        режим работы сервера
+     * @param connections количество открываемых соединений
+     * @param port        порт сервера
+     * @param timeout     время ожидания каждой фазы в миллисекундах
+     * @param serverOpts  дополнительные параметры JVM сервера
+     * @return результат измерения
+     */
+    private static Result measure(String mode, int connections, int port, long timeout, String serverOpts) throws Exception {
+        Result result = new Result();
+        result.mode = mode;
+        File workDir = Files.createTempDirectory("capacity-" + mode).toFile();
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String opt : serverOpts.split(" "))
+            if (!opt.isEmpty())
+                command.add(opt);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("com.company.Main");
+        command.add("--mode=" + mode);
+        command.add("--port=" + port);
+        command.add("--max-sessions=" + (connections + 1));
+        Process server = new ProcessBuilder(command).directory(workDir)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(workDir, "server.out"))
+                .start();
+        System.out.println("[" + mode + "] server started in " + workDir);
+        List<Client> clients = new ArrayList<>();
+        try (Selector selector = Selector.open()) {
+            if (!waitForPort(port, timeout)) {
+                System.out.println("[" + mode + "] server did not start, see " + workDir + File.separator + "server.out");
+                result.failed = connections;
+                return result;
+            }
+            long start = System.nanoTime();
+            for (int opened = 0; opened < connections; ) {
+                int batch = Math.min(CONNECT_BATCH, connections - opened);
+                int registered = 0;
+                for (int i = 0; i < batch; i++) {
+                    try {
+                        SocketChannel channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        channel.connect(new InetSocketAddress("127.0.0.1", port));
+                        Client client = new Client(channel);
+                        clients.add(client);
+                        channel.register(selector, SelectionKey.OP_CONNECT, client);
+                        registered++;
+                    } catch (IOException e) {
+                        result.failed++;
+                    }
+                }
+                opened += batch;
+                int[] outcome = awaitLines(selector, registered, timeout);
+                result.welcomed += outcome[0];
+                result.failed += outcome[1];
+                if (outcome[0] == 0)
+                    break;
+            }
+            result.connectMillis = (System.nanoTime() - start) / 1000000;
+            System.out.println("[" + mode + "] " + result.welcomed + " clients welcomed");
+
+            start = System.nanoTime();
+            int sent = 0;
+            for (Client client : clients) {
+                SelectionKey key = client.channel.keyFor(selector);
+                if (key == null || !key.isValid() || !client.channel.isConnected())
+                    continue;
+                try {
+                    client.channel.write(ByteBuffer.wrap(NOOP));
+                    client.linesExpected++;
+                    key.interestOps(SelectionKey.OP_READ);
+                    sent++;
+                } catch (IOException e) {
+                    key.cancel();
+                }
+            }
+            result.noopAnswered = awaitLines(selector, sent, timeout)[0];
+            result.noopMillis = (System.nanoTime() - start) / 1000000;
+        } finally {
+            for (Client client : clients) {
+                try {
+                    client.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            server.destroy();
+            server.waitFor();
+        }
+        return result;
+    }
+
+    /**
+     * Обрабатывает события соединений, пока заданное количество клиентов
+     * не получит очередную строку ответа или не истечёт время ожидания.
+     *
+     * @param selector селектор клиентских соединений
+     * @param expected ожидаемое количество ответов
+     * @param timeout  время ожидания в миллисекундах
+     * @return количество полученных ответов и количество ошибок
+     */
+    private static int[] awaitLines(Selector selector, int expected, long timeout) throws IOException {
+        int answered = 0;
+        int failed = 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        while (answered + failed < expected) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                break;
+            selector.select(left);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        client.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else if (key.isReadable()) {
+                        if (client.channel.read(client.buffer) < 0)
+                            throw new IOException("closed by server");
+                        if (countLines(client.buffer) >= client.linesExpected) {
+                            answered++;
+                            key.interestOps(0);
+                        }
+                    }
+                } catch (IOException e) {
+                    failed++;
+                    key.cancel();
+                    client.channel.close();
+                }
+            }
+        }
+        return new int[]{answered, failed};
+    }
+
+    /**
+     * Подсчитывает количество полных строк, полученных клиентом.
+     *
+     * @param buffer буфер клиента
+     * @return количество символов перевода строки в буфере
+     */
+    private static int countLines(ByteBuffer buffer) {
+        int lines = 0;
+        for (int i = 0; i < buffer.position(); i++)
+            if (buffer.get(i) == '\n')
+                lines++;
+        if (!buffer.hasRemaining())
+            buffer.clear();
+        return lines;
+    }
+
+    /**
+     * Ожидает, пока сервер начнёт принимать соединения. Пробное соединение
+     * дожидается приветствия и корректно завершает сессию командой {@code QUIT}.
+     *
+     * @param port    порт сервера
+     * @param timeout время ожидания в миллисекундах
+     * @return {@code true}, если сервер доступен
+     */
+    private static boolean waitForPort(int port, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.getInputStream().read();
+                probe.getOutputStream().write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,580 @@
+package com.company.bench;
+
+import com.company.POP3Defines;
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Генератор почтовых ящиков для измерений: создаёт директорию
+ * {@code Users} с заданным количеством пользователей и писем в том же
+ * формате, который читает сервер, - файл {@value POP3Defines#PASS_FILE},
+ * директории писем с файлами {@code parts.json}, {@code header.json} и
+ * файлами частей.
+ * <p>Содержимое определяется только параметрами и начальным значением
+ * генератора случайных чисел: при одинаковых параметрах создаются
+ * одинаковые файлы, поэтому результаты измерений на разных машинах и в
+ * разных запусках можно сравнивать. Каждый пользователь получает
+ * собственный генератор, так что ящик пользователя не зависит от
+ * количества остальных пользователей.
+ * <p>Размеры текстов и вложений распределены логнормально вокруг
+ * заданных медиан. Глубина вложенности частей письма выбирается
+ * равномерно от нуля до {@code --depth}: на первом уровне текст
+ * дополняется версией HTML ({@code multipart/alternative}), на следующих
+ * оборачивается в {@code multipart/mixed} с цитируемым текстом. Письма с
+ * вложениями оборачиваются в {@code multipart/mixed} с одним или
+ * несколькими двоичными файлами. Кодировка текста каждого письма
+ * выбирается из списка {@code --charsets}, слова текста - из словаря,
+ * символы которого представимы в этой кодировке.
+ * <p>Параметры задаются в виде {@code --имя=значение}:
+ * <ul>
+ * <li>{@code --output} - директория, в которой создаётся {@code Users}
+ * (по-умолчанию текущая);
+ * <li>{@code --users} - количество пользователей (по-умолчанию 10);
+ * <li>{@code --prefix} - префикс имён пользователей (по-умолчанию {@code user});
+ * <li>{@code --password} - пароль всех пользователей (по-умолчанию {@code bench});
+ * <li>{@code --messages} - количество писем в ящике (по-умолчанию 100);
+ * <li>{@code --text-size} - медиана размера текста в байтах (по-умолчанию 2048);
+ * <li>{@code --attachment-size} - медиана размера вложения в байтах (по-умолчанию 65536);
+ * <li>{@code --size-sigma} - стандартное отклонение логарифма размера (по-умолчанию 1.0);
+ * <li>{@code --max-size} - максимальный размер одной части в байтах (по-умолчанию 8388608);
+ * <li>{@code --depth} - максимальная глубина вложенности частей (по-умолчанию 2);
+ * <li>{@code --charsets} - кодировки текста через запятую
+ * (по-умолчанию {@code UTF-8,KOI8-R,windows-1251,ISO-8859-1});
+ * <li>{@code --attachment-ratio} - доля писем с вложениями от 0 до 1 (по-умолчанию 0.3);
+ * <li>{@code --max-attachments} - максимальное количество вложений в письме (по-умолчанию 3);
+ * <li>{@code --seed} - начальное значение генератора случайных чисел (по-умолчанию 1).
+ * </ul>
+ * Существующие ящики не перезаписываются: если директория пользователя
+ * уже есть, генерация прерывается.
+ */
+public class CorpusGenerator implements POP3Defines {
+    /**
+     * Имя файла структуры письма.
+     */
+    private static final String PARTS_FILE = "parts.json";
+    /**
+     * Имя файла главного заголовка письма.
+     */
+    private static final String HEADER_FILE = "header.json";
+    /**
+     * Минимальный размер текста или вложения в байтах.
+     */
+    private static final int MIN_SIZE = 64;
+    /**
+     * Длина строки текста, после которой слова переносятся.
+     */
+    private static final int LINE_LENGTH = 72;
+    /**
+     * Дата самого нового письма; даты писем распределены в течение года до неё.
+     */
+    private static final long LATEST_DATE = 1488801600000L;
+    /**
+     * Слова текстов и тем писем.
+     */
+    private static final String[] WORDS = {
+            "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "report", "meeting", "schedule",
+            "budget", "quarter", "release", "server", "mailbox", "message", "attached", "please", "review",
+            "thanks", "regards", "tomorrow", "project", "deadline", "invoice", "draft", "final", "update",
+            "café", "naïve", "façade", "Müller", "Größe", "señor", "déjà", "crème",
+            "отчёт", "встреча", "письмо", "сервер", "проект", "срок", "бюджет", "квартал", "выпуск",
+            "вложение", "пожалуйста", "спасибо", "завтра", "черновик", "счёт", "почта", "ящик", "обновление",
+            "с", "уважением", "и", "в", "на", "по"
+    };
+    /**
+     * Имена отправителей.
+     */
+    private static final String[][] SENDERS = {
+            {"Alice Smith", "alice", "example.com"},
+            {"Bob Jones", "bob", "example.org"},
+            {"Иван Петров", "ivan", "example.ru"},
+            {"Мария Иванова", "maria", "example.ru"},
+            {"François Dupont", "francois", "example.fr"},
+            {"Build Robot", "noreply", "ci.example.com"}
+    };
+    /**
+     * Типы вложений: тип MIME, расширение имени файла на диске и
+     * имя файла в заголовке.
+     */
+    private static final String[][] ATTACHMENT_TYPES = {
+            {"application/pdf", "pdf", "report.pdf"},
+            {"application/octet-stream", "bin", "data.bin"},
+            {"image/png", "png", "diagram.png"},
+            {"image/jpeg", "jpg", "photo.jpg"},
+            {"application/zip", "zip", "archive.zip"},
+            {"application/pdf", "pdf", "отчёт за квартал.pdf"}
+    };
+
+    /**
+     * Директория, в которой создаётся {@code Users}.
+     */
+    private File output = new File(".");
+    /**
+     * Количество пользователей.
+     */
+    private int users = 10;
+    /**
+     * Префикс имён пользователей.
+     */
+    private String prefix = "user";
+    /**
+     * Пароль всех пользователей.
+     */
+    private String password = "bench";
+    /**
+     * Количество писем в ящике.
+     */
+    private int messages = 100;
+    /**
+     * Медиана размера текста в байтах.
+     */
+    private int textSize = 2048;
+    /**
+     * Медиана размера вложения в байтах.
+     */
+    private int attachmentSize = 65536;
+    /**
+     * Стандартное отклонение логарифма размера части.
+     */
+    private double sizeSigma = 1.0;
+    /**
+     * Максимальный размер одной части в байтах.
+     */
+    private int maxSize = 8 * 1024 * 1024;
+    /**
+     * Максимальная глубина вложенности частей.
+     */
+    private int depth = 2;
+    /**
+     * Кодировки текста писем.
+     */
+    private String[] charsets = {"UTF-8", "KOI8-R", "windows-1251", "ISO-8859-1"};
+    /**
+     * Доля писем с вложениями.
+     */
+    private double attachmentRatio = 0.3;
+    /**
+     * Максимальное количество вложений в письме.
+     */
+    private int maxAttachments = 3;
+    /**
+     * Начальное значение генератора случайных чисел.
+     */
+    private long seed = 1;
+
+    /**
+     * Слова словаря, представимые в каждой из кодировок {@link #charsets}.
+     */
+    private final Map<String, String[]> vocabularies = new LinkedHashMap<>();
+    /**
+     * Формат даты в заголовке письма.
+     */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd kk:mm:ss z yyyy", Locale.ENGLISH);
+
+    /**
+     * Количество текстовых частей текущего письма.
+     */
+    private int textParts;
+
+    /**
+     * Количество созданных писем.
+     */
+    private long totalLetters;
+    /**
+     * Количество записанных байтов.
+     */
+    private long totalBytes;
+    /**
+     * Количество созданных вложений.
+     */
+    private long totalAttachments;
+    /**
+     * Количество писем по кодировке текста.
+     */
+    private final Map<String, Integer> charsetLetters = new LinkedHashMap<>();
+    /**
+     * Количество писем по глубине вложенности частей.
+     */
+    private final int[] depthLetters = new int[16];
+
+    /**
+     * Создаёт почтовые ящики с параметрами командной строки.
+     *
+     * @param args параметры в виде {@code --имя=значение}
+     * @throws IOException если не удалось записать файлы
+     */
+    public static void main(String[] args) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    /**
+     * Разбирает параметры командной строки.
+     *
+     * @param args параметры
+     */
+    private void parse(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--output": output = new File(value); break;
+                case "--users": users = Integer.parseInt(value); break;
+                case "--prefix": prefix = value; break;
+                case "--password": password = value; break;
+                case "--messages": messages = Integer.parseInt(value); break;
+                case "--text-size": textSize = Integer.parseInt(value); break;
+                case "--attachment-size": attachmentSize = Integer.parseInt(value); break;
+                case "--size-sigma": sizeSigma = Double.parseDouble(value); break;
+                case "--max-size": maxSize = Integer.parseInt(value); break;
+                case "--depth": depth = Integer.parseInt(value); break;
+                case "--charsets": charsets = value.split(","); break;
+                case "--attachment-ratio": attachmentRatio = Double.parseDouble(value); break;
+                case "--max-attachments": maxAttachments = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (depth < 0 || depth >= depthLetters.length)
+            throw new IllegalArgumentException("Depth must be between 0 and " + (depthLetters.length - 1));
+        if (attachmentRatio < 0 || attachmentRatio > 1)
+            throw new IllegalArgumentException("Attachment ratio must be between 0 and 1");
+        if (maxAttachments < 1)
+            throw new IllegalArgumentException("Max attachments must be positive");
+        for (int i = 0; i < charsets.length; i++) {
+            String charset = Charset.forName(charsets[i].trim()).name();
+            charsets[i] = charset;
+            CharsetEncoder encoder = Charset.forName(charset).newEncoder();
+            List<String> words = new ArrayList<>();
+            for (String word : WORDS)
+                if (encoder.canEncode(word))
+                    words.add(word);
+            vocabularies.put(charset, words.toArray(new String[0]));
+            charsetLetters.put(charset, 0);
+        }
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Создаёт ящики всех пользователей и выводит сводку.
+     *
+     * @throws IOException если не удалось записать файлы
+     */
+    private void run() throws IOException {
+        File usersDir = new File(output, USERS_DIRECTORY);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < users; i++) {
+            String user = String.format("%s%04d", prefix, i);
+            File home = new File(usersDir, user);
+            if (home.exists())
+                throw new IllegalStateException(home.getAbsolutePath() + " already exists, remove it first");
+            generateUser(home, user, new Random(seed * 1000003 + i));
+        }
+        System.out.printf("Generated %d users, %d letters, %d attachments, %.1f MB in %s (%.1f s)%n",
+                users, totalLetters, totalAttachments, totalBytes / 1048576.0, usersDir.getAbsolutePath(),
+                (System.currentTimeMillis() - start) / 1000.0);
+        System.out.printf("%-16s %10s%n", "CHARSET", "LETTERS");
+        for (Map.Entry<String, Integer> e : charsetLetters.entrySet())
+            System.out.printf("%-16s %10d%n", e.getKey(), e.getValue());
+        System.out.printf("%-16s %10s%n", "DEPTH", "LETTERS");
+        for (int d = 0; d <= depth; d++)
+            System.out.printf("%-16d %10d%n", d, depthLetters[d]);
+    }
+
+    /**
+     * Создаёт ящик пользователя. Файл пароля записывается последним,
+     * поэтому прерванная генерация не оставляет ящик, в который можно войти.
+     *
+     * @param home   директория пользователя
+     * @param user   имя пользователя
+     * @param random генератор случайных чисел пользователя
+     * @throws IOException если не удалось записать файлы
+     */
+    private void generateUser(File home, String user, Random random) throws IOException {
+        for (int i = 0; i < messages; i++) {
+            File dir = new File(home, String.format("m%06d", i));
+            if (!dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            generateLetter(dir, user, user + "-" + i, random);
+        }
+        Files.write(new File(home, PASS_FILE).toPath(), password.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Создаёт файлы одного письма.
+     *
+     * @param dir      директория письма
+     * @param user     имя получателя
+     * @param uniqueId уникальный идентификатор письма
+     * @param random   генератор случайных чисел
+     * @throws IOException если не удалось записать файлы
+     */
+    private void generateLetter(File dir, String user, String uniqueId, Random random) throws IOException {
+        textParts = 0;
+        String charset = charsets[random.nextInt(charsets.length)];
+        String[] vocabulary = vocabularies.get(charset);
+        int attachments = random.nextDouble() < attachmentRatio ? 1 + random.nextInt(maxAttachments) : 0;
+        int letterDepth = random.nextInt(depth + 1);
+        if (attachments > 0 && letterDepth == 0)
+            letterDepth = 1;
+        Map<String, Object> root;
+        if (attachments > 0) {
+            List<Object> children = new ArrayList<>();
+            children.add(content(dir, letterDepth - 1, charset, vocabulary, random));
+            for (int i = 0; i < attachments; i++)
+                children.add(attachment(dir, i, random));
+            root = multipart("multipart/mixed", children);
+            totalAttachments += attachments;
+        } else
+            root = content(dir, letterDepth, charset, vocabulary, random);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> header = (Map<String, Object>) root.get("header");
+        header.put("message_header_file", HEADER_FILE);
+        write(new File(dir, PARTS_FILE), JSONValue.toJSONString(root).getBytes(StandardCharsets.UTF_8));
+
+        String[] sender = SENDERS[random.nextInt(SENDERS.length)];
+        Map<String, Object> mainHeader = new LinkedHashMap<>();
+        mainHeader.put("from", Arrays.asList(address(sender[0], sender[1], sender[2])));
+        mainHeader.put("to", Arrays.asList(address(user, user, "example.com")));
+        mainHeader.put("date", dateFormat.format(new Date(LATEST_DATE - (long) (random.nextDouble() * 365 * 86400000L))));
+        mainHeader.put("subject", words(vocabulary, 2 + random.nextInt(6), random));
+        mainHeader.put("message_id", "<" + uniqueId + "@example.com>");
+        mainHeader.put("unique_id", uniqueId);
+        write(new File(dir, HEADER_FILE), JSONValue.toJSONString(mainHeader).getBytes(StandardCharsets.UTF_8));
+
+        totalLetters++;
+        charsetLetters.merge(charset, 1, Integer::sum);
+        depthLetters[letterDepth]++;
+    }
+
+    /**
+     * Создаёт текстовое содержимое письма заданной глубины вложенности:
+     * на глубине 0 - простой текст, на глубине 1 - текст и его версию HTML,
+     * на большей глубине - содержимое меньшей глубины и цитируемый текст.
+     *
+     * @param dir        директория письма
+     * @param depth      глубина вложенности
+     * @param charset    кодировка текста
+     * @param vocabulary слова текста
+     * @param random     генератор случайных чисел
+     * @return описание части
+     * @throws IOException если не удалось записать файлы
+     */
+    private Map<String, Object> content(File dir, int depth, String charset, String[] vocabulary, Random random)
+            throws IOException {
+        if (depth == 0)
+            return text(dir, nextName("txt"), "text/plain", charset,
+                    paragraphs(vocabulary, size(textSize, random), random));
+        if (depth == 1) {
+            String plain = paragraphs(vocabulary, size(textSize, random), random);
+            String html = "<html><head><meta charset=\"" + charset + "\"></head><body>\n<p>"
+                    + plain.replace("&", "&amp;").replace("<", "&lt;").replace("\n\n", "</p>\n<p>")
+                    + "</p>\n</body></html>\n";
+            return multipart("multipart/alternative", Arrays.asList(
+                    text(dir, nextName("txt"), "text/plain", charset, plain),
+                    text(dir, nextName("html"), "text/html", charset, html)));
+        }
+        String quoted = paragraphs(vocabulary, size(textSize, random), random).replaceAll("(?m)^", "> ");
+        return multipart("multipart/mixed", Arrays.asList(
+                content(dir, depth - 1, charset, vocabulary, random),
+                text(dir, nextName("txt"), "text/plain", charset, quoted)));
+    }
+
+    /**
+     * Записывает текстовую часть письма.
+     *
+     * @param dir      директория письма
+     * @param name     имя файла части
+     * @param mimeType тип MIME
+     * @param charset  кодировка
+     * @param text     текст
+     * @return описание части
+     * @throws IOException если не удалось записать файл
+     */
+    private Map<String, Object> text(File dir, String name, String mimeType, String charset, String text)
+            throws IOException {
+        write(new File(dir, name), text.getBytes(charset));
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("charset", charset);
+        return part("8bit", mimeType, false, params, null, name);
+    }
+
+    /**
+     * Возвращает имя файла следующей текстовой части письма.
+     *
+     * @param extension расширение имени файла
+     * @return имя файла
+     */
+    private String nextName(String extension) {
+        return "text" + textParts++ + "." + extension;
+    }
+
+    /**
+     * Записывает двоичное вложение со случайным содержимым.
+     *
+     * @param dir    директория письма
+     * @param index  номер вложения в письме
+     * @param random генератор случайных чисел
+     * @return описание части
+     * @throws IOException если не удалось записать файл
+     */
+    private Map<String, Object> attachment(File dir, int index, Random random) throws IOException {
+        String[] type = ATTACHMENT_TYPES[random.nextInt(ATTACHMENT_TYPES.length)];
+        String name = "attachment" + index + "." + type[1];
+        byte[] data = new byte[size(attachmentSize, random)];
+        random.nextBytes(data);
+        write(new File(dir, name), data);
+        Map<String, Object> disposition = new LinkedHashMap<>();
+        disposition.put("type", "attachment");
+        disposition.put("filename", type[2]);
+        return part("base64", type[0], false, new LinkedHashMap<>(), disposition, name);
+    }
+
+    /**
+     * Создаёт описание составной части.
+     *
+     * @param mimeType тип MIME
+     * @param children вложенные части
+     * @return описание части
+     */
+    private static Map<String, Object> multipart(String mimeType, List<?> children) {
+        return part("7bit", mimeType, true, new LinkedHashMap<>(), null, children);
+    }
+
+    /**
+     * Создаёт описание части в формате {@code parts.json}.
+     *
+     * @param transferEncoding кодирование при передаче
+     * @param mimeType         тип MIME
+     * @param multipart        является ли часть составной
+     * @param params           параметры типа
+     * @param disposition      расположение части или {@code null}
+     * @param body             имя файла или список вложенных частей
+     * @return описание части
+     */
+    private static Map<String, Object> part(String transferEncoding, String mimeType, boolean multipart,
+                                            Map<String, Object> params, Map<String, Object> disposition,
+                                            Object body) {
+        Map<String, Object> contentType = new LinkedHashMap<>();
+        contentType.put("mime_type", mimeType);
+        contentType.put("is_multipart", multipart);
+        contentType.put("params", params);
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("content_transfer_encoding", transferEncoding);
+        header.put("content_type", contentType);
+        if (disposition != null)
+            header.put("content_disposition", disposition);
+        Map<String, Object> part = new LinkedHashMap<>();
+        part.put("header", header);
+        part.put("body", body);
+        return part;
+    }
+
+    /**
+     * Создаёт описание адреса для {@code header.json}.
+     *
+     * @param name      имя владельца адреса
+     * @param localPart локальная часть адреса
+     * @param domain    домен
+     * @return описание адреса
+     */
+    private static Map<String, Object> address(String name, String localPart, String domain) {
+        Map<String, Object> address = new LinkedHashMap<>();
+        address.put("name", name);
+        address.put("local_part", localPart);
+        address.put("domain", domain);
+        return address;
+    }
+
+    /**
+     * Выбирает размер части из логнормального распределения.
+     *
+     * @param median медиана размера
+     * @param random генератор случайных чисел
+     * @return размер в байтах
+     */
+    private int size(int median, Random random) {
+        double size = median * Math.exp(sizeSigma * random.nextGaussian());
+        return (int) Math.max(MIN_SIZE, Math.min(maxSize, size));
+    }
+
+    /**
+     * Составляет текст из абзацев случайных слов, содержащий примерно
+     * заданное количество символов.
+     *
+     * @param vocabulary слова текста
+     * @param length     количество символов
+     * @param random     генератор случайных чисел
+     * @return текст
+     */
+    private static String paragraphs(String[] vocabulary, int length, Random random) {
+        StringBuilder sb = new StringBuilder(length + LINE_LENGTH);
+        int lineStart = 0;
+        int sentence = 0;
+        while (sb.length() < length) {
+            String word = vocabulary[random.nextInt(vocabulary.length)];
+            if (sb.length() > lineStart) {
+                if (sb.length() - lineStart + word.length() >= LINE_LENGTH) {
+                    sb.append('\n');
+                    if (random.nextInt(6) == 0)
+                        sb.append('\n');
+                    lineStart = sb.length();
+                } else
+                    sb.append(' ');
+            }
+            sb.append(sentence == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+            if (++sentence > 4 + random.nextInt(10)) {
+                sb.append('.');
+                sentence = 0;
+            }
+        }
+        return sb.append(".\n").toString();
+    }
+
+    /**
+     * Составляет строку из случайных слов, разделённых пробелами.
+     *
+     * @param vocabulary слова
+     * @param count      количество слов
+     * @param random     генератор случайных чисел
+     * @return строка
+     */
+    private static String words(String[] vocabulary, int count, Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Записывает файл письма и учитывает его размер в сводке.
+     *
+     * @param file файл
+     * @param data содержимое
+     * @throws IOException если не удалось записать файл
+     */
+    private void write(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+        totalBytes += data.length;
+    }
+}
@@ -0,0 +1,46 @@
+package com.company.bench;
+
+import com.company.POP3Defines;
+import com.company.POP3Letter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время вычисления размера письма, которое нет в индексе почтового ящика:
+ * создание {@link POP3Letter} и первый вызов {@link POP3Letter#getSize()},
+ * собирающий письмо и подсчитывающий байты ответа {@code RETR}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LetterSizeBenchmark {
+    @Param({BenchFixtures.SMALL, BenchFixtures.MULTIPART, BenchFixtures.ATTACHMENTS})
+    public String letter;
+
+    private File letterDir;
+
+    @Setup
+    public void setUp() {
+        letterDir = BenchFixtures.letter(letter);
+    }
+
+    @Benchmark
+    public long size() {
+        return new POP3Letter(POP3Defines.POP3_MSG_STATUS_INITIAL, letterDir).getSize();
+    }
+}
@@ -0,0 +1,574 @@
+package com.company.bench;
+
+import com.company.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Генератор нагрузки: открывает заданное количество одновременных
+ * соединений с работающим сервером и выполняет в каждом из них
+ * последовательность сессий POP3.
+ * <p>Каждая сессия входит в ящик командами {@code USER} и {@code PASS},
+ * узнаёт количество писем командой {@code STAT}, затем выполняет заданное
+ * количество команд, выбранных случайно в соответствии с весами смеси, и
+ * завершается командой {@code QUIT}. Если в сессии выполнялась команда
+ * {@code DELE}, то перед {@code QUIT} отправляется {@code RSET}, чтобы
+ * письма не удалялись. Между командами выдерживается случайная пауза со
+ * средним значением {@code --think}; в конвейерном режиме все команды
+ * сессии отправляются одним пакетом. Соединения открываются равномерно в
+ * течение {@code --ramp-up}.
+ * <p>Сервер открывает ящик только одной сессии, поэтому сессия, которой
+ * ответили {@code -ERR [IN-USE]}, не считается ошибкой, а учитывается
+ * отдельно; для нагрузки без таких отказов количество пользователей должно
+ * быть не меньше количества соединений.
+ * <p>По завершении выводятся количество сессий и ошибок, количество
+ * команд и мегабайтов ответов в секунду, перцентили времени соединения
+ * (до получения приветствия), входа и каждой команды. Перцентили
+ * вычисляются по гистограмме {@link LatencyHistogram} с точностью до 25%,
+ * а максимальное время выводится точно.
+ * <p>Параметры задаются в виде {@code --имя=значение}:
+ * <ul>
+ * <li>{@code --host} - адрес сервера (по-умолчанию {@code 127.0.0.1});
+ * <li>{@code --port} - порт сервера (по-умолчанию 110);
+ * <li>{@code --connections} - количество одновременных соединений (по-умолчанию 50);
+ * <li>{@code --duration} - продолжительность в секундах (по-умолчанию 30);
+ * <li>{@code --ramp-up} - время открытия всех соединений в секундах (по-умолчанию 5);
+ * <li>{@code --users} - пары {@code имя:пароль} через запятую, распределяемые
+ * по соединениям по кругу (по-умолчанию {@code bench:bench}); запись
+ * {@code префикс*N:пароль} задаёт пользователей {@code префикс0000} -
+ * {@code префиксN-1}, созданных {@link CorpusGenerator};
+ * <li>{@code --mix} - веса команд в виде {@code КОМАНДА=вес} через запятую
+ * (по-умолчанию {@code STAT=1,UIDL=1,LIST=1,RETR=4,TOP=2,NOOP=1});
+ * поддерживаются {@code STAT, UIDL, LIST, RETR, TOP, DELE, NOOP};
+ * <li>{@code --commands} - количество команд в сессии после входа (по-умолчанию 10);
+ * <li>{@code --think} - средняя пауза между командами в миллисекундах (по-умолчанию 0);
+ * <li>{@code --pipeline} - {@code true}, чтобы отправлять команды сессии
+ * одним пакетом (по-умолчанию {@code false});
+ * <li>{@code --seed} - начальное значение генератора случайных чисел (по-умолчанию 1).
+ * </ul>
+ */
+public class LoadGenerator {
+    /**
+     * Количество строк тела письма, запрашиваемое командой {@code TOP}.
+     */
+    private static final int TOP_LINES = 10;
+    /**
+     * Время ожидания ответа сервера в миллисекундах.
+     */
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Адрес сервера.
+     */
+    private String host = "127.0.0.1";
+    /**
+     * Порт сервера.
+     */
+    private int port = 110;
+    /**
+     * Количество одновременных соединений.
+     */
+    private int connections = 50;
+    /**
+     * Продолжительность нагрузки в секундах.
+     */
+    private int duration = 30;
+    /**
+     * Время открытия всех соединений в секундах.
+     */
+    private int rampUp = 5;
+    /**
+     * Пары из имени пользователя и пароля, распределяемые по соединениям.
+     */
+    private final List<String[]> users = new ArrayList<>();
+    /**
+     * Команды смеси.
+     */
+    private String[] mixCommands;
+    /**
+     * Веса команд смеси в том же порядке, что и {@link #mixCommands}.
+     */
+    private int[] mixWeights;
+    /**
+     * Сумма весов смеси.
+     */
+    private int totalWeight;
+    /**
+     * Количество команд в сессии после входа.
+     */
+    private int commands = 10;
+    /**
+     * Средняя пауза между командами в миллисекундах.
+     */
+    private int think;
+    /**
+     * Отправлять ли команды сессии одним пакетом.
+     */
+    private boolean pipeline;
+    /**
+     * Начальное значение генератора случайных чисел.
+     */
+    private long seed = 1;
+
+    /**
+     * Время соединения, включая получение приветствия.
+     */
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    /**
+     * Время входа от отправки {@code USER} до ответа на {@code PASS}.
+     */
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    /**
+     * Время выполнения команд по имени команды.
+     */
+    private final Map<String, LatencyHistogram> commandLatency = new LinkedHashMap<>();
+    /**
+     * Количество ответов {@code -ERR} по имени команды.
+     */
+    private final Map<String, AtomicLong> commandErrors = new LinkedHashMap<>();
+    /**
+     * Количество завершённых сессий.
+     */
+    private final AtomicLong sessions = new AtomicLong();
+    /**
+     * Количество сессий, прерванных ошибкой.
+     */
+    private final AtomicLong failedSessions = new AtomicLong();
+    /**
+     * Количество сессий, которым ответили {@code -ERR [IN-USE]}.
+     */
+    private final AtomicLong inUseSessions = new AtomicLong();
+    /**
+     * Количество выполненных команд.
+     */
+    private final AtomicLong commandCount = new AtomicLong();
+    /**
+     * Количество байтов, полученных от сервера.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+    /**
+     * Количество открытых соединений.
+     */
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    /**
+     * Время окончания нагрузки в миллисекундах.
+     */
+    private volatile long deadline;
+
+    /**
+     * Запускает нагрузку с параметрами командной строки.
+     *
+     * @param args параметры в виде {@code --имя=значение}
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    /**
+     * Разбирает параметры командной строки.
+     *
+     * @param args параметры
+     */
+    private void parse(String[] args) {
+        String mix = "STAT=1,UIDL=1,LIST=1,RETR=4,TOP=2,NOOP=1";
+        String userList = "bench:bench";
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--duration": duration = Integer.parseInt(value); break;
+                case "--ramp-up": rampUp = Integer.parseInt(value); break;
+                case "--users": userList = value; break;
+                case "--mix": mix = value; break;
+                case "--commands": commands = Integer.parseInt(value); break;
+                case "--think": think = Integer.parseInt(value); break;
+                case "--pipeline": pipeline = Boolean.parseBoolean(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        for (String pair : userList.split(",")) {
+            int colon = pair.indexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Expected user:password, got " + pair);
+            String name = pair.substring(0, colon);
+            int star = name.indexOf('*');
+            if (star < 0)
+                users.add(new String[]{name, pair.substring(colon + 1)});
+            else
+                for (int i = 0; i < Integer.parseInt(name.substring(star + 1)); i++)
+                    users.add(new String[]{String.format("%s%04d", name.substring(0, star), i),
+                            pair.substring(colon + 1)});
+        }
+        String[] entries = mix.split(",");
+        mixCommands = new String[entries.length];
+        mixWeights = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].split("=");
+            mixCommands[i] = entry[0].trim().toUpperCase();
+            mixWeights[i] = Integer.parseInt(entry[1].trim());
+            if (!Arrays.asList("STAT", "UIDL", "LIST", "RETR", "TOP", "DELE", "NOOP").contains(mixCommands[i]))
+                throw new IllegalArgumentException("Unsupported command in mix: " + mixCommands[i]);
+            totalWeight += mixWeights[i];
+        }
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("Command mix has no positive weights");
+        for (String command : new String[]{"STAT", "UIDL", "LIST", "RETR", "TOP", "DELE", "NOOP", "RSET", "QUIT"}) {
+            commandLatency.put(command, new LatencyHistogram());
+            commandErrors.put(command, new AtomicLong());
+        }
+    }
+
+    /**
+     * Запускает соединения и выводит результаты по истечении времени.
+     */
+    private void run() throws InterruptedException {
+        System.out.println("Connecting " + connections + " clients to " + host + ":" + port + " for "
+                + duration + " s" + (pipeline ? ", pipelined" : ""));
+        long start = System.currentTimeMillis();
+        deadline = start + duration * 1000L;
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            final int index = i;
+            final long startAt = start + rampUp * 1000L * i / connections;
+            Thread thread = new Thread(() -> client(index, startAt), "load-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(Math.min(5000, Math.max(1, deadline - System.currentTimeMillis())));
+            System.out.printf("%5d s: %d connections, %d sessions, %d commands%n",
+                    (System.currentTimeMillis() - start) / 1000, activeConnections.get(), sessions.get(),
+                    commandCount.get());
+        }
+        for (Thread thread : threads)
+            thread.join(READ_TIMEOUT);
+        report((System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    /**
+     * Выполняет сессии одного соединения до истечения времени.
+     *
+     * @param index   номер соединения
+     * @param startAt время начала первой сессии
+     */
+    private void client(int index, long startAt) {
+        Random random = new Random(seed * 31 + index);
+        String[] user = users.get(index % users.size());
+        try {
+            long wait = startAt - System.currentTimeMillis();
+            if (wait > 0)
+                Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            return;
+        }
+        while (System.currentTimeMillis() < deadline) {
+            activeConnections.incrementAndGet();
+            try {
+                if (session(user[0], user[1], random))
+                    sessions.incrementAndGet();
+                else
+                    inUseSessions.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                failedSessions.incrementAndGet();
+            } finally {
+                activeConnections.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Выполняет одну сессию.
+     *
+     * @param user     имя пользователя
+     * @param password пароль
+     * @param random   генератор случайных чисел соединения
+     * @return {@code false}, если ящик открыт другой сессией
+     * @throws IOException если соединение прервано или вход не удался
+     */
+    private boolean session(String user, String password, Random random) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), READ_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            OutputStream out = socket.getOutputStream();
+            if (!readResponse(in, false))
+                throw new IOException("Server rejected connection");
+            connectLatency.record(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            send(out, "USER " + user + "\r\n");
+            boolean ok = readResponse(in, false);
+            send(out, "PASS " + password + "\r\n");
+            String reply = readLine(in);
+            if (reply.startsWith("-ERR [IN-USE]")) {
+                send(out, "QUIT\r\n");
+                readLine(in);
+                return false;
+            }
+            if (!(reply.startsWith("+OK") && ok))
+                throw new IOException("Login failed for " + user);
+            loginLatency.record(System.nanoTime() - start);
+
+            int messages = stat(in, out);
+            List<String> script = new ArrayList<>(commands + 2);
+            boolean deleted = false;
+            for (int i = 0; i < commands; i++) {
+                String line = nextCommand(random, messages);
+                deleted |= line.startsWith("DELE");
+                script.add(line);
+            }
+            if (deleted)
+                script.add("RSET");
+            script.add("QUIT");
+            if (pipeline)
+                runPipelined(in, out, script);
+            else
+                runSequential(in, out, script, random);
+        }
+        return true;
+    }
+
+    /**
+     * Выполняет команду {@code STAT} и возвращает количество писем.
+     */
+    private int stat(InputStream in, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        send(out, "STAT\r\n");
+        String line = readLine(in);
+        record("STAT", line.startsWith("+OK"), System.nanoTime() - start);
+        String[] parts = line.split(" ");
+        return parts.length > 1 && line.startsWith("+OK") ? Integer.parseInt(parts[1]) : 0;
+    }
+
+    /**
+     * Выбирает следующую команду сессии в соответствии с весами смеси.
+     */
+    private String nextCommand(Random random, int messages) {
+        int pick = random.nextInt(totalWeight);
+        String command = mixCommands[mixCommands.length - 1];
+        for (int i = 0; i < mixCommands.length; i++) {
+            pick -= mixWeights[i];
+            if (pick < 0) {
+                command = mixCommands[i];
+                break;
+            }
+        }
+        int message = messages > 0 ? random.nextInt(messages) + 1 : 1;
+        switch (command) {
+            case "RETR":
+            case "DELE":
+                return command + " " + message;
+            case "TOP":
+                return "TOP " + message + " " + TOP_LINES;
+            default:
+                return command;
+        }
+    }
+
+    /**
+     * Выполняет команды по одной, выдерживая паузы между ними.
+     */
+    private void runSequential(InputStream in, OutputStream out, List<String> script, Random random)
+            throws IOException {
+        for (String line : script) {
+            if (think > 0) {
+                try {
+                    Thread.sleep(random.nextInt(2 * think + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            send(out, line + "\r\n");
+            boolean ok = readResponse(in, isMultiline(line));
+            record(name(line), ok, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Отправляет команды одним пакетом и читает ответы по порядку. Время
+     * команды отсчитывается от отправки пакета.
+     */
+    private void runPipelined(InputStream in, OutputStream out, List<String> script) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        for (String line : script)
+            batch.append(line).append("\r\n");
+        long start = System.nanoTime();
+        send(out, batch.toString());
+        for (String line : script) {
+            boolean ok = readResponse(in, isMultiline(line));
+            record(name(line), ok, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Учитывает время выполнения и результат команды.
+     *
+     * @param command имя команды
+     * @param ok      {@code true}, если получен ответ {@code +OK}
+     * @param nanos   время выполнения в наносекундах
+     */
+    private void record(String command, boolean ok, long nanos) {
+        commandLatency.get(command).record(nanos);
+        if (!ok)
+            commandErrors.get(command).incrementAndGet();
+        commandCount.incrementAndGet();
+    }
+
+    /**
+     * Возвращает имя команды без аргументов.
+     *
+     * @param line строка команды
+     * @return имя команды
+     */
+    private static String name(String line) {
+        int space = line.indexOf(' ');
+        return space < 0 ? line : line.substring(0, space);
+    }
+
+    /**
+     * Проверяет, многострочный ли положительный ответ на команду.
+     *
+     * @param line строка команды
+     * @return {@code true} для {@code LIST} и {@code UIDL} без аргументов,
+     * {@code RETR} и {@code TOP}
+     */
+    private static boolean isMultiline(String line) {
+        return line.equals("LIST") || line.equals("UIDL") || line.startsWith("RETR") || line.startsWith("TOP");
+    }
+
+    /**
+     * Отправляет данные серверу.
+     *
+     * @param out  поток сервера
+     * @param data данные в кодировке ASCII
+     * @throws IOException если соединение прервано
+     */
+    private static void send(OutputStream out, String data) throws IOException {
+        out.write(data.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Читает ответ сервера. Тело многострочного ответа читается до
+     * завершающей строки, только если ответ положительный.
+     *
+     * @param in        поток сервера
+     * @param multiline {@code true}, если положительный ответ многострочный
+     * @return {@code true}, если получен ответ {@code +OK}
+     * @throws IOException если соединение прервано
+     */
+    private boolean readResponse(InputStream in, boolean multiline) throws IOException {
+        String status = readLine(in);
+        boolean ok = status.startsWith("+OK");
+        if (ok && multiline)
+            skipBody(in);
+        return ok;
+    }
+
+    /**
+     * Пропускает тело многострочного ответа вместе с завершающей строкой,
+     * не создавая строк.
+     */
+    private void skipBody(InputStream in) throws IOException {
+        long count = 0;
+        boolean atLineStart = true;
+        int dotLine = 0;
+        int c;
+        while ((c = in.read()) >= 0) {
+            count++;
+            if (c == '\n') {
+                if (dotLine > 0) {
+                    bytesReceived.addAndGet(count);
+                    return;
+                }
+                atLineStart = true;
+                continue;
+            }
+            if (atLineStart && c == '.')
+                dotLine = 1;
+            else if (dotLine == 1 && c == '\r')
+                dotLine = 2;
+            else
+                dotLine = 0;
+            atLineStart = false;
+        }
+        throw new IOException("Connection closed by server");
+    }
+
+    /**
+     * Читает строку ответа без символов конца строки.
+     */
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new IOException("Connection closed by server");
+            line.write(c);
+        }
+        bytesReceived.addAndGet(line.size() + 1);
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Выводит результаты.
+     *
+     * @param seconds продолжительность нагрузки в секундах
+     */
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf("sessions %d, failed %d, in use %d, commands %d (%.1f/s), received %.2f MB/s%n",
+                sessions.get(), failedSessions.get(), inUseSessions.get(), commandCount.get(),
+                commandCount.get() / seconds,
+                bytesReceived.get() / seconds / (1024 * 1024));
+        System.out.printf("%-8s %9s %7s %9s %9s %9s %9s%n", "", "count", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        printRow("connect", connectLatency, 0);
+        printRow("login", loginLatency, 0);
+        for (Map.Entry<String, LatencyHistogram> e : commandLatency.entrySet())
+            if (e.getValue().getCount() > 0)
+                printRow(e.getKey(), e.getValue(), commandErrors.get(e.getKey()).get());
+    }
+
+    /**
+     * Выводит строку результатов: количество значений, ошибок, перцентили
+     * и точное максимальное время.
+     *
+     * @param name      имя строки
+     * @param histogram гистограмма времени выполнения
+     * @param errors    количество ошибок
+     */
+    private static void printRow(String name, LatencyHistogram histogram, long errors) {
+        System.out.printf("%-8s %9d %7d %9.3f %9.3f %9.3f %9.3f%n", name, histogram.getCount(), errors,
+                histogram.percentile(50) / 1000.0, histogram.percentile(95) / 1000.0,
+                histogram.percentile(99) / 1000.0, histogram.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,57 @@
+package com.company.bench;
+
+import com.company.LogThread;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность {@link LogThread#log(String)} при одновременной
+ * записи из нескольких потоков (количество потоков меняется параметром
+ * JMH {@code -t}). Лог пишется в файл {@code LOG_FILE} рабочей директории
+ * без вывода в терминал. При политике {@code drop} измеряется стоимость
+ * вызова для сессии, при политике {@code block} - скорость, с которой
+ * поток логирования успевает записывать сообщения.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LogThroughputBenchmark {
+    @Param({"drop", "block"})
+    public String overflow;
+
+    private LogThread logThread;
+
+    @Setup
+    public void setUp() {
+        logThread = new LogThread(LogThread.LEVEL_INFO,
+                overflow.equals("block") ? LogThread.OVERFLOW_BLOCK : LogThread.OVERFLOW_DROP, false);
+        logThread.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        logThread.closeThread();
+    }
+
+    @Benchmark
+    public void log() {
+        logThread.log("OK User bench Home /srv/Users/bench");
+    }
+}
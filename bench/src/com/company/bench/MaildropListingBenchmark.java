@@ -0,0 +1,62 @@
+package com.company.bench;
+
+import com.company.POP3Session;
+import com.company.ResponseWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время формирования многострочных ответов {@code LIST} и {@code UIDL}
+ * для больших почтовых ящиков. Ящики создаются при первом запуске (см.
+ * {@link BenchFixtures#maildrop(int, int)}); вход в ящик выполняется в
+ * {@link #setUp(ThreadParams)} и не измеряется.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MaildropListingBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int letters;
+
+    @Param({"LIST", "UIDL"})
+    public String command;
+
+    private ResponseWriter out;
+    private POP3Session session;
+
+    @Setup
+    public void setUp(ThreadParams thread) throws IOException {
+        String user = BenchFixtures.maildrop(letters, thread.getThreadIndex());
+        out = BenchFixtures.discardingWriter();
+        session = BenchFixtures.login(user, BenchFixtures.PASSWORD, out);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public int listing() throws IOException {
+        int status = session.processSession(command);
+        out.flush();
+        return status;
+    }
+}
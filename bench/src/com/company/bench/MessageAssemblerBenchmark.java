@@ -0,0 +1,47 @@
+package com.company.bench;
+
+import com.company.MessageAssembler;
+import org.apache.james.mime4j.dom.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время сборки письма {@link MessageAssembler#assemble(File)} для короткого
+ * текстового письма, письма с вложенными частями и письма с вложениями.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageAssemblerBenchmark {
+    @Param({BenchFixtures.SMALL, BenchFixtures.MULTIPART, BenchFixtures.ATTACHMENTS})
+    public String letter;
+
+    private File letterDir;
+
+    @Setup
+    public void setUp() {
+        letterDir = BenchFixtures.letter(letter);
+    }
+
+    @Benchmark
+    public Message assemble() {
+        Message message = new MessageAssembler().assemble(letterDir);
+        message.dispose();
+        return message;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Измерения производительности сервера.
+ *
+ * <p>{@link com.company.bench.ConnectionCapacityBenchmark} запускается как
+ * обычное приложение и сравнивает режимы обслуживания клиентов.
+ *
+ * <p>Остальные классы - наборы JMH для горячих участков сервера: сборки
+ * писем, вычисления размера письма, выбора обработчика команды, ответов
+ * {@code LIST} и {@code UIDL} для больших ящиков и записи в лог. Классы
+ * JMH генерируются обработчиком аннотаций {@code jmh-generator-annprocess}
+ * при компиляции модуля; в IDEA обработка аннотаций включена для модуля
+ * {@code bench} профилем {@code JMH} в {@code .idea/compiler.xml}. При
+ * компиляции {@code javac} обработчик находится на пути классов, и
+ * запускать его отдельно не нужно. Наборы используют почтовые ящики из директории
+ * {@code bench/fixtures/Users} и запускаются из директории
+ * {@code bench/fixtures}:
+ * <pre>
+ * cd bench/fixtures
+ * java -cp &lt;классы и библиотеки обоих модулей&gt; org.openjdk.jmh.Main [шаблон набора] [параметры JMH]
+ * </pre>
+ * Например, {@code org.openjdk.jmh.Main MaildropListing -p letters=1000}
+ * измеряет только ответы для ящика из тысячи писем. При запуске в
+ * нескольких потоках ({@code -t}) каждый поток работает со своей копией
+ * почтового ящика (см. {@link com.company.bench.BenchFixtures#user(int)}).
+ *
+ * <p>{@link com.company.bench.LoadGenerator} нагружает работающий сервер
+ * одновременными сессиями, а {@link com.company.bench.CorpusGenerator}
+ * создаёт для него воспроизводимый набор почтовых ящиков заданного
+ * объёма и состава:
+ * <pre>
+ * java -cp &lt;...&gt; com.company.bench.CorpusGenerator --output=corpus --users=100 --messages=500 --seed=1
+ * </pre>
+ */
+package com.company.bench;
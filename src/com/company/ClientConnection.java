@@ -0,0 +1,27 @@
+package com.company;
+
+/**
+ * Соединение с клиентом, зарегистрированное в {@link SessionRegistry}.
+ * <p>Реализуется как задачей {@link ConnectionThread}, так и
+ * соединением неблокирующего режима {@link NioConnection}.
+ */
+public interface ClientConnection {
+    /**
+     * Возвращает идентификатор соединения, выданный реестром.
+     *
+     * @return идентификатор соединения
+     */
+    long getId();
+
+    /**
+     * Возвращает сессию соединения.
+     *
+     * @return сессия либо {@code null}, если она ещё не начата
+     */
+    POP3Session getSession();
+
+    /**
+     * Завершает сессию. Метод может вызываться из любого потока.
+     */
+    void endSession();
+}
@@ -0,0 +1,240 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Разбирает строку команды клиента непосредственно в буфере принятых
+ * байтов (см. {@link LineDecoder}).
+ * <p>Ключевое слово команды сравнивается без учёта регистра: его буквы
+ * упаковываются в одно значение {@code int}, которое ищется в таблице
+ * ключевых слов. Аргументы запоминаются как смещения в буфере, а числа
+ * разбираются прямо из байтов, поэтому разбор команды, в том числе
+ * неправильной, не выделяет памяти. Строки создаются только по запросу
+ * (см. {@link #argument(int)}).
+ * <p>Экземпляр принадлежит одной сессии и действителен до разбора
+ * следующей команды.
+ */
+final class CommandParser {
+    /**
+     * Номер команды {@code USER}.
+     */
+    static final int USER = 0;
+    /**
+     * Номер команды {@code PASS}.
+     */
+    static final int PASS = 1;
+    /**
+     * Номер команды {@code QUIT}.
+     */
+    static final int QUIT = 2;
+    /**
+     * Номер команды {@code STAT}.
+     */
+    static final int STAT = 3;
+    /**
+     * Номер команды {@code LIST}.
+     */
+    static final int LIST = 4;
+    /**
+     * Номер команды {@code RETR}.
+     */
+    static final int RETR = 5;
+    /**
+     * Номер команды {@code DELE}.
+     */
+    static final int DELE = 6;
+    /**
+     * Номер команды {@code NOOP}.
+     */
+    static final int NOOP = 7;
+    /**
+     * Номер команды {@code LAST}.
+     */
+    static final int LAST = 8;
+    /**
+     * Номер команды {@code RSET}.
+     */
+    static final int RSET = 9;
+    /**
+     * Номер команды {@code AUTH}.
+     */
+    static final int AUTH = 10;
+    /**
+     * Номер команды {@code UIDL}.
+     */
+    static final int UIDL = 11;
+    /**
+     * Номер команды {@code CAPA}.
+     */
+    static final int CAPA = 12;
+    /**
+     * Номер команды {@code TOP}.
+     */
+    static final int TOP = 13;
+    /**
+     * Количество поддерживаемых команд.
+     */
+    static final int COMMAND_COUNT = 14;
+    /**
+     * Команда не поддерживается или строка не содержит команды.
+     */
+    static final int UNKNOWN = -1;
+    /**
+     * Результат {@link #number(int)} для отсутствующего или неправильного числа.
+     */
+    static final int INVALID_NUMBER = -1;
+    /**
+     * Максимальное количество запоминаемых аргументов.
+     */
+    private static final int MAX_ARGUMENTS = 2;
+    /**
+     * Ключевые слова команд в порядке их номеров.
+     */
+    private static final String[] NAMES = {"USER", "PASS", "QUIT", "STAT", "LIST", "RETR", "DELE", "NOOP",
+            "LAST", "RSET", "AUTH", "UIDL", "CAPA", "TOP"};
+    /**
+     * Упакованные ключевые слова в порядке номеров команд.
+     */
+    private static final int[] KEYS = new int[COMMAND_COUNT];
+
+    static {
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            byte[] name = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+            KEYS[i] = pack(name, 0, name.length);
+        }
+    }
+
+    /**
+     * Буфер, содержащий последнюю разобранную строку.
+     */
+    private byte[] line;
+    /**
+     * Количество аргументов последней разобранной команды, включая
+     * не запомненные.
+     */
+    private int argumentCount;
+    /**
+     * Смещения первых {@value #MAX_ARGUMENTS} аргументов в буфере {@link #line}.
+     */
+    private final int[] argumentStart = new int[MAX_ARGUMENTS];
+    /**
+     * Длины первых {@value #MAX_ARGUMENTS} аргументов в байтах.
+     */
+    private final int[] argumentLength = new int[MAX_ARGUMENTS];
+
+    /**
+     * Возвращает ключевое слово команды.
+     *
+     * @param command номер команды
+     * @return ключевое слово в верхнем регистре
+     */
+    static String name(int command) {
+        return NAMES[command];
+    }
+
+    /**
+     * Упаковывает ключевое слово из трёх или четырёх латинских букв в
+     * одно значение, приводя буквы к верхнему регистру.
+     *
+     * @param buffer буфер, содержащий слово
+     * @param offset начало слова
+     * @param length длина слова в байтах
+     * @return упакованное слово или {@code 0}, если слово не может быть
+     * ключевым словом команды
+     */
+    private static int pack(byte[] buffer, int offset, int length) {
+        if (length < 3 || length > 4)
+            return 0;
+        int key = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int c = buffer[i] & 0xDF;
+            if (c < 'A' || c > 'Z')
+                return 0;
+            key = key << 8 | c;
+        }
+        return key;
+    }
+
+    /**
+     * Разбирает строку команды.
+     *
+     * @param buffer буфер, содержащий строку
+     * @param offset начало строки
+     * @param length длина строки без символов конца строки
+     * @return номер команды или {@link #UNKNOWN}
+     */
+    int parse(byte[] buffer, int offset, int length) {
+        line = buffer;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && buffer[i] != ' ')
+            i++;
+        int keywordLength = i - offset;
+        argumentCount = 0;
+        while (i < end) {
+            while (i < end && buffer[i] == ' ')
+                i++;
+            if (i == end)
+                break;
+            int start = i;
+            while (i < end && buffer[i] != ' ')
+                i++;
+            if (argumentCount < MAX_ARGUMENTS) {
+                argumentStart[argumentCount] = start;
+                argumentLength[argumentCount] = i - start;
+            }
+            argumentCount++;
+        }
+        int key = pack(buffer, offset, keywordLength);
+        if (key != 0)
+            for (int c = 0; c < COMMAND_COUNT; c++)
+                if (KEYS[c] == key)
+                    return c;
+        return UNKNOWN;
+    }
+
+    /**
+     * Возвращает количество аргументов команды.
+     *
+     * @return количество слов строки после ключевого слова
+     */
+    int argumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Разбирает аргумент как неотрицательное десятичное число.
+     *
+     * @param index номер аргумента, начиная с нуля
+     * @return число или {@link #INVALID_NUMBER}, если аргумента нет, он
+     * содержит не только цифры или больше {@link Integer#MAX_VALUE}
+     */
+    int number(int index) {
+        if (index >= Math.min(argumentCount, MAX_ARGUMENTS))
+            return INVALID_NUMBER;
+        int start = argumentStart[index];
+        int length = argumentLength[index];
+        if (length > 10)
+            return INVALID_NUMBER;
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9)
+                return INVALID_NUMBER;
+            value = value * 10 + digit;
+        }
+        return value > Integer.MAX_VALUE ? INVALID_NUMBER : (int) value;
+    }
+
+    /**
+     * Возвращает аргумент в виде строки.
+     *
+     * @param index номер аргумента, начиная с нуля
+     * @return аргумент или {@code null}, если аргумента нет
+     */
+    String argument(int index) {
+        if (index >= Math.min(argumentCount, MAX_ARGUMENTS))
+            return null;
+        return new String(line, argumentStart[index], argumentLength[index], StandardCharsets.UTF_8);
+    }
+}
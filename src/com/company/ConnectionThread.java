@@ -1,19 +1,24 @@
 package com.company;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 
 /**
- * Поток для работы с соединением отдельного клиента.
+ * Задача для работы с соединением отдельного клиента.
  * <p>Выполняет прием данных от клиента с помощью
- * {@link BufferedInputStream}, поддерживает сессию
+ * {@link LineDecoder}, поддерживает сессию
  * (работа с {@link POP3Session}) и обеспечивает связь
  * сессии с потоком для логгирования диалога клиент-сервер
- * {@link LogThread}.
+ * {@link LogThread}. Выполняется в потоке {@link SessionExecutor}
+ * и удаляет себя из {@link SessionRegistry} при завершении.
  */
 
-public class ConnectionThread extends Thread implements POP3Defines {
+public class ConnectionThread implements Runnable, ClientConnection, POP3Defines {
+    /**
+     * Идентификатор соединения.
+     */
+    private final long id;
     /**
      * Сокет клиента.
      */
@@ -22,45 +27,108 @@ public class ConnectionThread extends Thread implements POP3Defines {
      * Поток логгирования сессии.
      */
     private LogThread logThread;
+    /**
+     * Реестр активных соединений.
+     */
+    private SessionRegistry registry;
     /**
      * Флаг показывающий активен ли данный поток.
      */
-    private boolean flagIsOnline;
+    private volatile boolean flagIsOnline;
+    /**
+     * Сессия клиента. Равна {@code null}, пока сессия не начата.
+     */
+    private volatile POP3Session session;
 
     /**
-     * Конструктор класса.
+     * Конструктор класса. Соединение регистрируется в реестре
+     * только при начале выполнения сессии.
      * @param clientSocket сокет клиента
      * @param logThread поток для логгирования диалога клиент-сервер
+     * @param registry реестр активных соединений
      * @see Socket
      * @see LogThread
      */
-    ConnectionThread(Socket clientSocket, LogThread logThread) {
+    ConnectionThread(Socket clientSocket, LogThread logThread, SessionRegistry registry) {
         clientSock = clientSocket;
         this.logThread = logThread;
+        this.registry = registry;
+        id = registry.nextId();
         flagIsOnline = true;
     }
 
     public void run() {
-        POP3Session session = new POP3Session(clientSock, logThread);
+        registry.add(this);
+        try {
+            serve();
+        } finally {
+            POP3Session session = this.session;
+            if (session != null)
+                session.close();
+            registry.remove(this);
+        }
+    }
+
+    /**
+     * Обслуживает клиента до завершения сессии.
+     * <p>Поддерживает конвейерную обработку команд (RFC 2449, PIPELINING):
+     * ответы накапливаются в буфере и отправляются клиенту одним пакетом,
+     * когда все уже полученные команды выполнены и сервер собирается
+     * ожидать новых данных.
+     */
+    private void serve() {
+        POP3Session session;
+        ResponseWriter out;
+        try {
+            out = new ResponseWriter(clientSock.getOutputStream(),
+                    clientSock.getChannel() != null ? ResponseWriter.channelSink(clientSock.getChannel()) : null);
+            out.setWriteTimer(ServerMetrics.SOCKET_WRITE);
+            session = new POP3Session(out, logThread, id);
+            this.session = session;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
         session.sendResponse(POP3_WELCOME_RESPONSE);
         try {
+            InputStream in = clientSock.getInputStream();
+            LineDecoder decoder = new LineDecoder(POP3_MAX_LINE_LENGTH);
             while (flagIsOnline) {
-                BufferedInputStream stream = new BufferedInputStream(clientSock.getInputStream());
-                String msg = "";
-                int c;
-                int lastC = 0;
-                while ((c = stream.read()) != 13 && lastC != 10) {
-                    msg += (char) c;
-                    lastC = c;
+                int result = decoder.next();
+                if (result == LineDecoder.NONE) {
+                    out.flush();
+                    if (decoder.fill(in) < 0) {
+                        if (!flagIsOnline)
+                            break;
+                        logThread.log("Client closed connection\n");
+                        clientSock.close();
+                        return;
+                    }
+                    continue;
                 }
-                logThread.log("Message from client: " + (msg.length() == 0 ? "empty" : msg));
-                if (session.processSession(msg) == POP3_SESSION_QUITED) {
+                if (result == LineDecoder.TOO_LONG) {
+                    session.sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Line too long");
+                    continue;
+                }
+                if (logThread.isTraceEnabled())
+                    logThread.trace("Message from client: "
+                            + (decoder.lineLength() == 0 ? "empty" : decoder.lineAsString()));
+                int status;
+                try {
+                    status = session.processSession(decoder.array(), decoder.lineStart(), decoder.lineLength());
+                } catch (RuntimeException e) {
+                    logThread.warn("Malformed command: " + decoder.lineAsString());
+                    status = session.sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+                }
+                if (status == POP3_SESSION_QUITED) {
                     logThread.log("Connection thread closing...\n");
+                    out.flush();
                     clientSock.close();
                     return;
                 }
             }
             session.shutdown();
+            out.flush();
             clientSock.close();
             logThread.log("Connection thread closing...\n");
         } catch (IOException e) {
@@ -68,10 +136,26 @@ public class ConnectionThread extends Thread implements POP3Defines {
         }
     }
 
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public POP3Session getSession() {
+        return session;
+    }
+
     /**
-     * Завершает сессию.
+     * Завершает сессию. Чтение из сокета прерывается, поэтому сессия
+     * завершается, даже если клиент не присылает команд.
      */
     public void endSession(){
         flagIsOnline = false;
+        try {
+            clientSock.shutdownInput();
+        } catch (IOException e) {
+            logThread.warn("Cannot interrupt session " + id + ": " + e.getMessage());
+        }
     }
 }
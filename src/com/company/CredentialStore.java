@@ -0,0 +1,471 @@
+package com.company;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Учётные данные пользователей из файлов {@code PASS_FILE} директории
+ * {@code USERS_DIRECTORY}.
+ * <p>Файл пароля содержит либо сам пароль (завершающий перевод строки не
+ * учитывается), либо его хэш в виде
+ * {@code pbkdf2-sha256:итерации:соль:хэш}, где хэш вычислен функцией
+ * PBKDF2 с HMAC-SHA256 от пароля в кодировке UTF-8 с заданным
+ * количеством итераций, а соль и хэш записаны в Base64. Такую строку
+ * печатает {@link #main(String[])}. Количество итераций хранится в файле,
+ * поэтому его можно увеличить, не меняя формат и не перечитывая старые
+ * файлы; проверка пароля занимает время, пропорциональное количеству
+ * итераций. Пароль, записанный открытым текстом, при загрузке хэшируется
+ * со случайной солью за {@value #PLAIN_ITERATIONS} итерацию: он и так
+ * доступен на диске, а хэш лишь не даёт хранить его в памяти. Хэши
+ * сравниваются методом
+ * {@link MessageDigest#isEqual(byte[], byte[])}, время которого не зависит
+ * от того, в каком байте они различаются.
+ * <p>Пароль проверяется в потоке сессии, а в режиме
+ * {@link ServerConfig#MODE_NIO} - в потоке-реакторе, задерживая остальных
+ * его клиентов. Поэтому функция PBKDF2 вычисляется для пользователя только
+ * до первого успешного входа: после него запоминается хэш SHA-256 от соли
+ * и проверенного пароля, и следующие проверки, в том числе неудачные,
+ * сравнивают только его. Клиенты, периодически проверяющие почту, входят
+ * без вычисления PBKDF2, а файл пароля остаётся защищён медленной
+ * функцией. По той же причине количество итераций по-умолчанию
+ * ({@value #DEFAULT_ITERATIONS}) меньше рекомендуемого для паролей,
+ * проверяемых при каждом входе: первый вход каждого пользователя после
+ * запуска сервера или изменения файла пароля не должен занимать реактор
+ * надолго. Для режимов с отдельным потоком на сессию количество итераций
+ * можно увеличить (см. {@link #encode(String, int)}).
+ * <p>Общее хранилище, созданное методом {@link #start(LogThread)}, читает
+ * файлы всех пользователей при запуске сервера, а затем следит за
+ * изменениями через {@link WatchService}: появление, удаление и изменение
+ * директорий пользователей и их файлов пароля отражаются без перезапуска.
+ * Поэтому команды {@code USER} и {@code PASS} не обращаются к диску.
+ * Если хранилище не запущено (например, при использовании сессий без
+ * сервера), то файл пароля читается при каждой проверке.
+ */
+public final class CredentialStore implements POP3Defines {
+    /**
+     * Префикс хэшированного пароля в файле пароля.
+     */
+    public static final String HASH_PREFIX = "pbkdf2-sha256:";
+    /**
+     * Количество итераций PBKDF2 по-умолчанию для {@link #encode(String)}.
+     */
+    public static final int DEFAULT_ITERATIONS = 10000;
+    /**
+     * Количество итераций PBKDF2 для пароля, записанного открытым текстом.
+     */
+    private static final int PLAIN_ITERATIONS = 1;
+    /**
+     * Алгоритм PBKDF2.
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    /**
+     * Длина соли в байтах.
+     */
+    private static final int SALT_LENGTH = 16;
+    /**
+     * Длина хэша в байтах.
+     */
+    private static final int HASH_LENGTH = 32;
+    /**
+     * Генератор соли.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /**
+     * Хранилище, общее для всех сессий.
+     */
+    private static volatile CredentialStore shared = new CredentialStore(new File(USERS_DIRECTORY), null);
+    /**
+     * Директория пользователей.
+     */
+    private final File usersDir;
+    /**
+     * Учётные данные по имени пользователя. Равна {@code null}, если
+     * данные не кэшируются.
+     */
+    private final Map<String, Credential> credentials;
+    /**
+     * Поток логирования. Равен {@code null}, если данные не кэшируются.
+     */
+    private final LogThread logThread;
+    /**
+     * Служба уведомлений об изменениях файлов.
+     */
+    private WatchService watchService;
+    /**
+     * Имена пользователей по ключам наблюдения за их директориями.
+     */
+    private final Map<WatchKey, String> watchedUsers = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор класса.
+     *
+     * @param usersDir  директория пользователей
+     * @param logThread поток логирования; {@code null}, если учётные данные
+     *                  не кэшируются и читаются при каждой проверке
+     */
+    private CredentialStore(File usersDir, LogThread logThread) {
+        this.usersDir = usersDir;
+        this.logThread = logThread;
+        credentials = logThread != null ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Загружает учётные данные всех пользователей, запускает наблюдение
+     * за директорией {@code USERS_DIRECTORY} и делает хранилище общим.
+     *
+     * @param logThread поток логирования
+     * @throws IOException если не удалось запустить наблюдение
+     */
+    public static void start(LogThread logThread) throws IOException {
+        CredentialStore store = new CredentialStore(new File(USERS_DIRECTORY), logThread);
+        store.watchService = FileSystems.getDefault().newWatchService();
+        Path root = store.usersDir.toPath();
+        if (Files.isDirectory(root))
+            root.register(store.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        store.reloadAll();
+        Thread watcher = new Thread(store::watch, "credentials");
+        watcher.setDaemon(true);
+        watcher.start();
+        shared = store;
+        logThread.log("Loaded credentials of " + store.credentials.size() + " users\n");
+    }
+
+    /**
+     * Возвращает общее хранилище.
+     *
+     * @return хранилище учётных данных
+     */
+    public static CredentialStore shared() {
+        return shared;
+    }
+
+    /**
+     * Проверяет, зарегистрирован ли пользователь, то есть есть ли у него
+     * файл пароля.
+     *
+     * @param userName имя пользователя
+     * @return {@code true}, если пользователь зарегистрирован
+     */
+    public boolean isKnown(String userName) {
+        if (!isValidName(userName))
+            return false;
+        if (credentials != null)
+            return credentials.containsKey(userName);
+        return new File(new File(usersDir, userName), PASS_FILE).isFile();
+    }
+
+    /**
+     * Проверяет пароль пользователя.
+     *
+     * @param userName имя пользователя
+     * @param password пароль
+     * @return {@code true}, если пользователь зарегистрирован и пароль верен
+     */
+    public boolean verify(String userName, String password) {
+        if (!isValidName(userName))
+            return false;
+        Credential credential = credentials != null ? credentials.get(userName) : read(userName);
+        return credential != null && credential.matches(password);
+    }
+
+    /**
+     * Закрывает службу уведомлений и завершает наблюдение.
+     */
+    public void close() {
+        if (watchService != null)
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+    }
+
+    /**
+     * Проверяет, может ли строка быть именем директории пользователя.
+     */
+    private static boolean isValidName(String userName) {
+        return userName != null && !userName.isEmpty() && !userName.equals(".") && !userName.equals("..")
+                && userName.indexOf('/') < 0 && userName.indexOf('\\') < 0 && userName.indexOf('\0') < 0;
+    }
+
+    /**
+     * Перечитывает учётные данные всех пользователей.
+     */
+    private void reloadAll() {
+        File[] homes = usersDir.listFiles(File::isDirectory);
+        if (homes == null)
+            return;
+        Set<String> names = new HashSet<>();
+        for (File home : homes)
+            names.add(home.getName());
+        credentials.keySet().retainAll(names);
+        for (String name : names)
+            watchUser(name);
+    }
+
+    /**
+     * Начинает наблюдение за директорией пользователя и читает его файл
+     * пароля. Файл читается после регистрации, поэтому его изменение
+     * между этими действиями не теряется.
+     *
+     * @param userName имя пользователя
+     */
+    private void watchUser(String userName) {
+        Path home = new File(usersDir, userName).toPath();
+        try {
+            WatchKey key = home.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedUsers.put(key, userName);
+        } catch (NoSuchFileException e) {
+            credentials.remove(userName);
+            return;
+        } catch (IOException e) {
+            logThread.warn("Cannot watch " + home + ": " + e.getMessage() + "\n");
+        }
+        reload(userName);
+    }
+
+    /**
+     * Перечитывает файл пароля пользователя.
+     *
+     * @param userName имя пользователя
+     */
+    private void reload(String userName) {
+        Credential credential = read(userName);
+        if (credential != null)
+            credentials.put(userName, credential);
+        else
+            credentials.remove(userName);
+    }
+
+    /**
+     * Обрабатывает уведомления об изменениях до закрытия службы.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                String userName = watchedUsers.get(key);
+                boolean passChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logThread.warn("Credential watch overflow, reloading all users\n");
+                        reloadAll();
+                        continue;
+                    }
+                    String name = event.context().toString();
+                    if (userName == null) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                            credentials.remove(name);
+                        else if (new File(usersDir, name).isDirectory())
+                            watchUser(name);
+                    } else if (name.equals(PASS_FILE))
+                        passChanged = true;
+                }
+                if (passChanged) {
+                    logThread.log("Reloading credentials of " + userName + "\n");
+                    reload(userName);
+                }
+                if (!key.reset() && userName != null) {
+                    watchedUsers.remove(key);
+                    credentials.remove(userName);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    /**
+     * Читает файл пароля пользователя.
+     *
+     * @param userName имя пользователя
+     * @return учётные данные или {@code null}, если файла нет или он не читается
+     */
+    private Credential read(String userName) {
+        File passFile = new File(new File(usersDir, userName), PASS_FILE);
+        String content;
+        try {
+            content = new String(Files.readAllBytes(passFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+        if (content.startsWith(HASH_PREFIX)) {
+            String[] parts = content.trim().substring(HASH_PREFIX.length()).split(":");
+            try {
+                if (parts.length == 3) {
+                    int iterations = Integer.parseInt(parts[0]);
+                    byte[] salt = Base64.getDecoder().decode(parts[1]);
+                    byte[] hash = Base64.getDecoder().decode(parts[2]);
+                    if (iterations > 0 && hash.length > 0)
+                        return new Credential(iterations, salt, hash);
+                }
+            } catch (IllegalArgumentException ignored) {
+            }
+            if (logThread != null)
+                logThread.warn("Malformed password hash in " + passFile + "\n");
+            return null;
+        }
+        if (content.endsWith("\n"))
+            content = content.substring(0, content.length() - (content.endsWith("\r\n") ? 2 : 1));
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new Credential(PLAIN_ITERATIONS, salt, hash(content, salt, PLAIN_ITERATIONS, HASH_LENGTH));
+    }
+
+    /**
+     * Вычисляет хэш пароля функцией PBKDF2 с HMAC-SHA256.
+     *
+     * @param password   пароль
+     * @param salt       соль
+     * @param iterations количество итераций
+     * @param length     длина хэша в байтах
+     * @return хэш
+     */
+    private static byte[] hash(String password, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Вычисляет хэш SHA-256 от соли и пароля.
+     *
+     * @param salt     соль
+     * @param password пароль
+     * @return хэш
+     */
+    private static byte[] digest(byte[] salt, String password) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(salt);
+        return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Формирует строку файла пароля с хэшем пароля и случайной солью
+     * за {@value #DEFAULT_ITERATIONS} итераций.
+     *
+     * @param password пароль
+     * @return содержимое файла {@code PASS_FILE}
+     */
+    public static String encode(String password) {
+        return encode(password, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Формирует строку файла пароля с хэшем пароля и случайной солью.
+     *
+     * @param password   пароль
+     * @param iterations количество итераций PBKDF2
+     * @return содержимое файла {@code PASS_FILE}
+     * @throws IllegalArgumentException если количество итераций не положительно
+     */
+    public static String encode(String password, int iterations) {
+        if (iterations <= 0)
+            throw new IllegalArgumentException("Iteration count must be positive");
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return HASH_PREFIX + iterations + ":" + encoder.encodeToString(salt) + ":"
+                + encoder.encodeToString(hash(password, salt, iterations, HASH_LENGTH));
+    }
+
+    /**
+     * Печатает содержимое файла пароля для заданного пароля.
+     *
+     * @param args пароль и необязательное количество итераций PBKDF2
+     */
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Usage: CredentialStore <password> [iterations]");
+            return;
+        }
+        System.out.println(args.length == 1 ? encode(args[0]) : encode(args[0], Integer.parseInt(args[1])));
+    }
+
+    /**
+     * Количество итераций, соль и хэш пароля пользователя.
+     */
+    private static class Credential {
+        /**
+         * Количество итераций PBKDF2.
+         */
+        private final int iterations;
+        /**
+         * Соль.
+         */
+        private final byte[] salt;
+        /**
+         * Хэш пароля.
+         */
+        private final byte[] hash;
+        /**
+         * Хэш SHA-256 от соли и пароля, успешно проверенного функцией
+         * PBKDF2. Равен {@code null}, пока пароль не проверен.
+         */
+        private volatile byte[] verified;
+
+        /**
+         * Конструктор класса.
+         *
+         * @param iterations количество итераций PBKDF2
+         * @param salt       соль
+         * @param hash       хэш пароля
+         */
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        /**
+         * Проверяет пароль. Если пароль уже был успешно проверен, то
+         * сравниваются только хэши SHA-256. Время сравнения хэшей не
+         * зависит от того, в каком байте они различаются.
+         *
+         * @param password пароль
+         * @return {@code true}, если пароль верен
+         */
+        boolean matches(String password) {
+            byte[] digest = digest(salt, password);
+            byte[] known = verified;
+            if (known != null)
+                return MessageDigest.isEqual(known, digest);
+            if (!MessageDigest.isEqual(hash, hash(password, salt, iterations, hash.length)))
+                return false;
+            verified = digest;
+            return true;
+        }
+    }
+}
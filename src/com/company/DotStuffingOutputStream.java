@@ -0,0 +1,95 @@
+package com.company;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток, преобразующий письмо к виду, в котором оно передаётся в
+ * многострочном ответе POP3 (RFC 1939, раздел 3): к каждой строке,
+ * начинающейся с символа {@code '.'}, добавляется ещё одна точка, а
+ * одиночные символы {@code LF} заменяются на {@code CRLF}.
+ * <p>Письмо преобразуется за один проход по мере записи, поэтому объём
+ * используемой памяти не зависит от размера письма. Метод
+ * {@link #completeLine()} завершает последнюю строку письма, а метод
+ * {@link #finish()} дополнительно записывает строку, завершающую
+ * многострочный ответ.
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+    /**
+     * Флаг, показывающий, что следующий байт начинает новую строку.
+     */
+    private boolean atLineStart = true;
+    /**
+     * Флаг, показывающий, что предыдущий байт был символом {@code CR}.
+     */
+    private boolean afterCR;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param out поток, в который записывается преобразованное письмо
+     */
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (atLineStart && b == '.')
+            out.write('.');
+        if (b == '\n' && !afterCR)
+            out.write('\r');
+        out.write(b);
+        atLineStart = b == '\n';
+        afterCR = b == '\r';
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int from = off;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (atLineStart && c == '.') {
+                out.write(b, from, i - from);
+                out.write('.');
+                from = i;
+            } else if (c == '\n' && !afterCR) {
+                out.write(b, from, i - from);
+                out.write('\r');
+                from = i;
+            }
+            atLineStart = c == '\n';
+            afterCR = c == '\r';
+        }
+        out.write(b, from, end - from);
+    }
+
+    /**
+     * Завершает последнюю строку письма символами {@code CRLF}, если
+     * она не завершена.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    public void completeLine() throws IOException {
+        if (!atLineStart) {
+            if (!afterCR)
+                out.write('\r');
+            out.write('\n');
+            atLineStart = true;
+            afterCR = false;
+        }
+    }
+
+    /**
+     * Завершает последнюю строку письма и записывает строку {@code "."},
+     * завершающую многострочный ответ.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    public void finish() throws IOException {
+        completeLine();
+        out.write(ResponseWriter.TERMINATOR);
+    }
+}
@@ -0,0 +1,175 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма времени выполнения с логарифмически-линейными корзинами.
+ * <p>Время округляется до микросекунд. Значения до 4 мкс имеют отдельные
+ * корзины, а каждый следующий интервал от 2<sup>k</sup> до
+ * 2<sup>k+1</sup> мкс делится на 4 равные корзины, поэтому
+ * относительная погрешность не превышает 25% во всём диапазоне - от
+ * микросекунд до нескольких часов.
+ * <p>Запись значения не выделяет память и не захватывает блокировок:
+ * счётчики корзин хранятся в {@link AtomicLongArray}, поэтому
+ * гистограмму могут одновременно заполнять любое количество потоков.
+ * @see ServerMetrics
+ */
+public final class LatencyHistogram {
+    /**
+     * Количество корзин в каждом интервале от 2<sup>k</sup> до 2<sup>k+1</sup>.
+     */
+    private static final int SUB_BUCKETS = 4;
+    /**
+     * Показатель степени двойки, ограничивающий диапазон значений в микросекундах.
+     */
+    private static final int MAX_EXPONENT = 35;
+    /**
+     * Количество корзин. Последняя корзина содержит значения, не меньшие
+     * 2<sup>{@value #MAX_EXPONENT}</sup> мкс, и не имеет верхней границы.
+     */
+    static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKETS + 1;
+    /**
+     * Количество значений в корзинах.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    /**
+     * Сумма записанных значений в наносекундах.
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * Наибольшее записанное значение в наносекундах.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Записывает время выполнения.
+     *
+     * @param nanos время в наносекундах
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos / 1000));
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    /**
+     * Возвращает номер корзины для значения.
+     *
+     * @param micros значение в микросекундах
+     * @return номер корзины
+     */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+        int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Возвращает верхнюю границу корзины (не включая её).
+     *
+     * @param bucket номер корзины
+     * @return граница в микросекундах; {@link Long#MAX_VALUE} для последней корзины
+     */
+    static long upperBound(int bucket) {
+        if (bucket == BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+        if (bucket < SUB_BUCKETS)
+            return bucket + 1;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (exponent - 2);
+    }
+
+    /**
+     * Возвращает количество записанных значений.
+     *
+     * @return количество значений
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Возвращает наибольшее записанное значение. В отличие от
+     * {@link #percentile(double)}, значение точное, а не граница корзины.
+     *
+     * @return значение в микросекундах или {@code 0}, если значений нет
+     */
+    public long getMax() {
+        return max.get() / 1000;
+    }
+
+    /**
+     * Оценивает перцентиль записанных значений по верхней границе корзины.
+     *
+     * @param p перцентиль от 0 до 100
+     * @return значение в микросекундах или {@code 0}, если значений нет
+     */
+    public long percentile(double p) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long c : snapshot)
+            count += c;
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(p / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0)
+                return upperBound(i);
+        }
+        return upperBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Добавляет гистограмму в текстовом формате Prometheus. Выводятся
+     * корзины до последней непустой.
+     *
+     * @param sb     буфер, в который добавляется гистограмма
+     * @param name   имя метрики
+     * @param labels метки в виде {@code имя="значение"}
+     */
+    void writePrometheus(StringBuilder sb, String name, String labels) {
+        long[] snapshot = snapshot();
+        int last = -1;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            if (snapshot[i] > 0)
+                last = i;
+        long cumulative = 0;
+        for (int i = 0; i <= last; i++) {
+            cumulative += snapshot[i];
+            if (i == BUCKET_COUNT - 1)
+                break;
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(upperBound(i) / 1e6).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(sum.get() / 1e9).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    /**
+     * Копирует счётчики корзин.
+     *
+     * @return значения счётчиков
+     */
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+}
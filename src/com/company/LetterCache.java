@@ -0,0 +1,267 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общий для всех сессий кэш писем в том виде, в котором они передаются
+ * клиенту (см. {@link DotStuffingOutputStream}).
+ * <p>Если один почтовый ящик проверяют несколько клиентов, то каждое
+ * письмо собирается один раз. Запись кэша соответствует директории письма
+ * и времени последнего изменения её файлов: если письмо изменилось, то
+ * запись считается устаревшей и письмо собирается заново.
+ * <p>Объём кэша ограничен суммарным размером писем. При превышении
+ * ограничения из кэша удаляются письма, к которым дольше всего не
+ * обращались. Письма, размер которых больше четверти объёма кэша, не
+ * кэшируются и передаются клиенту потоком. В режиме
+ * {@link ServerConfig#MODE_NIO} кэш не используется: ответы соединения
+ * накапливаются в памяти, и письма передаются подготовленными файлами.
+ * <p>Поиск в кэше не требует блокировок; удаление записей при
+ * переполнении выполняется одним потоком за раз.
+ * @see ServerConfig
+ */
+public class LetterCache {
+    /**
+     * Кэш, общий для всех сессий. Равен {@code null}, если кэш отключён.
+     */
+    private static volatile LetterCache shared;
+    /**
+     * Максимальный суммарный размер писем в кэше.
+     */
+    private final long capacity;
+    /**
+     * Записи кэша по пути к директории письма.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * Суммарный размер писем в кэше.
+     */
+    private final AtomicLong weight = new AtomicLong();
+    /**
+     * Счётчик обращений, определяющий порядок использования записей.
+     */
+    private final AtomicLong clock = new AtomicLong();
+    /**
+     * Блокировка, под которой удаляются записи при переполнении.
+     */
+    private final Object evictionLock = new Object();
+    /**
+     * Количество найденных в кэше писем.
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * Количество писем, не найденных в кэше.
+     */
+    private final LongAdder misses = new LongAdder();
+    /**
+     * Количество писем, удалённых из кэша при переполнении.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Конструктор класса.
+     *
+     * @param capacity максимальный суммарный размер писем в кэше
+     */
+    public LetterCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Создаёт общий кэш заданного объёма.
+     *
+     * @param capacity максимальный суммарный размер писем в кэше;
+     *                 {@code 0} отключает кэш
+     */
+    public static void configure(long capacity) {
+        shared = capacity > 0 ? new LetterCache(capacity) : null;
+    }
+
+    /**
+     * Возвращает общий кэш.
+     *
+     * @return общий кэш или {@code null}, если кэш отключён
+     */
+    public static LetterCache shared() {
+        return shared;
+    }
+
+    /**
+     * Проверяет, может ли письмо заданного размера храниться в кэше.
+     *
+     * @param size размер письма в байтах
+     * @return {@code true}, если письмо может быть закэшировано
+     */
+    public boolean accepts(long size) {
+        return size >= 0 && size <= capacity / 4;
+    }
+
+    /**
+     * Возвращает письмо в том виде, в котором оно передаётся клиенту,
+     * без строки, завершающей многострочный ответ. Если письма нет в
+     * кэше или оно изменилось, то письмо собирается и добавляется в кэш.
+     *
+     * @param letter письмо
+     * @return содержимое письма или {@code null}, если письмо не удалось собрать
+     * @throws IOException если при чтении письма произошла ошибка
+     */
+    public byte[] get(POP3Letter letter) throws IOException {
+        File letterDir = letter.getLetterDir();
+        String key = letterDir.getPath();
+        long stamp = MessageRenderer.sourceStamp(letterDir);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.stamp == stamp) {
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return entry.data;
+        }
+        misses.increment();
+        boolean loaded = letter.getMimeMessage() != null;
+        if (!letter.load())
+            return null;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.max(letter.getSize(), 32));
+        DotStuffingOutputStream body = new DotStuffingOutputStream(buffer);
+        try {
+            letter.send(body);
+            body.completeLine();
+        } finally {
+            if (!loaded)
+                letter.release();
+        }
+        byte[] data = buffer.toByteArray();
+        if (accepts(data.length)) {
+            Entry added = new Entry(stamp, data, clock.incrementAndGet());
+            Entry old = entries.put(key, added);
+            weight.addAndGet(data.length - (old != null ? old.data.length : 0));
+            if (weight.get() > capacity)
+                evict();
+        }
+        return data;
+    }
+
+    /**
+     * Удаляет письмо из кэша.
+     *
+     * @param letterDir директория письма
+     */
+    public void invalidate(File letterDir) {
+        Entry old = entries.remove(letterDir.getPath());
+        if (old != null)
+            weight.addAndGet(-old.data.length);
+    }
+
+    /**
+     * Удаляет из кэша письма, к которым дольше всего не обращались,
+     * пока суммарный размер писем превышает объём кэша.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            if (weight.get() <= capacity)
+                return;
+            List<Candidate> candidates = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+                candidates.add(new Candidate(e.getKey(), e.getValue()));
+            candidates.sort(Comparator.comparingLong(c -> c.lastAccess));
+            for (Candidate candidate : candidates) {
+                if (weight.get() <= capacity)
+                    break;
+                Entry entry = candidate.entry;
+                if (entries.remove(candidate.key, entry)) {
+                    weight.addAndGet(-entry.data.length);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает количество найденных в кэше писем.
+     *
+     * @return количество попаданий
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Возвращает количество писем, не найденных в кэше.
+     *
+     * @return количество промахов
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Возвращает количество писем, удалённых из кэша при переполнении.
+     *
+     * @return количество вытеснений
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Возвращает суммарный размер писем в кэше.
+     *
+     * @return размер в байтах
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Letter cache: " + entries.size() + " letters, " + getWeight() + " of " + capacity
+                + " bytes, hits " + getHitCount() + ", misses " + getMissCount()
+                + ", evictions " + getEvictionCount();
+    }
+
+    /**
+     * Запись кэша.
+     */
+    private static class Entry {
+        /**
+         * Время последнего изменения файлов письма.
+         */
+        final long stamp;
+        /**
+         * Содержимое письма.
+         */
+        final byte[] data;
+        /**
+         * Значение счётчика обращений при последнем обращении к записи.
+         */
+        volatile long lastAccess;
+
+        Entry(long stamp, byte[] data, long lastAccess) {
+            this.stamp = stamp;
+            this.data = data;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Запись, которая может быть удалена при переполнении кэша, и время
+     * обращения к ней на момент начала удаления.
+     */
+    private static class Candidate {
+        final String key;
+        final Entry entry;
+        final long lastAccess;
+
+        Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            lastAccess = entry.lastAccess;
+        }
+    }
+}
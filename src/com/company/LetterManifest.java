@@ -0,0 +1,651 @@
+package com.company;
+
+import org.apache.james.mime4j.codec.EncoderUtil;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Структура письма: главный заголовок и дерево частей письма с их
+ * заголовками и именами файлов содержимого.
+ * <p>Структура описывается файлом {@link MessageAssembler#PARTS_JSON} и
+ * файлом главного заголовка в формате JSON. При первом обращении к письму
+ * она компилируется в двоичный файл {@code MANIFEST_FILE}, который затем
+ * читается одной последовательной операцией чтения без разбора JSON и дат.
+ * Если файлы JSON изменены позже двоичного файла или двоичный файл
+ * повреждён, то он компилируется заново.
+ * @see MessageAssembler
+ */
+public class LetterManifest implements POP3Defines {
+    /**
+     * Сигнатура двоичного файла.
+     */
+    private static final int MAGIC = 0x50334D46;
+    /**
+     * Версия формата двоичного файла.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Имя файла главного заголовка письма. Равно {@code null}, если у
+     * письма нет главного заголовка.
+     */
+    private String headerFile;
+    /**
+     * Отправители письма.
+     */
+    private List<Address> from = Collections.emptyList();
+    /**
+     * Получатели письма.
+     */
+    private List<Address> to = Collections.emptyList();
+    /**
+     * Дата письма в миллисекундах. Равна {@code -1}, если дата не задана.
+     */
+    private long date = -1;
+    /**
+     * Тема письма.
+     */
+    private String subject;
+    /**
+     * Идентификатор сообщения.
+     */
+    private String messageId;
+    /**
+     * Уникальный идентификатор письма в ящике.
+     */
+    private String uniqueId;
+    /**
+     * Корневая часть письма.
+     */
+    private Part root;
+
+    /**
+     * Возвращает актуальную структуру письма, при необходимости
+     * компилируя её из файлов JSON.
+     *
+     * @param dir директория письма
+     * @return структура письма или {@code null}, если её не удалось прочитать
+     */
+    public static LetterManifest open(File dir) {
+        File manifestFile = new File(dir, MANIFEST_FILE);
+        if (manifestFile.isFile()) {
+            long stamp = manifestFile.lastModified();
+            try {
+                LetterManifest manifest = read(manifestFile);
+                if (new File(dir, MessageAssembler.PARTS_JSON).lastModified() <= stamp
+                        && (manifest.headerFile == null || new File(dir, manifest.headerFile).lastModified() <= stamp))
+                    return manifest;
+            } catch (IOException e) {
+                System.err.println("Damaged manifest " + manifestFile + ", recompiling");
+            }
+        }
+        LetterManifest manifest = compile(dir);
+        if (manifest != null)
+            manifest.save(dir);
+        return manifest;
+    }
+
+    /**
+     * Читает двоичный файл структуры письма.
+     *
+     * @param file двоичный файл
+     * @return структура письма
+     * @throws IOException если файл не удалось прочитать или он повреждён
+     */
+    private static LetterManifest read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Unsupported manifest format");
+        LetterManifest manifest = new LetterManifest();
+        manifest.headerFile = readString(in);
+        manifest.from = readAddresses(in);
+        manifest.to = readAddresses(in);
+        manifest.date = in.readLong();
+        manifest.subject = readString(in);
+        manifest.messageId = readString(in);
+        manifest.uniqueId = readString(in);
+        manifest.root = readPart(in);
+        return manifest;
+    }
+
+    /**
+     * Сохраняет структуру письма в двоичный файл. Файл записывается во
+     * временный файл, который затем заменяет прежний.
+     *
+     * @param dir директория письма
+     */
+    private void save(File dir) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(MANIFEST_FILE, ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, headerFile);
+                writeAddresses(out, from);
+                writeAddresses(out, to);
+                out.writeLong(date);
+                writeString(out, subject);
+                writeString(out, messageId);
+                writeString(out, uniqueId);
+                writePart(out, root);
+            }
+            Files.move(tmp.toPath(), new File(dir, MANIFEST_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    /**
+     * Читает часть письма вместе со всеми вложенными частями.
+     *
+     * @param in поток двоичного файла
+     * @return часть письма
+     * @throws IOException если файл повреждён
+     */
+    private static Part readPart(DataInputStream in) throws IOException {
+        Part part = new Part();
+        part.transferEncoding = readString(in);
+        part.mimeType = readString(in);
+        part.charset = readString(in);
+        part.dispositionType = readString(in);
+        part.dispositionFilename = readString(in);
+        part.multipart = in.readBoolean();
+        if (part.multipart) {
+            int count = in.readInt();
+            part.children = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                part.children.add(readPart(in));
+        } else
+            part.bodyFile = readString(in);
+        return part;
+    }
+
+    /**
+     * Записывает часть письма вместе со всеми вложенными частями.
+     *
+     * @param out  поток двоичного файла
+     * @param part часть письма
+     * @throws IOException если при записи произошла ошибка
+     */
+    private static void writePart(DataOutputStream out, Part part) throws IOException {
+        writeString(out, part.transferEncoding);
+        writeString(out, part.mimeType);
+        writeString(out, part.charset);
+        writeString(out, part.dispositionType);
+        writeString(out, part.dispositionFilename);
+        out.writeBoolean(part.multipart);
+        if (part.multipart) {
+            out.writeInt(part.children.size());
+            for (Part child : part.children)
+                writePart(out, child);
+        } else
+            writeString(out, part.bodyFile);
+    }
+
+    /**
+     * Читает список адресов, перед которым записано их количество.
+     *
+     * @param in поток двоичного файла
+     * @return список адресов
+     * @throws IOException если файл повреждён
+     */
+    private static List<Address> readAddresses(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Address> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            addresses.add(new Address(readString(in), readString(in), readString(in)));
+        return addresses;
+    }
+
+    /**
+     * Записывает список адресов вместе с их количеством.
+     *
+     * @param out       поток двоичного файла
+     * @param addresses список адресов
+     * @throws IOException если при записи произошла ошибка
+     */
+    private static void writeAddresses(DataOutputStream out, List<Address> addresses) throws IOException {
+        out.writeInt(addresses.size());
+        for (Address address : addresses) {
+            writeString(out, address.name);
+            writeString(out, address.localPart);
+            writeString(out, address.domain);
+        }
+    }
+
+    /**
+     * Читает строку в кодировке UTF-8, перед которой записана её длина
+     * ({@code -1} для {@code null}).
+     *
+     * @param in поток двоичного файла
+     * @return строка или {@code null}
+     * @throws IOException если файл повреждён
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("Truncated manifest");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Записывает строку в кодировке UTF-8 вместе с её длиной.
+     *
+     * @param out поток двоичного файла
+     * @param s   строка или {@code null}
+     * @throws IOException если при записи произошла ошибка
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Компилирует структуру письма из файлов JSON.
+     *
+     * @param dir директория письма
+     * @return структура письма или {@code null}, если её не удалось прочитать
+     */
+    static LetterManifest compile(File dir) {
+        File partsFile = new File(dir, MessageAssembler.PARTS_JSON);
+        if (!partsFile.isFile())
+            return null;
+        JSONObject parsedJSON = parseJSON(partsFile);
+        if (parsedJSON == null)
+            return null;
+        LetterManifest manifest = new LetterManifest();
+        try {
+            manifest.fillMainHeader((JSONObject) parsedJSON.get("header"), dir);
+            manifest.root = compilePart(parsedJSON);
+        } catch (java.text.ParseException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * Компилирует часть письма по описанной в JSON-объекте структуре.
+     * Имя прикреплённого файла, содержащее символы не из набора ASCII,
+     * кодируется как encoded-word (RFC 2047) в кодировке UTF-8.
+     *
+     * @param jsonIn JSON-объект, содержащий структуру части письма
+     * @return часть письма
+     */
+    private static Part compilePart(JSONObject jsonIn) {
+        Part part = new Part();
+        JSONObject jsonHeader = (JSONObject) jsonIn.get("header");
+        part.transferEncoding = (String) jsonHeader.get("content_transfer_encoding");
+        JSONObject jsonCType = (JSONObject) jsonHeader.get("content_type");
+        part.mimeType = (String) jsonCType.get("mime_type");
+        part.charset = (String) ((JSONObject) jsonCType.get("params")).get("charset");
+        JSONObject jsonCDisp = (JSONObject) jsonHeader.get("content_disposition");
+        if (jsonCDisp != null) {
+            part.dispositionType = (String) jsonCDisp.get("type");
+            String dispFilename = (String) jsonCDisp.get("filename");
+            if (dispFilename != null)
+                part.dispositionFilename = EncoderUtil.hasToBeEncoded(dispFilename, 0)
+                        ? EncoderUtil.encodeEncodedWord(dispFilename, EncoderUtil.Usage.TEXT_TOKEN, 0,
+                        StandardCharsets.UTF_8, EncoderUtil.Encoding.B)
+                        : dispFilename;
+        }
+        part.multipart = (boolean) jsonCType.get("is_multipart");
+        if (part.multipart) {
+            JSONArray jsonBodyArray = (JSONArray) jsonIn.get("body");
+            part.children = new ArrayList<>(jsonBodyArray.size());
+            for (Object object : jsonBodyArray)
+                part.children.add(compilePart((JSONObject) object));
+        } else
+            part.bodyFile = (String) jsonIn.get("body");
+        return part;
+    }
+
+    /**
+     * Заполняет главный заголовок письма из файла главного заголовка.
+     *
+     * @param jsonHeader JSON-объект, содержащий заголовок корневой части письма
+     * @param dir        директория письма
+     */
+    private void fillMainHeader(JSONObject jsonHeader, File dir) throws java.text.ParseException {
+        String mainHeaderName = (String) jsonHeader.get("message_header_file");
+        if (mainHeaderName == null)
+            return;
+        File mainHeaderFile = new File(dir, mainHeaderName);
+        if (!mainHeaderFile.isFile()) {
+            System.err.println("No header file in" + mainHeaderFile);
+            return;
+        }
+        JSONObject jsonMainHeader = parseJSON(mainHeaderFile);
+        if (jsonMainHeader == null)
+            return;
+        headerFile = mainHeaderName;
+        from = compileAddresses((JSONArray) jsonMainHeader.get("from"));
+        to = compileAddresses((JSONArray) jsonMainHeader.get("to"));
+        DateFormat df = new SimpleDateFormat("EEE MMM dd kk:mm:ss z yyyy", Locale.ENGLISH);
+        String dateString = (String) jsonMainHeader.get("date");
+        if (dateString != null)
+            date = df.parse(dateString).getTime();
+        subject = (String) jsonMainHeader.get("subject");
+        messageId = (String) jsonMainHeader.get("message_id");
+        uniqueId = (String) jsonMainHeader.get("unique_id");
+    }
+
+    /**
+     * Составляет список адресов из JSON-массива.
+     *
+     * @param array JSON-массив адресов или {@code null}
+     * @return список адресов, пустой, если массив не задан
+     */
+    private static List<Address> compileAddresses(JSONArray array) {
+        List<Address> addresses = new ArrayList<>();
+        if (array != null)
+            for (Object object : array) {
+                JSONObject jsonObject = (JSONObject) object;
+                addresses.add(new Address((String) jsonObject.get("name"), (String) jsonObject.get("local_part"),
+                        (String) jsonObject.get("domain")));
+            }
+        return addresses;
+    }
+
+    /**
+     * Получает JSON-объект из файла.
+     *
+     * @param file файл, содержащий JSON-объект
+     * @return данные в виде JSON-объекта
+     */
+    private static JSONObject parseJSON(File file) {
+        JSONObject jsonObject = null;
+        JSONParser parser = new JSONParser();
+        try (Reader fileReader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            jsonObject = (JSONObject) parser.parse(fileReader);
+        } catch (IOException | ParseException e) {
+            e.printStackTrace();
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Проверяет, есть ли у письма главный заголовок.
+     *
+     * @return {@code true}, если главный заголовок задан
+     */
+    public boolean hasMainHeader() {
+        return headerFile != null;
+    }
+
+    /**
+     * Возвращает отправителей письма.
+     *
+     * @return список отправителей
+     */
+    public List<Address> getFrom() {
+        return from;
+    }
+
+    /**
+     * Возвращает получателей письма.
+     *
+     * @return список получателей
+     */
+    public List<Address> getTo() {
+        return to;
+    }
+
+    /**
+     * Возвращает дату письма.
+     *
+     * @return дата в миллисекундах или {@code -1}, если дата не задана
+     */
+    public long getDate() {
+        return date;
+    }
+
+    /**
+     * Возвращает тему письма.
+     *
+     * @return тема письма или {@code null}, если она не задана
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Возвращает идентификатор сообщения ({@code Message-ID}).
+     *
+     * @return идентификатор сообщения или {@code null}, если он не задан
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Возвращает уникальный идентификатор письма в ящике.
+     *
+     * @return уникальный идентификатор или {@code null}, если он не задан
+     */
+    public String getUniqueId() {
+        return uniqueId;
+    }
+
+    /**
+     * Возвращает корневую часть письма.
+     *
+     * @return корневая часть
+     */
+    public Part getRoot() {
+        return root;
+    }
+
+    /**
+     * Адрес отправителя или получателя письма.
+     */
+    public static class Address {
+        /**
+         * Отображаемое имя.
+         */
+        private final String name;
+        /**
+         * Локальная часть адреса (до символа {@code @}).
+         */
+        private final String localPart;
+        /**
+         * Домен адреса.
+         */
+        private final String domain;
+
+        /**
+         * Конструктор класса.
+         *
+         * @param name      отображаемое имя
+         * @param localPart локальная часть адреса
+         * @param domain    домен адреса
+         */
+        Address(String name, String localPart, String domain) {
+            this.name = name;
+            this.localPart = localPart;
+            this.domain = domain;
+        }
+
+        /**
+         * Возвращает отображаемое имя.
+         *
+         * @return имя или {@code null}, если оно не задано
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Возвращает локальную часть адреса.
+         *
+         * @return локальная часть адреса
+         */
+        public String getLocalPart() {
+            return localPart;
+        }
+
+        /**
+         * Возвращает домен адреса.
+         *
+         * @return домен адреса
+         */
+        public String getDomain() {
+            return domain;
+        }
+    }
+
+    /**
+     * Часть письма.
+     */
+    public static class Part {
+        /**
+         * Способ кодирования содержимого ({@code Content-Transfer-Encoding}).
+         */
+        private String transferEncoding;
+        /**
+         * Тип содержимого.
+         */
+        private String mimeType;
+        /**
+         * Кодировка текстового содержимого. Равна {@code null} для
+         * нетекстовых частей.
+         */
+        private String charset;
+        /**
+         * Расположение содержимого ({@code Content-Disposition}) или {@code null}.
+         */
+        private String dispositionType;
+        /**
+         * Закодированное имя прикреплённого файла или {@code null}.
+         */
+        private String dispositionFilename;
+        /**
+         * Флаг, показывающий, что часть является составной.
+         */
+        private boolean multipart;
+        /**
+         * Вложенные части составной части.
+         */
+        private List<Part> children;
+        /**
+         * Имя файла содержимого несоставной части.
+         */
+        private String bodyFile;
+
+        /**
+         * Возвращает способ кодирования содержимого.
+         *
+         * @return значение {@code Content-Transfer-Encoding}
+         */
+        public String getTransferEncoding() {
+            return transferEncoding;
+        }
+
+        /**
+         * Возвращает тип содержимого.
+         *
+         * @return тип содержимого, например {@code multipart/mixed}
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Возвращает подтип содержимого.
+         *
+         * @return подтип содержимого, например {@code mixed}
+         */
+        public String getSubtype() {
+            return mimeType.substring(mimeType.indexOf('/') + 1);
+        }
+
+        /**
+         * Возвращает кодировку текстового содержимого.
+         *
+         * @return кодировка или {@code null} для нетекстовых частей
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        /**
+         * Возвращает расположение содержимого.
+         *
+         * @return значение {@code Content-Disposition} или {@code null}
+         */
+        public String getDispositionType() {
+            return dispositionType;
+        }
+
+        /**
+         * Возвращает закодированное имя прикреплённого файла.
+         *
+         * @return имя файла или {@code null}
+         */
+        public String getDispositionFilename() {
+            return dispositionFilename;
+        }
+
+        /**
+         * Проверяет, является ли часть составной.
+         *
+         * @return {@code true}, если часть содержит вложенные части
+         */
+        public boolean isMultipart() {
+            return multipart;
+        }
+
+        /**
+         * Возвращает вложенные части составной части.
+         *
+         * @return вложенные части или {@code null} для несоставной части
+         */
+        public List<Part> getChildren() {
+            return children;
+        }
+
+        /**
+         * Возвращает имя файла содержимого несоставной части.
+         *
+         * @return имя файла в директории письма или {@code null} для
+         * составной части
+         */
+        public String getBodyFile() {
+            return bodyFile;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Выделяет строки команд клиента из потока байтов.
+ * <p>Данные читаются в буфер фиксированного размера, который создаётся
+ * один раз на соединение. Поиск конца строки ({@code CRLF}, а также
+ * одиночного {@code LF}) продолжается с места, где он остановился при
+ * предыдущем вызове, поэтому каждый байт просматривается один раз.
+ * Байты, полученные после конца строки, остаются в буфере и
+ * используются для следующей команды.
+ * <p>Строка, не умещающаяся в буфер, пропускается целиком, а метод
+ * {@link #next()} сообщает об этом значением {@link #TOO_LONG}.
+ */
+public class LineDecoder {
+    /**
+     * В буфере нет полной строки, необходимо прочитать больше данных.
+     */
+    public static final int NONE = 0;
+    /**
+     * Получена строка, доступная через {@link #lineStart()} и {@link #lineLength()}.
+     */
+    public static final int LINE = 1;
+    /**
+     * Получена и пропущена строка, превышающая максимальную длину.
+     */
+    public static final int TOO_LONG = 2;
+    /**
+     * Буфер принятых данных.
+     */
+    private final byte[] buffer;
+    /**
+     * Обёртка буфера для чтения из каналов.
+     */
+    private final ByteBuffer byteBuffer;
+    /**
+     * Начало необработанных данных.
+     */
+    private int start;
+    /**
+     * Конец принятых данных.
+     */
+    private int end;
+    /**
+     * Позиция, с которой продолжается поиск конца строки.
+     */
+    private int scan;
+    /**
+     * Флаг, показывающий, что пропускается слишком длинная строка.
+     */
+    private boolean discarding;
+    /**
+     * Начало последней выделенной строки.
+     */
+    private int lineStart;
+    /**
+     * Длина последней выделенной строки без символов конца строки.
+     */
+    private int lineLength;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param maxLineLength максимальная длина строки без символов {@code CRLF}
+     */
+    public LineDecoder(int maxLineLength) {
+        buffer = new byte[maxLineLength + 2];
+        byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Ищет в буфере следующую полную строку.
+     *
+     * @return {@link #LINE}, если строка выделена, {@link #TOO_LONG}, если
+     * пропущена слишком длинная строка, или {@link #NONE}, если полной
+     * строки в буфере нет
+     */
+    public int next() {
+        for (int i = scan; i < end; i++) {
+            if (buffer[i] != '\n')
+                continue;
+            int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+            lineStart = start;
+            lineLength = lineEnd - start;
+            start = scan = i + 1;
+            if (discarding) {
+                discarding = false;
+                return TOO_LONG;
+            }
+            return LINE;
+        }
+        scan = end;
+        if (start == 0 && end == buffer.length) {
+            discarding = true;
+            start = scan = end = 0;
+        }
+        return NONE;
+    }
+
+    /**
+     * Читает данные из потока в свободную часть буфера. Вызывается,
+     * когда {@link #next()} вернул {@link #NONE}.
+     *
+     * @param in входной поток сокета
+     * @return количество прочитанных байтов либо {@code -1}, если поток закрыт
+     * @throws IOException если при чтении произошла ошибка
+     */
+    public int fill(InputStream in) throws IOException {
+        compact();
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read > 0)
+            end += read;
+        return read;
+    }
+
+    /**
+     * Читает данные из канала в свободную часть буфера без промежуточного
+     * копирования. Вызывается, когда {@link #next()} вернул {@link #NONE}.
+     *
+     * @param channel канал сокета
+     * @return количество прочитанных байтов либо {@code -1}, если канал закрыт
+     * @throws IOException если при чтении произошла ошибка
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        compact();
+        byteBuffer.limit(buffer.length).position(end);
+        int read = channel.read(byteBuffer);
+        if (read > 0)
+            end += read;
+        return read;
+    }
+
+    /**
+     * Перемещает необработанные данные в начало буфера.
+     */
+    private void compact() {
+        if (start == 0)
+            return;
+        int remaining = end - start;
+        if (remaining > 0)
+            System.arraycopy(buffer, start, buffer, 0, remaining);
+        scan -= start;
+        end = remaining;
+        start = 0;
+    }
+
+    /**
+     * Возвращает буфер, содержащий последнюю выделенную строку. Содержимое
+     * остаётся действительным до следующего вызова {@code fill}.
+     *
+     * @return буфер принятых данных
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Возвращает начало последней выделенной строки в буфере.
+     *
+     * @return смещение строки в {@link #array()}
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * Возвращает длину последней выделенной строки без символов конца строки.
+     *
+     * @return длина строки в байтах
+     */
+    public int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Возвращает последнюю выделенную строку.
+     *
+     * @return строка команды клиента
+     */
+    public String lineAsString() {
+        return new String(buffer, lineStart, lineLength, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,132 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограниченная неблокирующая очередь сообщений лога с несколькими
+ * производителями и одним потребителем.
+ * <p>Каждая ячейка кольцевого буфера хранит порядковый номер, по которому
+ * производитель определяет, свободна ли ячейка, а потребитель - записано
+ * ли в неё сообщение. Производители занимают ячейки операцией
+ * compare-and-set над общим счётчиком и никогда не ждут друг друга или
+ * потребителя: если буфер заполнен, то {@link #offer(long, String)}
+ * сразу возвращает {@code false}.
+ * @see LogThread
+ */
+final class LogRingBuffer {
+    /**
+     * Маска номера ячейки.
+     */
+    private final int mask;
+    /**
+     * Порядковые номера ячеек.
+     */
+    private final AtomicLongArray sequences;
+    /**
+     * Время добавления сообщений.
+     */
+    private final long[] times;
+    /**
+     * Сообщения.
+     */
+    private final String[] messages;
+    /**
+     * Номер следующей ячейки, которую займёт производитель.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Номер следующей ячейки, которую прочитает потребитель. Изменяется
+     * только потоком-потребителем.
+     */
+    private volatile long head;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param capacity ёмкость буфера; округляется вверх до степени двойки
+     */
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        times = new long[size];
+        messages = new String[size];
+    }
+
+    /**
+     * Добавляет сообщение в буфер.
+     *
+     * @param time    время сообщения в миллисекундах
+     * @param message сообщение
+     * @return {@code false}, если буфер заполнен
+     */
+    boolean offer(long time, String message) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0)
+                return false;
+            else
+                position = tail.get();
+        }
+        times[index] = time;
+        messages[index] = message;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Проверяет, есть ли в голове буфера сообщение. Вызывается только
+     * потоком-потребителем.
+     *
+     * @return {@code true}, если можно вызвать {@link #poll()}
+     */
+    boolean hasNext() {
+        long position = head;
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    /**
+     * Время сообщения в голове буфера. Вызывается только
+     * потоком-потребителем после {@link #hasNext()}.
+     *
+     * @return время сообщения в миллисекундах
+     */
+    long peekTime() {
+        return times[(int) head & mask];
+    }
+
+    /**
+     * Извлекает сообщение из головы буфера. Вызывается только
+     * потоком-потребителем после {@link #hasNext()}.
+     *
+     * @return сообщение
+     */
+    String poll() {
+        long position = head;
+        int index = (int) position & mask;
+        String message = messages[index];
+        messages[index] = null;
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return message;
+    }
+
+    /**
+     * Возвращает приблизительное количество сообщений в буфере.
+     *
+     * @return количество сообщений
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+}
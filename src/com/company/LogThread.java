@@ -1,14 +1,34 @@
 package com.company;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Поток для логирования работы сервера. Принимает сообщения от потоков,
  * работающих с сессиями клиентов, и выводит их в окно терминала, а
  * также заносит их в лог-файл.
+ * <p>Сообщения передаются потоку логирования через ограниченный
+ * неблокирующий кольцевой буфер ({@link LogRingBuffer}), поэтому вызов
+ * {@link #log(String)} не захватывает блокировок и не форматирует дату.
+ * Время сообщения форматируется потоком логирования, а строка с датой
+ * создаётся не чаще раза в секунду. Сообщения, накопленные в буфере,
+ * записываются в лог-файл и в терминал одним блоком. Каждое сообщение
+ * записывается отдельной строкой с разделителем строк системы; один
+ * завершающий перевод строки сообщения ({@code \n} или {@code \r\n})
+ * отбрасывается, поэтому сообщения можно передавать как с ним, так и без
+ * него.
+ * <p>Сообщения имеют уровни ({@link #LEVEL_TRACE}, {@link #LEVEL_INFO},
+ * {@link #LEVEL_WARN}); сообщения ниже заданного уровня отбрасываются
+ * сразу. Построчная трассировка диалога клиент-сервер имеет уровень
+ * {@link #LEVEL_TRACE} и по-умолчанию выключена.
+ * <p>Если буфер заполнен, то сообщение либо отбрасывается
+ * ({@link #OVERFLOW_DROP}, количество отброшенных сообщений записывается
+ * в лог), либо поток, передающий сообщение, ждёт освобождения места
+ * ({@link #OVERFLOW_BLOCK}).
  * @see ConnectionThread
  * @see POP3Session
  * @see #LOG_FILE
@@ -16,34 +36,128 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class LogThread extends Thread implements POP3Defines {
     /**
-     * Очередь записываемых в лог сообщений.
+     * Уровень построчной трассировки диалога клиент-сервер.
      */
-    private ConcurrentLinkedQueue<String> queue;
+    public static final int LEVEL_TRACE = 0;
     /**
-     * Объект управляющий выполнением потока записи сообщений в лог.
+     * Уровень обычных сообщений о работе сервера.
      */
-    private final Object MONITOR = new Object();
+    public static final int LEVEL_INFO = 1;
+    /**
+     * Уровень предупреждений.
+     */
+    public static final int LEVEL_WARN = 2;
+    /**
+     * При переполнении буфера сообщение отбрасывается.
+     */
+    public static final int OVERFLOW_DROP = 0;
+    /**
+     * При переполнении буфера поток ждёт освобождения места.
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+    /**
+     * Ёмкость буфера сообщений по-умолчанию.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+    /**
+     * Максимальное время ожидания новых сообщений, после которого поток
+     * логирования проверяет флаг закрытия, в наносекундах.
+     */
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    /**
+     * Буфер записываемых в лог сообщений.
+     */
+    private final LogRingBuffer buffer;
+    /**
+     * Минимальный уровень записываемых сообщений.
+     */
+    private final int level;
+    /**
+     * Поведение при переполнении буфера.
+     */
+    private final int overflowPolicy;
+    /**
+     * Флаг, показывающий, выводятся ли сообщения в терминал.
+     */
+    private final boolean console;
+    /**
+     * Флаг, показывающий, предваряются ли сообщения датой и временем.
+     */
+    private final boolean timestamps;
+    /**
+     * Префикс служебных строк потока, например строки о количестве
+     * отброшенных сообщений.
+     */
+    private final String noticePrefix;
     /**
      * Фаил куда писаться сообщения из лога.
      */
     private File logFile;
     /**
-     * Флаг показывающий приостановлен ли поток логгированияю.
+     * Количество отброшенных сообщений.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Флаг, показывающий, что поток логирования ожидает новых сообщений.
      */
-    private boolean pauseThreadFlag = false;
+    private volatile boolean idle = false;
     /**
      * Флаг показывающий закрытие потока логгирования.
      */
-    private boolean closeThreadFlag = false;
+    private volatile boolean closeThreadFlag = false;
+    /**
+     * Секунда, для которой отформатирована строка {@link #stamp}.
+     */
+    private long stampSecond = Long.MIN_VALUE;
+    /**
+     * Строка с датой и временем последнего записанного сообщения.
+     */
+    private String stamp;
 
     /**
-     * Конструктор потока логирования. Создает файл, в который будет
-     * записываться лог, а также создает очередь для записываемых сообщений.
+     * Конструктор потока логирования с параметрами по-умолчанию:
+     * уровень {@link #LEVEL_INFO}, отбрасывание сообщений при
+     * переполнении, вывод в терминал.
      */
     public LogThread() {
-        super();
-        queue = new ConcurrentLinkedQueue<>();
-        logFile = new File(LOG_FILE);
+        this(LEVEL_INFO, OVERFLOW_DROP, true);
+    }
+
+    /**
+     * Конструктор потока логирования. Создает файл, в который будет
+     * записываться лог, а также создает буфер для записываемых сообщений.
+     *
+     * @param level          минимальный уровень записываемых сообщений
+     * @param overflowPolicy {@link #OVERFLOW_DROP} или {@link #OVERFLOW_BLOCK}
+     * @param console        {@code true}, если сообщения выводятся в терминал
+     */
+    public LogThread(int level, int overflowPolicy, boolean console) {
+        this(new File(LOG_FILE), level, overflowPolicy, console, true, "");
+    }
+
+    /**
+     * Конструктор потока, записывающего сообщения в заданный файл.
+     *
+     * @param logFile        файл, в который записываются сообщения
+     * @param level          минимальный уровень записываемых сообщений
+     * @param overflowPolicy {@link #OVERFLOW_DROP} или {@link #OVERFLOW_BLOCK}
+     * @param console        {@code true}, если сообщения выводятся в терминал
+     * @param timestamps     {@code true}, если сообщения предваряются датой и временем
+     * @param noticePrefix   префикс служебных строк потока, позволяющий
+     *                       отличить их от сообщений (например, {@code "#"}
+     *                       для строк-комментариев файла трассировки)
+     * @see ProtocolTrace
+     */
+    LogThread(File logFile, int level, int overflowPolicy, boolean console, boolean timestamps,
+              String noticePrefix) {
+        super("log");
+        this.level = level;
+        this.overflowPolicy = overflowPolicy;
+        this.console = console;
+        this.timestamps = timestamps;
+        this.noticePrefix = noticePrefix;
+        this.logFile = logFile;
+        buffer = new LogRingBuffer(DEFAULT_CAPACITY);
     }
 
     /**
@@ -51,15 +165,36 @@ public class LogThread extends Thread implements POP3Defines {
      * в файл {@code LOG_FILE}, значение которого определено в {@link POP3Defines}.
      */
     public void run() {
-        String loggingMsg = "";
-        try (PrintStream stream = new PrintStream(new FileOutputStream(logFile, false))) {
-            while (!closeThreadFlag) {
-                checkForPaused();
-                while ((loggingMsg = queue.poll()) != null) {
-                    System.out.println(loggingMsg);
-                    stream.println(loggingMsg);
+        StringBuilder batch = new StringBuilder(DEFAULT_CAPACITY);
+        long reportedDropped = 0;
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(logFile, false), 64 * 1024)) {
+            while (true) {
+                boolean closing = closeThreadFlag;
+                while (buffer.hasNext() && batch.length() < 64 * 1024) {
+                    batch.append(timestamp(buffer.peekTime()));
+                    int start = batch.length();
+                    batch.append(buffer.poll());
+                    trimLineEnd(batch, start);
+                    batch.append(System.lineSeparator());
+                }
+                long droppedNow = dropped.get();
+                if (droppedNow != reportedDropped) {
+                    batch.append(noticePrefix).append(timestamp(System.currentTimeMillis()))
+                            .append(droppedNow - reportedDropped)
+                            .append(" log messages dropped").append(System.lineSeparator());
+                    reportedDropped = droppedNow;
+                }
+                if (batch.length() > 0) {
+                    write(stream, batch);
+                    batch.setLength(0);
+                    continue;
                 }
-                pauseThread();
+                if (closing)
+                    break;
+                idle = true;
+                if (!buffer.hasNext() && !closeThreadFlag)
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                idle = false;
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -67,50 +202,144 @@ public class LogThread extends Thread implements POP3Defines {
     }
 
     /**
-     * Добавляет полученное сообщение в очередь.
+     * Отбрасывает один завершающий перевод строки сообщения.
+     *
+     * @param batch блок сообщений, заканчивающийся сообщением
+     * @param start начало сообщения в блоке
+     */
+    private static void trimLineEnd(StringBuilder batch, int start) {
+        int end = batch.length();
+        if (end > start && batch.charAt(end - 1) == '\n') {
+            end--;
+            if (end > start && batch.charAt(end - 1) == '\r')
+                end--;
+            batch.setLength(end);
+        }
+    }
+
+    /**
+     * Записывает блок сообщений в лог-файл и в терминал.
+     *
+     * @param stream поток лог-файла
+     * @param batch  блок сообщений
+     * @throws IOException если при записи произошла ошибка
+     */
+    private void write(OutputStream stream, StringBuilder batch) throws IOException {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        stream.write(bytes);
+        stream.flush();
+        if (console) {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Возвращает строку с датой и временем сообщения. Строка форматируется
+     * заново только при смене секунды.
+     *
+     * @param time время сообщения в миллисекундах
+     * @return строка с датой и временем или пустая строка, если сообщения
+     * записываются без даты
+     */
+    private String timestamp(long time) {
+        if (!timestamps)
+            return "";
+        long second = time / 1000;
+        if (second != stampSecond) {
+            stamp = new SimpleDateFormat("[dd-MM-yyyy HH:mm:ss] ").format(new Date(time));
+            stampSecond = second;
+        }
+        return stamp;
+    }
+
+    /**
+     * Добавляет сообщение уровня {@link #LEVEL_INFO} в очередь.
      * @param msg сообщение для логирования
      */
     public void log(String msg) {
-        String timestamp = new SimpleDateFormat("[dd-MM-yyyy HH:mm:ss] ").format(new Date(System.currentTimeMillis()));
-        queue.add(timestamp + msg);
-        resumeThread();
+        log(LEVEL_INFO, msg);
     }
 
     /**
-     * Проверяет, приостановлен ли поток логирования.
+     * Добавляет сообщение уровня {@link #LEVEL_TRACE} в очередь. Если
+     * построение сообщения требует затрат, то его следует предварять
+     * проверкой {@link #isTraceEnabled()}.
+     * @param msg сообщение для логирования
      */
-    private void checkForPaused() {
-        synchronized (MONITOR) {
-            if (pauseThreadFlag) {
-                try {
-                    MONITOR.wait();
-                } catch (Exception e) {
-                }
+    public void trace(String msg) {
+        log(LEVEL_TRACE, msg);
+    }
+
+    /**
+     * Добавляет сообщение уровня {@link #LEVEL_WARN} в очередь.
+     * @param msg сообщение для логирования
+     */
+    public void warn(String msg) {
+        log(LEVEL_WARN, msg);
+    }
+
+    /**
+     * Добавляет сообщение заданного уровня в очередь.
+     * @param msgLevel уровень сообщения
+     * @param msg      сообщение для логирования
+     */
+    public void log(int msgLevel, String msg) {
+        if (msgLevel < level)
+            return;
+        long time = System.currentTimeMillis();
+        while (!buffer.offer(time, msg)) {
+            if (overflowPolicy == OVERFLOW_DROP || closeThreadFlag) {
+                dropped.incrementAndGet();
+                return;
             }
+            LockSupport.unpark(this);
+            LockSupport.parkNanos(50_000L);
         }
+        if (idle)
+            LockSupport.unpark(this);
     }
 
     /**
-     * Приостанавливает поток логирования.
+     * Проверяет, записываются ли сообщения уровня {@link #LEVEL_TRACE}.
+     *
+     * @return {@code true}, если трассировка включена
      */
-    public void pauseThread(){
-        pauseThreadFlag = true;
+    public boolean isTraceEnabled() {
+        return level <= LEVEL_TRACE;
     }
 
     /**
-     * Возобновляет работу потока логирования.
+     * Возвращает количество сообщений, ожидающих записи.
+     *
+     * @return количество сообщений в буфере
      */
-    public void resumeThread() {
-        synchronized (MONITOR) {
-            pauseThreadFlag = false;
-            MONITOR.notify();
-        }
+    public int getQueueDepth() {
+        return buffer.size();
     }
 
     /**
-     * Устанавливает флаг для закрытия потока логирования.
+     * Возвращает количество сообщений, отброшенных из-за переполнения буфера.
+     *
+     * @return количество отброшенных сообщений
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Закрывает поток логирования. Сообщения, уже находящиеся в буфере,
+     * записываются; вызывающий поток ждёт этого не дольше секунды.
      */
     public void closeThread() {
         closeThreadFlag = true;
+        LockSupport.unpark(this);
+        if (Thread.currentThread() != this && isAlive()) {
+            try {
+                join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
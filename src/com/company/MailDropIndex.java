@@ -0,0 +1,405 @@
+package com.company;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Индекс почтового ящика пользователя, хранящийся в файле {@code INDEX_FILE}
+ * в директории пользователя.
+ * <p>Для каждого письма индекс хранит имя директории письма, размер
+ * письма в байтах, уникальный идентификатор, длину заголовка
+ * подготовленного письма вместе со временем изменения подготовленного
+ * файла, для которого она вычислена (если режим подготовленных писем
+ * включён), и время последнего изменения директории письма. При открытии индекса сравниваются только имена и
+ * время изменения директорий писем, поэтому для писем, не изменившихся
+ * с момента предыдущего входа, файлы писем не читаются. Новые и
+ * изменённые письма добавляются в индекс, а удалённые исключаются из
+ * него, после чего индекс сохраняется.
+ * <p>Индекс помнит, были ли размеры писем вычислены для подготовленных
+ * файлов (см. {@link MessageRenderer}). Если режим сервера изменился, то
+ * индекс строится заново.
+ * <p>Письма в индексе упорядочены по имени директории, что определяет
+ * порядковые номера писем в сессии.
+ * <p>Новые и изменённые письма читаются параллельно в общем для всех
+ * сессий пуле потоков, размер которого ограничен (см.
+ * {@link #setLoadParallelism(int)}). Поток сессии сам читает письма
+ * наравне с потоками пула, поэтому вход пользователя не ждёт
+ * освобождения пула, занятого другими сессиями.
+ * @see POP3Letter
+ */
+public class MailDropIndex implements POP3Defines {
+    /**
+     * Сигнатура файла индекса.
+     */
+    private static final int MAGIC = 0x50334958;
+    /**
+     * Версия формата файла индекса.
+     */
+    private static final int VERSION = 5;
+    /**
+     * Общий пул потоков для чтения писем. Равен {@code null}, если письма
+     * читаются только потоком сессии.
+     */
+    private static volatile ForkJoinPool loadPool;
+    /**
+     * Директория пользователя.
+     */
+    private final File userHome;
+    /**
+     * Файл индекса.
+     */
+    private final File indexFile;
+    /**
+     * Записи индекса, упорядоченные по имени директории письма.
+     */
+    private final Map<String, Entry> entries = new TreeMap<>();
+    /**
+     * Флаг, показывающий, что индекс изменён и должен быть сохранён.
+     */
+    private boolean dirty;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param userHome директория пользователя
+     */
+    private MailDropIndex(File userHome) {
+        this.userHome = userHome;
+        indexFile = new File(userHome, INDEX_FILE);
+    }
+
+    /**
+     * Задаёт количество потоков общего пула, в котором читаются письма.
+     *
+     * @param parallelism количество потоков; при значении меньше
+     *                    {@code 2} письма читаются только потоком сессии
+     */
+    public static void setLoadParallelism(int parallelism) {
+        loadPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Открывает индекс почтового ящика, приводит его в соответствие
+     * с содержимым директории пользователя и сохраняет, если он изменился.
+     *
+     * @param userHome директория пользователя
+     * @return актуальный индекс почтового ящика
+     */
+    public static MailDropIndex open(File userHome) {
+        MailDropIndex index = new MailDropIndex(userHome);
+        index.read();
+        index.refresh();
+        if (index.dirty)
+            index.save();
+        return index;
+    }
+
+    /**
+     * Читает индекс из файла. Если файл отсутствует или повреждён,
+     * то индекс будет построен заново.
+     */
+    private void read() {
+        if (!indexFile.isFile()) {
+            dirty = true;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readBoolean() != MessageRenderer.isEnabled()) {
+                dirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long stamp = in.readLong();
+                long size = in.readLong();
+                String uniqueId = in.readUTF();
+                long headerLength = in.readLong();
+                long headerStamp = in.readLong();
+                entries.put(name, new Entry(name, stamp, size, uniqueId, headerLength, headerStamp));
+            }
+        } catch (IOException e) {
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Добавляет в индекс новые и изменённые письма и исключает
+     * письма, директории которых больше не существуют. Письма, которые не
+     * удалось прочитать, в индекс не попадают и читаются заново при
+     * следующем открытии индекса.
+     */
+    private void refresh() {
+        File[] letterDirs = userHome.listFiles(File::isDirectory);
+        Set<String> present = new HashSet<>();
+        List<File> changed = new ArrayList<>();
+        if (letterDirs != null) {
+            for (File letterDir : letterDirs) {
+                String name = letterDir.getName();
+                present.add(name);
+                long stamp = letterDir.lastModified();
+                Entry entry = entries.get(name);
+                if (entry == null || entry.stamp != stamp)
+                    changed.add(letterDir);
+            }
+        }
+        Entry[] scanned = scanAll(changed);
+        for (int i = 0; i < scanned.length; i++) {
+            if (scanned[i] != null)
+                entries.put(scanned[i].name, scanned[i]);
+            else
+                entries.remove(changed.get(i).getName());
+            dirty = true;
+        }
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if (!present.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Читает письма. Письма распределяются между потоком сессии и
+     * потоками общего пула по одному; каждый результат записывается в
+     * ячейку с номером письма в списке, поэтому порядок результатов не
+     * зависит от порядка чтения.
+     *
+     * @param letterDirs директории писем
+     * @return записи индекса в порядке директорий; {@code null} для писем,
+     * которые не удалось прочитать
+     */
+    private static Entry[] scanAll(List<File> letterDirs) {
+        int count = letterDirs.size();
+        Entry[] result = new Entry[count];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+                try {
+                    result[i] = scan(letterDirs.get(i));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        ForkJoinPool pool = loadPool;
+        if (pool != null) {
+            int helpers = Math.min(pool.getParallelism(), count - 1);
+            for (int i = 0; i < helpers; i++)
+                pool.execute(worker);
+        }
+        worker.run();
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return result;
+    }
+
+    /**
+     * Вычисляет размер и уникальный идентификатор письма. Время изменения
+     * директории письма читается после вычисления размера, так как при
+     * этом в директории может быть создан подготовленный файл письма.
+     * Письмо, которое не удалось собрать или записать целиком, имеет
+     * нулевой или отрицательный размер (см. {@link POP3Letter#getSize()})
+     * и в индекс не добавляется.
+     *
+     * @param letterDir директория письма
+     * @return запись индекса или {@code null}, если письмо не удалось прочитать
+     */
+    private static Entry scan(File letterDir) {
+        POP3Letter letter = new POP3Letter(POP3_MSG_STATUS_INITIAL, letterDir);
+        String uniqueId = letter.getUniqueId();
+        if (uniqueId == null)
+            uniqueId = letterDir.getName();
+        long size = letter.getSize();
+        if (size <= 0)
+            return null;
+        long headerLength = letter.getHeaderLength();
+        return new Entry(letterDir.getName(), letterDir.lastModified(), size, uniqueId, headerLength,
+                letter.getHeaderStamp());
+    }
+
+    /**
+     * Исключает письмо из индекса. Изменения записываются в файл
+     * методом {@link #save()}.
+     *
+     * @param letterDir директория письма
+     */
+    public void remove(File letterDir) {
+        if (entries.remove(letterDir.getName()) != null)
+            dirty = true;
+    }
+
+    /**
+     * Сохраняет индекс, если он был изменён. Индекс записывается во
+     * временный файл, который затем заменяет прежний файл индекса, поэтому
+     * другие сессии никогда не прочитают частично записанный индекс.
+     */
+    public void save() {
+        if (!dirty)
+            return;
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(INDEX_FILE, ".tmp", userHome);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(MessageRenderer.isEnabled());
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.stamp);
+                    out.writeLong(entry.size);
+                    out.writeUTF(entry.uniqueId);
+                    out.writeLong(entry.headerLength);
+                    out.writeLong(entry.headerStamp);
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    /**
+     * Возвращает письма почтового ящика в порядке их номеров.
+     *
+     * @return записи индекса
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Запись индекса, описывающая одно письмо.
+     */
+    public static class Entry {
+        /**
+         * Имя директории письма.
+         */
+        private final String name;
+        /**
+         * Время последнего изменения директории письма.
+         */
+        private final long stamp;
+        /**
+         * Размер письма в байтах.
+         */
+        private final long size;
+        /**
+         * Уникальный идентификатор письма.
+         */
+        private final String uniqueId;
+        /**
+         * Длина заголовка подготовленного письма или {@code -1}.
+         */
+        private final long headerLength;
+        /**
+         * Время изменения подготовленного файла, для которого вычислена
+         * длина заголовка.
+         */
+        private final long headerStamp;
+
+        /**
+         * Конструктор класса.
+         *
+         * @param name         имя директории письма
+         * @param stamp        время последнего изменения директории письма
+         * @param size         размер письма в байтах
+         * @param uniqueId     уникальный идентификатор письма
+         * @param headerLength длина заголовка подготовленного письма или {@code -1}
+         * @param headerStamp  время изменения подготовленного файла, для
+         *                     которого вычислена длина заголовка
+         */
+        Entry(String name, long stamp, long size, String uniqueId, long headerLength, long headerStamp) {
+            this.name = name;
+            this.stamp = stamp;
+            this.size = size;
+            this.uniqueId = uniqueId;
+            this.headerLength = headerLength;
+            this.headerStamp = headerStamp;
+        }
+
+        /**
+         * Возвращает имя директории письма.
+         *
+         * @return имя директории письма
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Возвращает размер письма.
+         *
+         * @return размер письма в байтах
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Возвращает уникальный идентификатор письма.
+         *
+         * @return уникальный идентификатор письма
+         */
+        public String getUniqueId() {
+            return uniqueId;
+        }
+
+        /**
+         * Возвращает длину заголовка подготовленного письма.
+         *
+         * @return длина заголовка в байтах или {@code -1}
+         */
+        public long getHeaderLength() {
+            return headerLength;
+        }
+
+        /**
+         * Возвращает время изменения подготовленного файла, для которого
+         * вычислена длина заголовка.
+         *
+         * @return время изменения в миллисекундах
+         */
+        public long getHeaderStamp() {
+            return headerStamp;
+        }
+    }
+}
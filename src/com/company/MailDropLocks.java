@@ -0,0 +1,263 @@
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Таблица блокировок почтовых ящиков: в каждый момент ящик пользователя
+ * может быть открыт только одной сессией (RFC 1939, раздел 8).
+ * <p>Имена пользователей распределяются по {@value #STRIPES} полосам,
+ * каждая из которых защищена собственной блокировкой
+ * {@link ReentrantLock}, поэтому входы разных пользователей почти не
+ * конкурируют за одну блокировку. Если ящик уже открыт, то сессия либо
+ * сразу получает отказ, либо ждёт его освобождения не дольше заданного
+ * времени. Ожидание не использует монитор {@code synchronized}, поэтому
+ * в режиме {@link ServerConfig#MODE_VIRTUAL} ожидающий виртуальный поток
+ * не закрепляется за потоком-носителем. В режиме {@link ServerConfig#MODE_NIO}
+ * ожидание заняло бы поток-реактор, поэтому {@link ServerConfig} допускает
+ * в нём только немедленный отказ.
+ * <p>Для защиты от других процессов, работающих с той же директорией
+ * {@code USERS_DIRECTORY}, дополнительно может захватываться блокировка
+ * {@link FileLock} файла {@code LOCK_FILE} в директории пользователя.
+ * Файловая блокировка захватывается только после блокировки в таблице,
+ * поэтому внутри процесса она не перекрывается.
+ */
+public final class MailDropLocks implements POP3Defines {
+    /**
+     * Количество полос таблицы. Степень двойки.
+     */
+    private static final int STRIPES = 64;
+    /**
+     * Таблица, общая для всех сессий.
+     */
+    private static volatile MailDropLocks shared = new MailDropLocks(0, false);
+    /**
+     * Полосы таблицы, каждая из которых хранит имена пользователей,
+     * ящики которых открыты.
+     */
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /**
+     * Время ожидания освобождения ящика в миллисекундах.
+     */
+    private final long waitMillis;
+    /**
+     * Флаг, показывающий, захватываются ли файловые блокировки.
+     */
+    private final boolean fileLocks;
+    /**
+     * Количество открытых ящиков.
+     */
+    private final LongAdder held = new LongAdder();
+    /**
+     * Количество отказов из-за того, что ящик уже открыт.
+     */
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * Конструктор класса.
+     *
+     * @param waitMillis время ожидания освобождения ящика в миллисекундах;
+     *                   {@code 0} - немедленный отказ
+     * @param fileLocks  {@code true}, чтобы захватывать файловые блокировки
+     */
+    public MailDropLocks(long waitMillis, boolean fileLocks) {
+        this.waitMillis = waitMillis;
+        this.fileLocks = fileLocks;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Создаёт общую таблицу блокировок.
+     *
+     * @param waitMillis время ожидания освобождения ящика в миллисекундах;
+     *                   {@code 0} - немедленный отказ
+     * @param fileLocks  {@code true}, чтобы захватывать файловые блокировки
+     */
+    public static void configure(long waitMillis, boolean fileLocks) {
+        shared = new MailDropLocks(waitMillis, fileLocks);
+    }
+
+    /**
+     * Возвращает общую таблицу блокировок.
+     *
+     * @return таблица блокировок
+     */
+    public static MailDropLocks shared() {
+        return shared;
+    }
+
+    /**
+     * Блокирует почтовый ящик пользователя.
+     *
+     * @param userName имя пользователя
+     * @param userHome директория пользователя
+     * @return блокировка или {@code null}, если ящик открыт другой сессией
+     * или другим процессом
+     */
+    public Lock acquire(String userName, File userHome) {
+        Stripe stripe = stripes[(userName.hashCode() * 0x9E3779B9 >>> 16) & (STRIPES - 1)];
+        stripe.lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (stripe.users.contains(userName)) {
+                if (remaining <= 0) {
+                    refused.increment();
+                    return null;
+                }
+                try {
+                    remaining = stripe.released.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    refused.increment();
+                    return null;
+                }
+            }
+            stripe.users.add(userName);
+        } finally {
+            stripe.lock.unlock();
+        }
+        Lock lock = new Lock(userName, stripe);
+        if (fileLocks && !lock.lockFile(new File(userHome, LOCK_FILE))) {
+            lock.release();
+            refused.increment();
+            return null;
+        }
+        lock.counted = true;
+        held.increment();
+        return lock;
+    }
+
+    /**
+     * Возвращает количество открытых почтовых ящиков.
+     *
+     * @return количество блокировок
+     */
+    public long getHeldCount() {
+        return held.sum();
+    }
+
+    /**
+     * Возвращает количество отказов открыть почтовый ящик, уже открытый
+     * другой сессией или другим процессом.
+     *
+     * @return количество отказов
+     */
+    public long getRefusedCount() {
+        return refused.sum();
+    }
+
+    /**
+     * Полоса таблицы блокировок.
+     */
+    private static class Stripe {
+        /**
+         * Имена пользователей, ящики которых открыты.
+         */
+        final Set<String> users = new HashSet<>();
+        /**
+         * Блокировка, защищающая {@link #users}.
+         */
+        final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Условие, о котором сообщается при освобождении любого ящика полосы.
+         */
+        final Condition released = lock.newCondition();
+    }
+
+    /**
+     * Блокировка почтового ящика, принадлежащая сессии.
+     */
+    public final class Lock {
+        /**
+         * Имя пользователя, ящик которого заблокирован.
+         */
+        private final String userName;
+        /**
+         * Полоса таблицы, в которой хранится имя пользователя.
+         */
+        private final Stripe stripe;
+        /**
+         * Канал файла блокировки или {@code null}, если файловая блокировка
+         * не захватывалась.
+         */
+        private FileChannel channel;
+        /**
+         * Файловая блокировка или {@code null}, если она не захвачена.
+         */
+        private FileLock fileLock;
+        /**
+         * Флаг, показывающий, учтена ли блокировка в количестве открытых ящиков.
+         */
+        private boolean counted;
+        /**
+         * Флаг, показывающий, освобождён ли ящик.
+         */
+        private boolean released;
+
+        /**
+         * Конструктор класса. Имя пользователя должно быть уже добавлено в
+         * полосу таблицы.
+         *
+         * @param userName имя пользователя
+         * @param stripe   полоса таблицы
+         */
+        private Lock(String userName, Stripe stripe) {
+            this.userName = userName;
+            this.stripe = stripe;
+        }
+
+        /**
+         * Захватывает файловую блокировку, не ожидая её освобождения.
+         *
+         * @param file файл блокировки
+         * @return {@code true}, если блокировка захвачена
+         */
+        private boolean lockFile(File file) {
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                fileLock = channel.tryLock();
+            } catch (IOException | OverlappingFileLockException e) {
+                fileLock = null;
+            }
+            return fileLock != null;
+        }
+
+        /**
+         * Освобождает почтовый ящик. Файловая блокировка снимается
+         * закрытием канала. Повторные вызовы ничего не делают.
+         */
+        public void release() {
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
+            }
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            if (counted)
+                held.decrement();
+            stripe.lock.lock();
+            try {
+                stripe.users.remove(userName);
+                stripe.released.signalAll();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+}
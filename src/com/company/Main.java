@@ -1,10 +1,13 @@
 package com.company;
 
+import javax.management.JMException;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Класс, используемый для запуска сервера, настройки сокетов и приема соединиений.
@@ -15,60 +18,148 @@ public class Main implements POP3Defines {
      */
     private static LogThread logThread;
     /**
-     * Список потоков с подключёныыми клиентами.
+     * Реестр подключённых клиентов.
      */
-    private static List<ConnectionThread> threadList;
+    private static SessionRegistry registry;
+    /**
+     * Пул потоков сессий клиентов.
+     */
+    private static SessionExecutor sessionExecutor;
+    /**
+     * Сервер, работающий в неблокирующем режиме.
+     */
+    private static NioServer nioServer;
+    /**
+     * Поток, отдающий метрики сервера.
+     */
+    private static MetricsServer metricsServer;
     /**
      * Показывает статус сервера.
      */
-    private static boolean isRunning = true;
+    private static volatile boolean isRunning = true;
 
     /**
      * Точка входа серверного преложения.
      * @param args аргументы командной строки, переданные при запуске
+     * @see ServerConfig
      */
     public static void main(String[] args) {
-        threadList = new ArrayList<>();
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        registry = new SessionRegistry();
+        MessageRenderer.setEnabled(config.isPrerender());
+        LetterCache.configure(config.getCacheSize());
+        MailDropIndex.setLoadParallelism(config.getLoadParallelism());
+        MailDropLocks.configure(config.getLockWait(), config.isLockFiles());
+        if (config.getTraceFile() != null)
+            ProtocolTrace.configure(new File(config.getTraceFile()), config.getTraceSample(), config.getTraceSlow());
+        ThreadFactory sessionThreadFactory = null;
+        try {
+            if (config.getMode().equals(ServerConfig.MODE_VIRTUAL))
+                sessionThreadFactory = VirtualThreads.newFactory("session-");
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
         try {
-            ServerSocket serverSocket = new ServerSocket(POP3_PORT);
-            logThread = new LogThread();
+            logThread = new LogThread(config.getLogLevel(), config.getLogOverflow(), config.isLogConsole());
+            if (config.getMode().equals(ServerConfig.MODE_NIO))
+                nioServer = new NioServer(config.getPort(), config.getReactorCount(), config.getMaxSessions(),
+                        logThread, registry);
+            else
+                sessionExecutor = new SessionExecutor(config.getMaxSessions(), config.getQueueLength(),
+                        sessionThreadFactory);
+            if (config.getAdminPort() > 0)
+                metricsServer = new MetricsServer(config.getAdminPort(), logThread);
+            CredentialStore.start(logThread);
+            try {
+                new ServerMonitor(registry, logThread).register();
+            } catch (JMException e) {
+                System.err.println("Cannot register JMX monitor: " + e.getMessage());
+            }
 
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
                     logThread.log("SIGINT Shutting down");
-                    if (!threadList.isEmpty()){
-                        for (ConnectionThread thread : threadList)
-                            thread.endSession();
-                    }
                     isRunning = false;
+                    registry.setAcceptPaused(false);
+                    if (metricsServer != null)
+                        metricsServer.close();
+                    if (nioServer != null)
+                        nioServer.shutdown();
+                    registry.endAll();
+                    if (sessionExecutor != null)
+                        sessionExecutor.shutdown(1000);
+                    if (LetterCache.shared() != null)
+                        logThread.log(LetterCache.shared().toString());
+                    ProtocolTrace.close();
+                    CredentialStore.shared().close();
                     logThread.closeThread();
                 }
             });
             logThread.start();
+            if (metricsServer != null)
+                metricsServer.start();
             logThread.log("Server is online and waiting new clients.\n");
-            acceptConnection(serverSocket);
-            serverSocket.close();
+            if (nioServer != null) {
+                nioServer.serve();
+            } else {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(config.getPort()));
+                acceptConnection(serverChannel);
+                serverChannel.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Принимает новое соединение, запускаетс новый поток для работы
-     * с клиентом.
-     * @param serverSocket сокет сервера
-     * @see ServerSocket
+     * Принимает новое соединение и передаёт его пулу потоков сессий.
+     * В режиме {@link ServerConfig#MODE_VIRTUAL} код
+     * {@link ConnectionThread#run()} выполняется в виртуальном потоке.
+     * Если пул и очередь заполнены, то клиент получает ответ
+     * {@code SERVER_BUSY_RESPONSE}, и соединение закрывается.
+     * <p>Соединения принимаются через блокирующий канал, поэтому сокет
+     * клиента имеет канал, в который письма передаются с помощью
+     * {@link java.nio.channels.FileChannel#transferTo}.
+     * @param serverChannel канал сервера
+     * @see ServerSocketChannel
      */
-    private static void acceptConnection(ServerSocket serverSocket) {
+    private static void acceptConnection(ServerSocketChannel serverChannel) {
         try {
             while (isRunning) {
-                Socket socket = serverSocket.accept();
-                ConnectionThread connectionThread = new ConnectionThread(socket, logThread);
-                connectionThread.start();
-                threadList.add(connectionThread);
+                Socket socket = serverChannel.accept().socket();
+                registry.recordAccept();
+                registry.awaitAccepting();
+                ConnectionThread connectionThread = new ConnectionThread(socket, logThread, registry);
+                if (!sessionExecutor.submit(connectionThread))
+                    reject(socket);
             }
-            serverSocket.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Отклоняет соединение, которое сервер не может обслужить.
+     *
+     * @param socket сокет клиента
+     */
+    private static void reject(Socket socket) {
+        logThread.log("Server is busy, rejecting " + socket.getRemoteSocketAddress());
+        try {
+            socket.getOutputStream().write(SERVER_BUSY_RESPONSE.getBytes(StandardCharsets.US_ASCII));
+            socket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,27 +1,24 @@
 package com.company;
 
-import com.sun.xml.internal.messaging.saaj.packaging.mime.internet.MimeUtility;
 import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.dom.BinaryBody;
 import org.apache.james.mime4j.dom.Entity;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.dom.address.Mailbox;
 import org.apache.james.mime4j.message.MessageBuilder;
 import org.apache.james.mime4j.message.MultipartBuilder;
 import org.apache.james.mime4j.message.SingleBodyBuilder;
-import org.apache.james.mime4j.stream.NameValuePair;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import org.apache.james.mime4j.storage.MemoryStorageProvider;
+import org.apache.james.mime4j.storage.MultiReferenceStorage;
+import org.apache.james.mime4j.storage.Storage;
+import org.apache.james.mime4j.storage.StorageBodyFactory;
 
 import java.io.*;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Created by Terenfear on 03.03.2017.
@@ -31,12 +28,22 @@ import java.util.Locale;
 /**
  * Класс, используемый для составления письма, представленного по спецификации MIME.
  * <p>В данной реализации сервера каждое письмо представлено в виде набора файлов, хранящихся в отдельной директории. Инофрмация об иерархии частей письма и заголовках этих частей хранится в файле {@link #PARTS_JSON} в этой же директории.
+ * <p>Письмо собирается по структуре, скомпилированной из файлов JSON в двоичный файл (см. {@link LetterManifest}).
+ * <p>Прикреплённые файлы размером не меньше {@link #MEMORY_THRESHOLD} байт не читаются в память: содержимое такой части письма читается из исходного файла только во время записи письма.
  */
 public class MessageAssembler {
     /**
      * Имя файла в формате <i>.json</i>, хранящего информацию о структуре письма.
      */
     public final static String PARTS_JSON = "parts.json";
+    /**
+     * Размер прикреплённого файла, начиная с которого его содержимое не хранится в памяти.
+     */
+    public final static int MEMORY_THRESHOLD = 64 * 1024;
+    /**
+     * Фабрика содержимого прикреплённых файлов.
+     */
+    private static final StorageBodyFactory BODY_FACTORY = new StorageBodyFactory(new MemoryStorageProvider(), DecodeMonitor.SILENT);
     /**
      * Текст содержимого письма.
      */
@@ -57,62 +64,64 @@ public class MessageAssembler {
      * @return собранное из файлов письмо
      */
     public Message assemble(File dir) {
-        Message message = null;
-        attachments = new ArrayList<>();
-        File[] jsons = dir.listFiles((dir2, name) -> name.equals(PARTS_JSON));
-        if (jsons != null && jsons.length == 1) {
-            JSONObject parsedJSON = parseJSON(jsons[0]);
-            if (parsedJSON != null) {
-                try {
-                    message = (Message) assembleEntity(parsedJSON, dir, true);
-                } catch (org.apache.james.mime4j.dom.field.ParseException | java.text.ParseException | UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                }
-
-            }
+        long start = System.nanoTime();
+        try {
+            attachments = new ArrayList<>();
+            LetterManifest manifest = LetterManifest.open(dir);
+            if (manifest == null)
+                return null;
+            uniqueId = manifest.getUniqueId();
+            return (Message) assembleEntity(manifest, manifest.getRoot(), dir, true);
+        } finally {
+            ServerMetrics.ASSEMBLY.record(System.nanoTime() - start);
         }
-        return message;
     }
 
     /**
-     * Собирает письмо или его часть в виде объекта класса {@link Entity} по описанной в JSON-объекте структуре, исользуя данные из указанного каталога.
+     * Читает уникальный идентификатор письма из структуры письма,
+     * не собирая письмо целиком.
      *
-     * @param jsonIn    JSON-объект, содержащий структуру части письма или его части
+     * @param dir директория, содержащая файлы письма
+     * @return уникальный идентификатор письма либо {@code null}, если его не удалось прочитать
+     */
+    public String readUniqueId(File dir) {
+        LetterManifest manifest = LetterManifest.open(dir);
+        uniqueId = manifest != null ? manifest.getUniqueId() : null;
+        return uniqueId;
+    }
+
+    /**
+     * Собирает письмо или его часть в виде объекта класса {@link Entity} по структуре письма, исользуя данные из указанного каталога.
+     *
+     * @param manifest  структура письма
+     * @param part      собираемая часть письма
      * @param dir       каталог, содержащий необходимые файлы
      * @param isMessage является ли собираемый объект письмом или частью письма
      * @return письмо или его часть в виде объекта класса {@link Entity}
      */
-    private Entity assembleEntity(JSONObject jsonIn, File dir, boolean isMessage) throws org.apache.james.mime4j.dom.field.ParseException, java.text.ParseException, UnsupportedEncodingException {
-        Entity entity = null;
+    private Entity assembleEntity(LetterManifest manifest, LetterManifest.Part part, File dir, boolean isMessage) {
         MessageBuilder messageBuilder = MessageBuilder.create();
-        JSONObject jsonHeader = (JSONObject) jsonIn.get("header");
         if (isMessage)
-            fillMainHeader(jsonHeader, messageBuilder, dir);
-        fillContentTransferEncoding(jsonHeader, messageBuilder);
-        fillContentType(jsonHeader, messageBuilder);
-        fillContentDisposition(jsonHeader, messageBuilder);
-        if (isMultipart(jsonHeader)) {
-            JSONArray jsonBodyArray = (JSONArray) jsonIn.get("body");
-            MultipartBuilder mBuilder = MultipartBuilder.create(getContentSubtype(jsonHeader));
-            for (Object object : jsonBodyArray) {
-                JSONObject jsonPart = (JSONObject) object;
-                Entity assembledPart = assembleEntity(jsonPart, dir, false);
+            fillMainHeader(manifest, messageBuilder);
+        messageBuilder.setContentTransferEncoding(part.getTransferEncoding());
+        messageBuilder.setContentType(part.getMimeType());
+        if (part.getDispositionType() != null)
+            messageBuilder.setContentDisposition(part.getDispositionType(), part.getDispositionFilename());
+        if (part.isMultipart()) {
+            MultipartBuilder mBuilder = MultipartBuilder.create(part.getSubtype());
+            for (LetterManifest.Part child : part.getChildren()) {
+                Entity assembledPart = assembleEntity(manifest, child, dir, false);
                 if (assembledPart != null)
                     mBuilder.addBodyPart(assembledPart);
             }
-            if (mBuilder == null) {
-                System.err.println("Error while assembling multipart in " + dir);
-                return null;
-            }
             messageBuilder.setBody(mBuilder.build());
         } else {
-            String bodyFileName = (String) jsonIn.get("body");
-            File bodyFile = new File(dir + File.separator + bodyFileName);
+            File bodyFile = new File(dir, part.getBodyFile());
             if (!bodyFile.exists() || !bodyFile.isFile()) {
                 System.err.println("No body file in" + bodyFile);
                 return null;
             }
-            String charset = getContentCharset(jsonHeader);
+            String charset = part.getCharset();
             if (charset != null) {
                 try (Reader in = new InputStreamReader(new FileInputStream(bodyFile), charset)) {
                     SingleBodyBuilder sBuilder = SingleBodyBuilder.create();
@@ -123,6 +132,14 @@ public class MessageAssembler {
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+            } else if (bodyFile.length() >= MEMORY_THRESHOLD) {
+                try {
+                    BinaryBody body = BODY_FACTORY.binaryBody(new MultiReferenceStorage(new SourceFileStorage(bodyFile)));
+                    messageBuilder.setBody(body);
+                    attachments.add(bodyFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             } else
                 try (FileInputStream in = new FileInputStream(bodyFile)) {
                     SingleBodyBuilder sBuilder = SingleBodyBuilder.create();
@@ -133,145 +150,30 @@ public class MessageAssembler {
                     e.printStackTrace();
                 }
         }
-        entity = messageBuilder.build();
-        return entity;
+        return messageBuilder.build();
     }
 
     /**
      * Заполняет главный заголовок письма.
      *
-     * @param jsonHeader JSON-объект, содержащий полную информацию о заголовке
-     * @param builder    объект, строящий письмо
-     * @param dir        каталог, содержащий необходимые файлы
+     * @param manifest структура письма
+     * @param builder  объект, строящий письмо
      */
-    private void fillMainHeader(JSONObject jsonHeader, MessageBuilder builder, File dir) throws org.apache.james.mime4j.dom.field.ParseException, java.text.ParseException {
-        String mainHeaderName = (String) jsonHeader.get("message_header_file");
-        File mainHeaderFile = new File(dir + File.separator + mainHeaderName);
-        if (!mainHeaderFile.exists() || !mainHeaderFile.isFile()) {
-            System.err.println("No header file in" + mainHeaderFile);
+    private void fillMainHeader(LetterManifest manifest, MessageBuilder builder) {
+        if (!manifest.hasMainHeader())
             return;
-        }
-        JSONObject jsonMainHeader = parseJSON(mainHeaderFile);
-        JSONArray fromArray = (JSONArray) jsonMainHeader.get("from");
-        JSONArray toArray = (JSONArray) jsonMainHeader.get("to");
         List<Mailbox> fromMBoxes = new ArrayList<>();
         List<Mailbox> toMBoxes = new ArrayList<>();
-        fromArray.forEach((Object object) -> {
-            JSONObject jsonObject = (JSONObject) object;
-            fromMBoxes.add(new Mailbox((String) jsonObject.get("name"), (String) jsonObject.get("local_part"), (String) jsonObject.get("domain")));
-        });
-        toArray.forEach((Object object) -> {
-            JSONObject jsonObject = (JSONObject) object;
-            toMBoxes.add(new Mailbox((String) jsonObject.get("name"), (String) jsonObject.get("local_part"), (String) jsonObject.get("domain")));
-        });
+        for (LetterManifest.Address address : manifest.getFrom())
+            fromMBoxes.add(new Mailbox(address.getName(), address.getLocalPart(), address.getDomain()));
+        for (LetterManifest.Address address : manifest.getTo())
+            toMBoxes.add(new Mailbox(address.getName(), address.getLocalPart(), address.getDomain()));
         builder.setFrom(fromMBoxes);
         builder.setTo(toMBoxes);
-        DateFormat df = new SimpleDateFormat("EEE MMM dd kk:mm:ss z yyyy", Locale.ENGLISH);
-        String date = (String) jsonMainHeader.get("date");
-        builder.setDate(df.parse(date));
-        String subject = (String) jsonMainHeader.get("subject");
-        builder.setSubject(subject);
-        String messageId = (String) jsonMainHeader.get("message_id");
-        builder.setMessageId(messageId);
-        uniqueId = (String) jsonMainHeader.get("unique_id");
-    }
-
-    /**
-     * Заполняет часть заголовка, отвечающую за тип содержимого письма или его части.
-     *
-     * @param jsonHeader JSON-объект, содержащий информацию о типе содержимого
-     * @param builder    объект, конструирующий письмо
-     */
-    private void fillContentType(JSONObject jsonHeader, MessageBuilder builder) {
-        JSONObject jsonCType = (JSONObject) jsonHeader.get("content_type");
-        String mimeType = (String) jsonCType.get("mime_type");
-        JSONObject jsonCTparams = (JSONObject) jsonCType.get("params");
-        List<NameValuePair> pairs = new ArrayList<>();
-        jsonCTparams.forEach((key, value) -> {
-            try {
-                pairs.add(new NameValuePair((String) key, MimeUtility.encodeText((String) value, String.valueOf(StandardCharsets.UTF_8), "B")));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-        });
-        builder.setContentType(mimeType);
-    }
-
-    /**
-     * Заполняет часть заголовка, отвечающую за расположение содержимого письма или его части.
-     *
-     * @param jsonHeader JSON-объект, содержащий информацию о расположении содержимого
-     * @param builder    объект, конструирующий письмо
-     */
-    private void fillContentDisposition(JSONObject jsonHeader, MessageBuilder builder) throws UnsupportedEncodingException {
-        JSONObject jsonCDisp = (JSONObject) jsonHeader.get("content_disposition");
-        if (jsonCDisp != null) {
-            String dispType = (String) jsonCDisp.get("type");
-            String dispFilename = (String) jsonCDisp.get("filename");
-            dispFilename = MimeUtility.encodeWord(dispFilename, String.valueOf(StandardCharsets.UTF_8), "B");
-            builder.setContentDisposition(dispType, dispFilename);
-        }
-    }
-
-    /**
-     * Заполняет часть заголовка, отвечающую за шифрование содержимого письма или его части.
-     *
-     * @param jsonHeader JSON-объект, содержащий информацию о шифровании содержимого
-     * @param builder    объект, конструирующий письмо
-     */
-    private void fillContentTransferEncoding(JSONObject jsonHeader, MessageBuilder builder) {
-        String encoding = (String) jsonHeader.get("content_transfer_encoding");
-        builder.setContentTransferEncoding(encoding);
-    }
-
-    /**
-     * Проверяет, является ли письмо или его часть составным объектом.
-     *
-     * @param jsonHeader JSON-объект, содержащий заголовок письма или его части.
-     * @return {@code true} если является, иначе {@code false}
-     */
-    private boolean isMultipart(JSONObject jsonHeader) {
-        JSONObject jsonCType = (JSONObject) jsonHeader.get("content_type");
-        return (boolean) jsonCType.get("is_multipart");
-    }
-
-    /**
-     * Возвращает кодировку текстового содержимого письма или его части.
-     * @param jsonHeader JSON-объект, содержащий заголовок письма или его части
-     * @return кодировка текстового содержимого. Если передана не текстовая часть, то возвращает {@code null}
-     */
-    private String getContentCharset(JSONObject jsonHeader) {
-        JSONObject jsonCType = (JSONObject) jsonHeader.get("content_type");
-        JSONObject jsonCTparams = (JSONObject) jsonCType.get("params");
-        return (String) jsonCTparams.get("charset");
-    }
-
-    /**
-     * Возвращает подтип содержимого письма или его части.
-     * @param jsonHeader JSON-объект, содержащий заголовок письма или его части
-     * @return подтип текстового содержимого
-     */
-    private String getContentSubtype(JSONObject jsonHeader) {
-        JSONObject jsonCType = (JSONObject) jsonHeader.get("content_type");
-        String mimeType = (String) jsonCType.get("mime_type");
-        return mimeType.split("/")[1];
-    }
-
-    /**
-     * Получает JSON-объект из файла.
-     *
-     * @param file файл, содержащий JSON-объект
-     * @return данные в виде JSON-объекта
-     */
-    private JSONObject parseJSON(File file) {
-        JSONObject jsonObject = null;
-        JSONParser parser = new JSONParser();
-        try (Reader fileReader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
-            jsonObject = (JSONObject) parser.parse(fileReader);
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
-        }
-        return jsonObject;
+        if (manifest.getDate() >= 0)
+            builder.setDate(new Date(manifest.getDate()));
+        builder.setSubject(manifest.getSubject());
+        builder.setMessageId(manifest.getMessageId());
     }
 
     /**
@@ -300,4 +202,28 @@ public class MessageAssembler {
     public String getUniqueId() {
         return uniqueId;
     }
+
+    /**
+     * Хранилище содержимого части письма, которым является исходный файл
+     * письма. При освобождении письма файл не удаляется.
+     */
+    private static class SourceFileStorage implements Storage {
+        /**
+         * Исходный файл.
+         */
+        private final File file;
+
+        SourceFileStorage(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        public void delete() {
+        }
+    }
 }
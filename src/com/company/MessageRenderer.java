@@ -0,0 +1,130 @@
+package com.company;
+
+import org.apache.james.mime4j.dom.Message;
+import org.apache.james.mime4j.message.DefaultMessageWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Хранит письма в подготовленном для передачи виде.
+ * <p>Если режим включён, то каждое письмо один раз собирается и
+ * записывается в файл {@code RENDERED_FILE} в директории письма в том
+ * виде, в котором оно передаётся клиенту в ответе на {@code RETR}
+ * (с удвоением точек в начале строк, см. {@link DotStuffingOutputStream}).
+ * Команда {@code RETR} передаёт этот файл в сокет с помощью
+ * {@link java.nio.channels.FileChannel#transferTo}, не копируя его
+ * содержимое в память Java.
+ * <p>Файл пересоздаётся, если какой-либо из исходных файлов письма
+ * изменён позже него.
+ * @see ServerConfig
+ */
+public class MessageRenderer implements POP3Defines {
+    /**
+     * Флаг, показывающий, включён ли режим подготовленных писем.
+     */
+    private static volatile boolean enabled;
+
+    private MessageRenderer() {
+    }
+
+    /**
+     * Включает или выключает режим подготовленных писем.
+     *
+     * @param enabled {@code true}, чтобы включить режим
+     */
+    public static void setEnabled(boolean enabled) {
+        MessageRenderer.enabled = enabled;
+    }
+
+    /**
+     * Проверяет, включён ли режим подготовленных писем.
+     *
+     * @return {@code true}, если режим включён
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Возвращает файл подготовленного письма, при необходимости
+     * создавая или обновляя его.
+     *
+     * @param letterDir директория письма
+     * @return файл подготовленного письма
+     * @throws IOException если письмо не удалось собрать или записать
+     */
+    public static File render(File letterDir) throws IOException {
+        File rendered = new File(letterDir, RENDERED_FILE);
+        if (rendered.isFile() && rendered.lastModified() >= sourceStamp(letterDir))
+            return rendered;
+        Message message = new MessageAssembler().assemble(letterDir);
+        if (message == null)
+            throw new IOException("Cannot assemble message in " + letterDir);
+        File tmp = File.createTempFile(RENDERED_FILE, ".tmp", letterDir);
+        try {
+            try (DotStuffingOutputStream out = new DotStuffingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                new DefaultMessageWriter().writeMessage(message, out);
+                out.completeLine();
+            }
+            Files.move(tmp.toPath(), rendered.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            message.dispose();
+            if (tmp.exists())
+                tmp.delete();
+        }
+        return rendered;
+    }
+
+    /**
+     * Вычисляет длину заголовка подготовленного письма вместе с пустой
+     * строкой, отделяющей его от тела. Читается только заголовок.
+     *
+     * @param rendered файл подготовленного письма
+     * @return длина заголовка в байтах или длина файла, если тела у письма нет
+     * @throws IOException если при чтении произошла ошибка
+     */
+    public static long headerLength(File rendered) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(rendered), 4096)) {
+            long position = 0;
+            boolean atLineStart = true;
+            int c;
+            while ((c = in.read()) >= 0) {
+                position++;
+                if (c == '\n') {
+                    if (atLineStart)
+                        return position;
+                    atLineStart = true;
+                } else if (c != '\r')
+                    atLineStart = false;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Возвращает время последнего изменения исходных файлов письма.
+     *
+     * @param letterDir директория письма
+     * @return наибольшее время изменения исходных файлов письма, не считая
+     * подготовленного файла и двоичного файла структуры письма
+     */
+    static long sourceStamp(File letterDir) {
+        long stamp = 0;
+        File[] files = letterDir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!file.getName().startsWith(RENDERED_FILE) && !file.getName().startsWith(MANIFEST_FILE))
+                    stamp = Math.max(stamp, file.lastModified());
+        return stamp;
+    }
+}
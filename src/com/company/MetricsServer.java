@@ -0,0 +1,128 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Поток, отдающий метрики сервера ({@link ServerMetrics}) по протоколу
+ * HTTP в текстовом формате Prometheus. Сокет открывается только на
+ * локальном интерфейсе, поэтому метрики недоступны извне.
+ * <p>Запросы обслуживаются по одному; на любой запрос {@code GET}
+ * возвращаются все метрики, соединение после ответа закрывается.
+ * @see ServerConfig
+ */
+public class MetricsServer extends Thread {
+    /**
+     * Максимальный размер заголовка запроса.
+     */
+    private static final int MAX_REQUEST = 8192;
+    /**
+     * Время ожидания запроса в миллисекундах.
+     */
+    private static final int READ_TIMEOUT = 2000;
+    /**
+     * Серверный сокет.
+     */
+    private final ServerSocket serverSocket;
+    /**
+     * Поток логирования.
+     */
+    private final LogThread logThread;
+
+    /**
+     * Конструктор класса. Открывает сокет на локальном интерфейсе.
+     *
+     * @param port      порт
+     * @param logThread поток логирования
+     * @throws IOException если не удалось открыть сокет
+     */
+    public MetricsServer(int port, LogThread logThread) throws IOException {
+        super("metrics");
+        setDaemon(true);
+        this.logThread = logThread;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT);
+                serve(socket);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    logThread.warn("Metrics request failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Читает заголовок запроса и отправляет ответ.
+     *
+     * @param socket сокет клиента
+     * @throws IOException если при чтении или записи произошла ошибка
+     */
+    private void serve(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] request = new byte[MAX_REQUEST];
+        int length = 0;
+        while (length < request.length && !endOfHeader(request, length)) {
+            int n = in.read(request, length, request.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        String status;
+        String body;
+        if (length >= 4 && new String(request, 0, 4, StandardCharsets.US_ASCII).equals("GET ")) {
+            status = "200 OK";
+            body = ServerMetrics.toPrometheus();
+        } else {
+            status = "405 Method Not Allowed";
+            body = "Only GET is supported\n";
+        }
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.0 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Проверяет, получен ли заголовок запроса целиком.
+     *
+     * @param request полученные байты
+     * @param length  количество полученных байтов
+     * @return {@code true}, если получена пустая строка
+     */
+    private static boolean endOfHeader(byte[] request, int length) {
+        for (int i = 1; i < length; i++) {
+            if (request[i] == '\n' && (request[i - 1] == '\n'
+                    || (request[i - 1] == '\r' && i >= 2 && request[i - 2] == '\n')))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Закрывает сокет и завершает поток.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.company;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Состояние отдельного клиента в неблокирующем режиме работы сервера.
+ * <p>Принимает данные от клиента по мере их готовности, выделяет из них
+ * команды и передаёт их сессии {@link POP3Session}. Ответы сессии
+ * накапливаются в очереди и отправляются клиенту, когда сокет готов
+ * к записи. Пока очередь ответов не пуста, чтение новых команд
+ * приостанавливается.
+ * <p>Все команды, полученные за одно чтение из сокета, выполняются по
+ * порядку, а ответы на них отправляются вместе (RFC 2449, PIPELINING).
+ * <p>Файлы подготовленных писем ставятся в очередь ответов целиком и
+ * передаются в сокет с помощью {@link FileChannel#transferTo} по мере
+ * его готовности к записи. Поэтому сессия передаёт письма только
+ * файлами (см. {@link ResponseWriter#isQueued()}), а объём ответов,
+ * накопленных в памяти, ограничен {@value #MAX_PENDING_BYTES} байтами:
+ * при превышении ограничения соединение закрывается.
+ * <p>Все методы, кроме {@link #endSession()}, вызываются только из
+ * потока реактора.
+ * @see Reactor
+ */
+class NioConnection implements ClientConnection, POP3Defines {
+    /**
+     * Размер блока очереди ответов.
+     */
+    private static final int WRITE_CHUNK_SIZE = 8192;
+    /**
+     * Наибольший объём ответов, накопленных в памяти и ожидающих отправки.
+     */
+    private static final int MAX_PENDING_BYTES = 4 << 20;
+    /**
+     * Идентификатор соединения.
+     */
+    private final long id;
+    /**
+     * Канал клиента.
+     */
+    private final SocketChannel channel;
+    /**
+     * Ключ регистрации канала в селекторе реактора.
+     */
+    private final SelectionKey key;
+    /**
+     * Реактор, обслуживающий соединение.
+     */
+    private final Reactor reactor;
+    /**
+     * Реестр подключённых клиентов.
+     */
+    private final SessionRegistry registry;
+    /**
+     * Поток логгирования сессии.
+     */
+    private final LogThread logThread;
+    /**
+     * Сессия клиента.
+     */
+    private final POP3Session session;
+    /**
+     * Буферизованный поток ответов сессии.
+     */
+    private final ResponseWriter writer;
+    /**
+     * Буфер, выделяющий команды клиента из принятых данных.
+     */
+    private final LineDecoder decoder = new LineDecoder(POP3_MAX_LINE_LENGTH);
+    /**
+     * Очередь ответов, ожидающих отправки.
+     */
+    private final Deque<Outbound> pending = new ArrayDeque<>();
+    /**
+     * Заполняемый блок очереди ответов.
+     */
+    private ByteBuffer tail;
+    /**
+     * Объём блоков очереди ответов, находящихся в памяти.
+     */
+    private long pendingBytes;
+    /**
+     * Флаг, показывающий, что объём ответов в памяти превысил
+     * {@link #MAX_PENDING_BYTES} и соединение должно быть закрыто.
+     */
+    private boolean overflowed;
+    /**
+     * Флаг, показывающий, что клиент завершил сессию и соединение
+     * будет закрыто после отправки всех ответов.
+     */
+    private boolean closing;
+    /**
+     * Флаг, показывающий, что соединение закрыто.
+     */
+    private boolean closed;
+
+    /**
+     * Конструктор класса. Создаёт сессию, регистрирует соединение
+     * в реестре и ставит в очередь приветствие.
+     *
+     * @param channel   канал клиента в неблокирующем режиме
+     * @param key       ключ регистрации канала в селекторе
+     * @param reactor   реактор, обслуживающий соединение
+     * @param logThread поток для логгирования диалога клиент-сервер
+     * @param registry  реестр подключённых клиентов
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, Reactor reactor, LogThread logThread,
+                  SessionRegistry registry) {
+        this.channel = channel;
+        this.key = key;
+        this.reactor = reactor;
+        this.logThread = logThread;
+        this.registry = registry;
+        id = registry.nextId();
+        registry.add(this);
+        writer = new ResponseWriter(new OutboundStream(), this::queueFile);
+        writer.setQueued(true);
+        session = new POP3Session(writer, logThread, id);
+        session.sendResponse(POP3_WELCOME_RESPONSE);
+    }
+
+    /**
+     * Читает готовые данные из сокета и выполняет все полностью
+     * полученные команды.
+     *
+     * @throws IOException если при чтении или записи произошла ошибка
+     */
+    void handleRead() throws IOException {
+        if (decoder.fill(channel) < 0) {
+            close();
+            return;
+        }
+        int result;
+        while (!closing && !overflowed && (result = decoder.next()) != LineDecoder.NONE) {
+            if (result == LineDecoder.TOO_LONG)
+                session.sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Line too long");
+            else
+                processLine();
+        }
+        handleWrite();
+    }
+
+    /**
+     * Передаёт сессии команду, выделенную в буфере декодера.
+     */
+    private void processLine() {
+        if (logThread.isTraceEnabled())
+            logThread.trace("Message from client: "
+                    + (decoder.lineLength() == 0 ? "empty" : decoder.lineAsString()));
+        try {
+            if (session.processSession(decoder.array(), decoder.lineStart(), decoder.lineLength()) == POP3_SESSION_QUITED)
+                closing = true;
+        } catch (RuntimeException e) {
+            logThread.warn("Malformed command: " + decoder.lineAsString());
+            session.sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+        }
+    }
+
+    /**
+     * Отправляет клиенту накопленные ответы. Если сокет не принял все
+     * данные, то соединение ожидает готовности к записи и не читает
+     * новых команд. Если объём ответов превысил ограничение, то
+     * соединение закрывается.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    void handleWrite() throws IOException {
+        writer.flush();
+        if (overflowed) {
+            logThread.warn("Connection " + id + " exceeded " + MAX_PENDING_BYTES + " pending bytes, closing\n");
+            close();
+            return;
+        }
+        queueTail();
+        boolean writing = !pending.isEmpty();
+        long start = writing ? System.nanoTime() : 0;
+        while (!pending.isEmpty()) {
+            if (!pending.peek().writeTo(channel)) {
+                ServerMetrics.SOCKET_WRITE.record(System.nanoTime() - start);
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pending.poll().release();
+        }
+        if (writing)
+            ServerMetrics.SOCKET_WRITE.record(System.nanoTime() - start);
+        if (closing) {
+            logThread.log("Connection closing...\n");
+            close();
+        } else
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Ставит в очередь ответов заполненную часть текущего блока.
+     */
+    private void queueTail() {
+        if (tail != null && tail.position() > 0) {
+            tail.flip();
+            pending.add(new BufferChunk(tail));
+            tail = null;
+        }
+    }
+
+    /**
+     * Ставит в очередь ответов часть файла.
+     *
+     * @param file     открытый канал файла
+     * @param position смещение начала передаваемой части
+     * @param count    количество передаваемых байтов
+     */
+    private void queueFile(FileChannel file, long position, long count) {
+        queueTail();
+        pending.add(new FileRegion(file, position, count));
+    }
+
+    /**
+     * Принудительно завершает сессию и закрывает соединение.
+     */
+    void shutdown() {
+        if (!key.isValid())
+            return;
+        if (!closing) {
+            closing = true;
+            session.shutdown();
+            try {
+                handleWrite();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        close();
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public POP3Session getSession() {
+        return session;
+    }
+
+    /**
+     * Завершает сессию в потоке реактора.
+     */
+    @Override
+    public void endSession() {
+        reactor.execute(this::shutdown);
+    }
+
+    /**
+     * Закрывает канал клиента, освобождает почтовый ящик сессии и удаляет
+     * соединение из реестра. Повторные вызовы ничего не делают.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        reactor.connectionClosed();
+        session.close();
+        registry.remove(this);
+        key.cancel();
+        while (!pending.isEmpty())
+            pending.poll().release();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Выходной поток, складывающий ответы сессии в очередь на отправку.
+     * Если объём блоков в памяти превышает {@link #MAX_PENDING_BYTES}, то
+     * запись прерывается исключением, а соединение закрывается при
+     * следующей отправке.
+     */
+    private class OutboundStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (overflowed)
+                throw new IOException("Connection output limit exceeded");
+            while (len > 0) {
+                if (tail == null || !tail.hasRemaining()) {
+                    queueTail();
+                    if (pendingBytes + WRITE_CHUNK_SIZE > MAX_PENDING_BYTES) {
+                        overflowed = true;
+                        throw new IOException("Connection output limit exceeded");
+                    }
+                    tail = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+                    pendingBytes += WRITE_CHUNK_SIZE;
+                }
+                int n = Math.min(len, tail.remaining());
+                tail.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Элемент очереди ответов.
+     */
+    private interface Outbound {
+        /**
+         * Передаёт в канал столько данных, сколько он готов принять.
+         *
+         * @param channel канал клиента
+         * @return {@code true}, если все данные элемента переданы
+         * @throws IOException если при записи произошла ошибка
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Освобождает ресурсы элемента.
+         */
+        void release();
+    }
+
+    /**
+     * Блок ответов, накопленных в памяти.
+     */
+    private class BufferChunk implements Outbound {
+        private final ByteBuffer buffer;
+
+        BufferChunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            pendingBytes -= buffer.capacity();
+        }
+    }
+
+    /**
+     * Часть файла, передаваемая в сокет без копирования в память Java.
+     * Если файл усечён и нужных байтов в нём больше нет, то передача
+     * прерывается исключением {@link EOFException}, а не ожидает
+     * готовности сокета.
+     */
+    private static class FileRegion implements Outbound {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            end = position + count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n <= 0) {
+                    if (position >= file.size())
+                        throw new EOFException("File truncated at " + position + " of " + end + " bytes");
+                    return false;
+                }
+                position += n;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
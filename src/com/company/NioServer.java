@@ -0,0 +1,156 @@
+package com.company;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неблокирующий режим работы сервера.
+ * <p>Соединения принимаются через {@link ServerSocketChannel} и
+ * распределяются по кругу между фиксированным числом потоков-реакторов
+ * ({@link Reactor}). Таким образом количество потоков, работающих с
+ * сокетами, не зависит от количества подключённых клиентов.
+ * <p>Команды клиентов выполняются непосредственно в потоке реактора,
+ * поэтому длительные операции с файлами писем задерживают обработку
+ * других клиентов того же реактора.
+ * <p>Если количество активных соединений достигло заданного предела,
+ * то новый клиент получает ответ {@code SERVER_BUSY_RESPONSE}, и
+ * соединение закрывается.
+ * @see ServerConfig#MODE_NIO
+ */
+public class NioServer implements POP3Defines {
+    /**
+     * Порт, на котором сервер принимает соединения.
+     */
+    private final int port;
+    /**
+     * Потоки-реакторы.
+     */
+    private final Reactor[] reactors;
+    /**
+     * Максимальное количество одновременно обслуживаемых клиентов.
+     */
+    private final int maxSessions;
+    /**
+     * Количество принятых и ещё не закрытых соединений. Увеличивается в
+     * потоке приёма до передачи канала реактору, поэтому, в отличие от
+     * размера реестра, учитывает и соединения, ещё не зарегистрированные
+     * реактором.
+     */
+    private final AtomicInteger admitted = new AtomicInteger();
+    /**
+     * Реестр подключённых клиентов.
+     */
+    private final SessionRegistry registry;
+    /**
+     * Поток логгирования сессий.
+     */
+    private final LogThread logThread;
+    /**
+     * Канал, принимающий соединения.
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * Показывает статус сервера.
+     */
+    private volatile boolean isRunning = true;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param port         порт, на котором сервер принимает соединения
+     * @param reactorCount количество потоков-реакторов
+     * @param maxSessions  максимальное количество одновременно обслуживаемых клиентов
+     * @param logThread    поток для логгирования диалога клиент-сервер
+     * @param registry     реестр подключённых клиентов
+     * @throws IOException если не удалось открыть селекторы
+     */
+    public NioServer(int port, int reactorCount, int maxSessions, LogThread logThread,
+                     SessionRegistry registry) throws IOException {
+        this.port = port;
+        this.maxSessions = maxSessions;
+        this.logThread = logThread;
+        this.registry = registry;
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++)
+            reactors[i] = new Reactor("reactor-" + i, logThread, registry, admitted);
+    }
+
+    /**
+     * Запускает реакторы и принимает соединения до остановки сервера.
+     *
+     * @throws IOException если не удалось открыть порт
+     */
+    public void serve() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (Reactor reactor : reactors)
+            reactor.start();
+        int next = 0;
+        try {
+            while (isRunning) {
+                SocketChannel channel = serverChannel.accept();
+                registry.recordAccept();
+                registry.awaitAccepting();
+                if (admitted.get() >= maxSessions) {
+                    reject(channel);
+                    continue;
+                }
+                admitted.incrementAndGet();
+                channel.configureBlocking(false);
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (ClosedChannelException e) {
+            if (isRunning)
+                throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Отклоняет соединение, которое сервер не может обслужить.
+     *
+     * @param channel канал клиента в блокирующем режиме
+     */
+    private void reject(SocketChannel channel) {
+        logThread.log("Server is busy, rejecting connection");
+        try {
+            channel.write(ByteBuffer.wrap(SERVER_BUSY_RESPONSE.getBytes(StandardCharsets.US_ASCII)));
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Останавливает приём соединений и завершает все сессии.
+     */
+    public void shutdown() {
+        isRunning = false;
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Reactor reactor : reactors)
+            reactor.shutdown();
+        for (Reactor reactor : reactors) {
+            try {
+                reactor.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logThread.log("NIO server stopped");
+    }
+}
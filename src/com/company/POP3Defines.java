@@ -24,6 +24,12 @@ public interface POP3Defines {
      */
     int POP3_WELCOME_RESPONSE = 2;
 
+    /**
+     * Максимальная длина команды клиента без символов конца строки.
+     * Более длинные команды отклоняются. Значение по-умолчанию: 512.
+     */
+    int POP3_MAX_LINE_LENGTH = 512;
+
     /**
      * Внутренний индикатор, сообщающий, что клиент закончил сессию. Значение по-умолчанию: 100.
      */
@@ -72,9 +78,43 @@ public interface POP3Defines {
      */
     String PASS_FILE = "pass.pwd";
 
+    /**
+     * Имя файла индекса почтового ящика, хранящегося в директории
+     * каждого пользователя. Значение по-умолчанию: .maildrop.idx.
+     * @see MailDropIndex
+     */
+    String INDEX_FILE = ".maildrop.idx";
+
+    /**
+     * Имя файла блокировки почтового ящика, хранящегося в директории
+     * каждого пользователя. Значение по-умолчанию: .maildrop.lock.
+     * @see MailDropLocks
+     */
+    String LOCK_FILE = ".maildrop.lock";
+
+    /**
+     * Имя файла письма в подготовленном для передачи виде, хранящегося
+     * в директории письма. Значение по-умолчанию: message.pop3.
+     * @see MessageRenderer
+     */
+    String RENDERED_FILE = "message.pop3";
+
+    /**
+     * Имя двоичного файла структуры письма, хранящегося в директории
+     * письма. Значение по-умолчанию: parts.bin.
+     * @see LetterManifest
+     */
+    String MANIFEST_FILE = "parts.bin";
+
     /**
      * Имя файла, который используется для логирования работы сервера.
      * Значение по-умолчанию: log.txt.
      */
     String LOG_FILE = "log.txt";
+
+    /**
+     * Ответ, который получает клиент, если сервер обслуживает максимальное
+     * количество сессий. Значение по-умолчанию: -ERR Server is busy, try again later.
+     */
+    String SERVER_BUSY_RESPONSE = "-ERR Server is busy, try again later\r\n";
 }
@@ -1,11 +1,12 @@
 package com.company;
 
 
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.dom.MessageWriter;
 import org.apache.james.mime4j.message.DefaultMessageWriter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -15,6 +16,12 @@ import java.util.List;
  * Класс, используемый для представления информации о каждом
  * письме в почтовом ящике пользователя.
  * <p>Содержит информацию о файле, хранящем текст письма, статус письма и объем памяти, занимаемой файлом письма.
+ * <p>Письмо загружается лениво: при создании объекта файлы письма не
+ * читаются. Уникальный идентификатор читается из заголовка письма при
+ * первом обращении, размер вычисляется при первом обращении без
+ * сохранения собранного письма в памяти, а само письмо в формате MIME
+ * собирается только на время выполнения команд {@code RETR} и {@code TOP}
+ * (см. {@link #load()} и {@link #release()}).
  */
 public class POP3Letter implements POP3Defines {
     /**
@@ -22,7 +29,8 @@ public class POP3Letter implements POP3Defines {
      */
     private File letterDir;
     /**
-     * Письмо, офрмленное стандартно формату MIME.
+     * Письмо, офрмленное стандартно формату MIME. Равно {@code null},
+     * если письмо не загружено.
      */
     private Message mimeMessage;
     /**
@@ -46,12 +54,22 @@ public class POP3Letter implements POP3Defines {
      */
     private int status;
     /**
-     * Размер пиьсма в байтах.
+     * Размер пиьсма в байтах. Равен {@code -1}, пока размер не вычислен.
      */
     private long size = -1;
+    /**
+     * Длина заголовка подготовленного письма (см. {@link MessageRenderer}).
+     * Равна {@code -1}, пока длина не вычислена.
+     */
+    private long headerLength = -1;
+    /**
+     * Время изменения подготовленного файла, для которого вычислена длина
+     * заголовка.
+     */
+    private long headerStamp;
 
     /**
-     * Конструктор класса.
+     * Конструктор класса. Файлы письма не читаются.
      *
      * @param nStatus   статус письма
      * @param letterDir директория письма
@@ -59,32 +77,79 @@ public class POP3Letter implements POP3Defines {
     public POP3Letter(int nStatus, File letterDir) {
         status = nStatus;
         this.letterDir = letterDir;
+    }
+
+    /**
+     * Конструктор класса для письма, размер и уникальный идентификатор
+     * которого уже известны из индекса почтового ящика.
+     *
+     * @param nStatus   статус письма
+     * @param letterDir директория письма
+     * @param size         размер письма в байтах
+     * @param uniqueId     уникальный идентификатор письма
+     * @param headerLength длина заголовка подготовленного письма или {@code -1}
+     * @param headerStamp  время изменения подготовленного файла, для
+     *                     которого вычислена длина заголовка
+     * @see MailDropIndex
+     */
+    public POP3Letter(int nStatus, File letterDir, long size, String uniqueId, long headerLength, long headerStamp) {
+        this(nStatus, letterDir);
+        this.size = size;
+        this.uniqueId = uniqueId;
+        this.headerLength = headerLength;
+        this.headerStamp = headerStamp;
+    }
+
+    /**
+     * Собирает письмо из файлов и сохраняет его до вызова {@link #release()}.
+     *
+     * @return {@code true}, если письмо удалось собрать
+     */
+    public boolean load() {
+        if (mimeMessage != null)
+            return true;
         MessageAssembler assembler = new MessageAssembler();
         mimeMessage = assembler.assemble(letterDir);
-        if (mimeMessage != null) {
-            header = mimeMessage.getHeader().toString();
-            try (ByteArrayOutputStream baoStream = new ByteArrayOutputStream()) {
-                DefaultMessageWriter writer = new DefaultMessageWriter();
-                writer.writeMessage(mimeMessage, baoStream);
-                size = baoStream.size();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            text = assembler.getText();
-            attachments = assembler.getAttachments();
+        if (mimeMessage == null)
+            return false;
+        header = mimeMessage.getHeader().toString();
+        text = assembler.getText();
+        attachments = assembler.getAttachments();
+        if (uniqueId == null)
             uniqueId = assembler.getUniqueId();
-        }
+        return true;
+    }
+
+    /**
+     * Освобождает собранное письмо. Размер и уникальный идентификатор
+     * письма сохраняются.
+     */
+    public void release() {
+        if (mimeMessage != null)
+            mimeMessage.dispose();
+        mimeMessage = null;
+        header = null;
+        text = null;
+        attachments = null;
     }
 
     /**
      * Отправляет клиенту содержимое письмо, оформленное в соответствии со спецификацией MIME.
+     * Если письмо не было загружено, то оно собирается на время отправки.
      *
      * @param out выходной поток, в который будет отправлено письмо
      */
     public void send(OutputStream out) throws IOException {
-        MessageWriter writer = new DefaultMessageWriter();
-        writer.writeMessage(mimeMessage, out);
-
+        boolean loaded = mimeMessage != null;
+        if (!load())
+            return;
+        try {
+            MessageWriter writer = new DefaultMessageWriter();
+            writer.writeMessage(mimeMessage, out);
+        } finally {
+            if (!loaded)
+                release();
+        }
     }
 
     /**
@@ -111,20 +176,97 @@ public class POP3Letter implements POP3Defines {
     }
 
     /**
-     * Возвращает размер письма.
+     * Возвращает размер письма в том виде, в котором оно передаётся
+     * клиенту (см. {@link DotStuffingOutputStream}). При первом обращении
+     * письмо собирается и записывается в поток, который только
+     * подсчитывает байты. Если включён режим подготовленных писем, то
+     * размером письма считается размер подготовленного файла
+     * (см. {@link MessageRenderer}).
      *
-     * @return размер письма
+     * @return размер письма; {@code 0}, если письмо не удалось собрать, или
+     * {@code -1}, если его не удалось прочитать целиком
      */
     public long getSize() {
+        if (size < 0 && MessageRenderer.isEnabled()) {
+            try {
+                size = MessageRenderer.render(letterDir).length();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (size < 0) {
+            try (CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM)) {
+                DotStuffingOutputStream body = new DotStuffingOutputStream(counter);
+                send(body);
+                body.completeLine();
+                size = counter.getByteCount();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         return size;
     }
 
     /**
-     * Возвращает уникальный ID письма.
+     * Возвращает длину заголовка подготовленного письма вместе с пустой
+     * строкой, отделяющей его от тела. При первом обращении читается
+     * только заголовок подготовленного файла письма.
+     *
+     * @return длина заголовка в байтах или {@code -1}, если режим
+     * подготовленных писем выключен
+     * @see MessageRenderer
+     */
+    public long getHeaderLength() {
+        if (headerLength < 0 && MessageRenderer.isEnabled()) {
+            try {
+                getHeaderLength(MessageRenderer.render(letterDir));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return headerLength;
+    }
+
+    /**
+     * Возвращает длину заголовка заданного подготовленного файла письма.
+     * Длина вычисляется заново, если файл изменён после того, как она была
+     * вычислена: при повторной подготовке письма граница частей MIME
+     * выбирается заново и длина заголовка может измениться.
+     *
+     * @param rendered файл подготовленного письма
+     * @return длина заголовка в байтах
+     * @throws IOException если при чтении произошла ошибка
+     * @see MessageRenderer#headerLength(File)
+     */
+    public long getHeaderLength(File rendered) throws IOException {
+        long modified = rendered.lastModified();
+        if (headerLength < 0 || modified != headerStamp) {
+            headerLength = MessageRenderer.headerLength(rendered);
+            headerStamp = modified;
+        }
+        return headerLength;
+    }
+
+    /**
+     * Возвращает время изменения подготовленного файла, для которого
+     * вычислена длина заголовка (см. {@link #getHeaderLength()}).
+     *
+     * @return время изменения в миллисекундах или {@code 0}, если длина
+     * заголовка не вычислена
+     */
+    public long getHeaderStamp() {
+        return headerStamp;
+    }
+
+    /**
+     * Возвращает уникальный ID письма. При первом обращении ID
+     * читается из заголовка письма без сборки всего письма.
      *
      * @return ID письма
      */
     public String getUniqueId() {
+        if (uniqueId == null)
+            uniqueId = new MessageAssembler().readUniqueId(letterDir);
         return uniqueId;
     }
 
@@ -138,7 +280,7 @@ public class POP3Letter implements POP3Defines {
     }
 
     /**
-     * Возвращает текст письма.
+     * Возвращает текст письма. Доступен после вызова {@link #load()}.
      *
      * @return текст письма
      */
@@ -147,7 +289,8 @@ public class POP3Letter implements POP3Defines {
     }
 
     /**
-     * Возвращает список прикреплённых к сообщению файлов.
+     * Возвращает список прикреплённых к сообщению файлов. Доступен после
+     * вызова {@link #load()}.
      *
      * @return список прикреплённыйх файлов
      */
@@ -156,7 +299,7 @@ public class POP3Letter implements POP3Defines {
     }
 
     /**
-     * Возвращает заголовок письма.
+     * Возвращает заголовок письма. Доступен после вызова {@link #load()}.
      *
      * @return заголовок письма
      */
@@ -165,7 +308,8 @@ public class POP3Letter implements POP3Defines {
     }
 
     /**
-     * Возвращет письмо, оформленное по стандарту MIME.
+     * Возвращет письмо, оформленное по стандарту MIME. Доступно после
+     * вызова {@link #load()}.
      *
      * @return MIME письмо
      */
@@ -2,9 +2,17 @@ package com.company;
 
 import com.sun.istack.internal.Nullable;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.james.mime4j.dom.MessageWriter;
+import org.apache.james.mime4j.message.DefaultMessageWriter;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,17 +21,17 @@ import java.util.List;
  * (класс {@link POP3Letter}).
  * <p>Реализует интерфейс почтового ящика (протокол POP3) по
  * спецификации RFC 1225:
- * <ul><li>аутентификацию (методы {@link #processUSER(String)} и
- * {@link #processPASS(String)})
+ * <ul><li>аутентификацию (методы {@link #processUSER(CommandParser)} и
+ * {@link #processPASS(CommandParser)})
  * <li>получение краткой информации о количестве писем и объёме
  * занимаемого ими пространства (метод {@link #processSTAT()})
  * <li>получение краткой информации об объёме пространства,
  * занимаемого письмом, идентификатор которого передается как
  * параметр команды (если параметр не задан, то клиент получит
- * такую информацию обо всех письмах в ящике) (метод {@link #processLIST(String)})
+ * такую информацию обо всех письмах в ящике) (метод {@link #processLIST(CommandParser)})
  * <li>передачу клиенту содержимого запрашиваемого письма (метод
- * {@link #processRETR(String)})
- * <li>удаление запрашиваемого письма (метод {@link #processDELE(String)})
+ * {@link #processRETR(CommandParser)})
+ * <li>удаление запрашиваемого письма (метод {@link #processDELE(CommandParser)})
  * <li>получение отклика от сервера (метод {@link #processNOOP()})
  * <li>получение наибольшего идентификатора среди всех писем,
  * к которым было обращение (метод {@link #processLAST()})
@@ -31,20 +39,57 @@ import java.util.List;
  * <li>получение информации об уникальном идентификаторе
  * каждого письма, номер которого передается как параметр
  * команды (если параметр не задан, то клиент получит такую
- * информацию обо всех письмах в ящике) (метод {@link #processUIDL(String)})
+ * информацию обо всех письмах в ящике) (метод {@link #processUIDL(CommandParser)})
  * <li>получение списка дополнительных команд, поддерживаемых сервером
  * (метод {@link #processCAPA()})
  * <li>получение заголовка и заданного количества строк из запрашиваемого
- * письма (метод {@link #processTOP(String)})
+ * письма (метод {@link #processTOP(CommandParser)})
  * <li>завершение сессии и принятие изменений (метод {@link #processQUIT()})
  * </ul>
  */
 
 public class POP3Session implements POP3Defines {
+    /**
+     * Обработчик команды клиента.
+     */
+    private interface Handler {
+        /**
+         * Выполняет разобранную команду.
+         *
+         * @param session сессия
+         * @param command разобранная команда
+         * @return индикатор выполнения действия
+         */
+        int handle(POP3Session session, CommandParser command);
+    }
+
+    /**
+     * Обработчики команд в порядке номеров команд {@link CommandParser}.
+     */
+    private static final Handler[] HANDLERS = new Handler[CommandParser.COMMAND_COUNT];
+
+    static {
+        HANDLERS[CommandParser.USER] = POP3Session::processUSER;
+        HANDLERS[CommandParser.PASS] = POP3Session::processPASS;
+        HANDLERS[CommandParser.QUIT] = (session, command) -> session.processQUIT();
+        HANDLERS[CommandParser.STAT] = (session, command) -> session.processSTAT();
+        HANDLERS[CommandParser.LIST] = POP3Session::processLIST;
+        HANDLERS[CommandParser.RETR] = POP3Session::processRETR;
+        HANDLERS[CommandParser.DELE] = POP3Session::processDELE;
+        HANDLERS[CommandParser.NOOP] = (session, command) -> session.processNOOP();
+        HANDLERS[CommandParser.LAST] = (session, command) -> session.processLAST();
+        HANDLERS[CommandParser.RSET] = (session, command) -> session.processRSET();
+        HANDLERS[CommandParser.AUTH] = (session, command) -> session.sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE,
+                "Server support only unprotected connections");
+        HANDLERS[CommandParser.UIDL] = POP3Session::processUIDL;
+        HANDLERS[CommandParser.CAPA] = (session, command) -> session.processCAPA();
+        HANDLERS[CommandParser.TOP] = POP3Session::processTOP;
+    }
+
     /**
      * Содержит состаяние сессии между сервером и клентом.
      */
-    private int state;
+    private volatile int state;
     /**
      * Содержит ID последнего сообщения.
      */
@@ -58,17 +103,15 @@ public class POP3Session implements POP3Defines {
      */
     private String userName;
     /**
-     * Пароль пользователя.
-     */
-    private String password;
-    /**
-     * Содержит размер сообщения.
+     * Содержит суммарный размер сообщений. Равен {@code -1}, пока
+     * размер не вычислен командой {@code STAT}.
      */
     private long totalMailSize;
     /**
-     * Сокет для подключения клиента.
+     * Буферизованный поток, через который клиенту отправляются ответы
+     * сервера. Отправку накопленных ответов выполняет владелец потока.
      */
-    private Socket socConnection;
+    private ResponseWriter out;
     /**
      * Поток логирования сесси.
      */
@@ -77,22 +120,52 @@ public class POP3Session implements POP3Defines {
      * Список сообщений пользователя.
      */
     private List<POP3Letter> pop3LetterList;
+    /**
+     * Блокировка почтового ящика. Равна {@code null}, пока ящик не открыт.
+     */
+    private MailDropLocks.Lock mailDropLock;
+    /**
+     * Индекс почтового ящика пользователя.
+     */
+    private MailDropIndex mailDropIndex;
+    /**
+     * Разборщик команд сессии.
+     */
+    private final CommandParser parser = new CommandParser();
+    /**
+     * Трассировка сессии. Равна {@code null}, если сессия не трассируется.
+     */
+    private ProtocolTrace.Session trace;
+    /**
+     * Количество писем, открытых сессией.
+     */
+    private volatile int heldLetters;
+    /**
+     * Суммарный размер писем, открытых сессией.
+     */
+    private volatile long heldBytes;
 
     /**
      * Контруктор класса.
      *
-     * @param clientSoc сокет клиента
+     * @param out       буферизованный поток, через который клиенту
+     *                  отправляются ответы
      * @param logThread поток для логгирования диалога клиент-сервер
-     * @see Socket
+     * @param id        идентификатор сессии, записываемый в трассировку
+     * @see ResponseWriter
      * @see LogThread
+     * @see ProtocolTrace
      */
-    public POP3Session(Socket clientSoc, LogThread logThread) {
+    public POP3Session(ResponseWriter out, LogThread logThread, long id) {
         state = POP3_STATE_AUTHORIZATION;
-        socConnection = clientSoc;
+        this.out = out;
         this.logThread = logThread;
+        ProtocolTrace protocolTrace = ProtocolTrace.shared();
+        if (protocolTrace != null)
+            trace = protocolTrace.openSession(id);
         pop3LetterList = new ArrayList<>();
         lastMsg = 0;
-        totalMailSize = 0;
+        totalMailSize = -1;
     }
 
     /**
@@ -101,10 +174,11 @@ public class POP3Session implements POP3Defines {
      * @param message строка, которая будет отправлена клиенту в качестве ответа
      */
     public void sendResponse(String message) {
-        message += "\r\n";
-        logThread.log("Direct Sending: " + message);
+        if (logThread.isTraceEnabled())
+            logThread.trace("Direct Sending: " + message + "\r\n");
         try {
-            socConnection.getOutputStream().write(message.getBytes("UTF-8"));
+            out.writeString(message);
+            out.writeCRLF();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -123,30 +197,36 @@ public class POP3Session implements POP3Defines {
      */
 
     public int sendResponse(int nResponseType, @Nullable String message) {
-        String buf = "";
-        switch (nResponseType) {
-            case POP3_DEFAULT_AFFIRMATIVE_RESPONSE:
-                if (message != null)
-                    buf = "+OK " + message + "\r\n";
-                else buf = "+OK Action performed\r\n";
-                break;
-
-            case POP3_DEFAULT_NEGATIVE_RESPONSE:
-                if (message != null)
-                    buf = "-ERR " + message + "\r\n";
-                else buf = "-ERR An error occurred\r\n";
-                break;
-
-            case POP3_WELCOME_RESPONSE:
-                buf = "+OK " + APP_TITLE + " POP3 Server ready on\r\n";
-                break;
-
-            default:
-                throw new RuntimeException("Invalid response type.");
-        }
-        logThread.log("Sending: " + buf);
         try {
-            socConnection.getOutputStream().write(buf.getBytes("UTF-8"));
+            switch (nResponseType) {
+                case POP3_DEFAULT_AFFIRMATIVE_RESPONSE:
+                    if (logThread.isTraceEnabled())
+                        logThread.trace("Sending: +OK " + (message != null ? message : "Action performed") + "\r\n");
+                    if (message != null) {
+                        out.write(ResponseWriter.OK_PREFIX);
+                        out.writeString(message);
+                        out.writeCRLF();
+                    } else out.write(ResponseWriter.OK_DEFAULT);
+                    break;
+
+                case POP3_DEFAULT_NEGATIVE_RESPONSE:
+                    if (logThread.isTraceEnabled())
+                        logThread.trace("Sending: -ERR " + (message != null ? message : "An error occurred") + "\r\n");
+                    if (message != null) {
+                        out.write(ResponseWriter.ERR_PREFIX);
+                        out.writeString(message);
+                        out.writeCRLF();
+                    } else out.write(ResponseWriter.ERR_DEFAULT);
+                    break;
+
+                case POP3_WELCOME_RESPONSE:
+                    logThread.trace("Sending: +OK " + APP_TITLE + " POP3 Server ready on\r\n");
+                    out.write(ResponseWriter.WELCOME);
+                    break;
+
+                default:
+                    throw new RuntimeException("Invalid response type.");
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -166,64 +246,58 @@ public class POP3Session implements POP3Defines {
     }
 
     /**
-     * Получает параметр запроса клиента, если он имеется.
+     * Анализирует полученный от клиента запрос и инициирует
+     * выполнение требуемого клиентом действия.
      *
-     * @param buf строка, содержащая полученный от клиента запрос
-     * @return параметр запроса клиента либо {@code null}, если
-     * параметра в запросе нет
+     * @param buf запрос клиента
+     * @return индикатор выполнения инициированного действия либо
+     * индикатор {@code POP3_DEFAULT_NEGATIVE_RESPONSE}, если
+     * клиент неправильно сформировал запрос
+     * @see #processSession(byte[], int, int)
      */
-    private String getParam(String buf) {
-        String[] parts = buf.split(" ");
-        if (parts.length > 1)
-            return parts[1];
-        else return null;
+    public int processSession(String buf) {
+        byte[] line = buf.getBytes(StandardCharsets.UTF_8);
+        return processSession(line, 0, line.length);
     }
 
     /**
-     * Анализирует полученный от клиента запрос и инициирует
-     * выполнение требуемого клиентом действия.
+     * Анализирует полученный от клиента запрос непосредственно в буфере
+     * принятых байтов и инициирует выполнение требуемого клиентом
+     * действия. Команда выбирается по таблице обработчиков без учёта
+     * регистра ключевого слова (см. {@link CommandParser}).
      *
-     * @param buf запрос клиента
+     * @param line   буфер, содержащий запрос клиента
+     * @param offset начало запроса в буфере
+     * @param length длина запроса без символов конца строки
      * @return индикатор выполнения инициированного действия либо
      * индикатор {@code POP3_DEFAULT_NEGATIVE_RESPONSE}, если
      * клиент неправильно сформировал запрос
      * @see POP3Defines
+     * @see ProtocolTrace
+     * @see ServerMetrics
      */
-    public int processSession(String buf) {
-        String cmd = buf.substring(0, 4);
-        switch (cmd) {
-            case "USER":
-                return processUSER(buf);
-            case "PASS":
-                return processPASS(buf);
-            case "QUIT":
-                return processQUIT();
-            case "STAT":
-                return processSTAT();
-            case "LIST":
-                return processLIST(buf);
-            case "RETR":
-                return processRETR(buf);
-            case "DELE":
-                return processDELE(buf);
-            case "NOOP":
-                return processNOOP();
-            case "LAST":
-                return processLAST();
-            case "RSET":
-                return processRSET();
-            case "AUTH":
-                return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Server support only unprotected connections");
-            case "UIDL":
-                return processUIDL(buf);
-            case "CAPA":
-                return processCAPA();
-            default:
-                if (buf.substring(0, 3).equals("TOP"))
-                    return processTOP(buf);
-                else logThread.log("Command is not supported" + buf);
+    public int processSession(byte[] line, int offset, int length) {
+        long start = System.nanoTime();
+        long written = trace != null ? out.getBytesWritten() : 0;
+        int command = parser.parse(line, offset, length);
+        int status = POP3_DEFAULT_NEGATIVE_RESPONSE;
+        try {
+            if (command != CommandParser.UNKNOWN)
+                status = HANDLERS[command].handle(this, parser);
+            else {
+                if (logThread.isTraceEnabled())
+                    logThread.trace("Command is not supported: " + new String(line, offset, length,
+                            StandardCharsets.UTF_8) + "\n");
+                status = sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+            }
+            return status;
+        } finally {
+            long duration = System.nanoTime() - start;
+            ServerMetrics.command(command).record(duration);
+            if (trace != null)
+                trace.record(line, offset, length, status != POP3_DEFAULT_NEGATIVE_RESPONSE,
+                        out.getBytesWritten() - written, duration);
         }
-        return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
     }
 
     /**
@@ -232,23 +306,22 @@ public class POP3Session implements POP3Defines {
      * данный пользователь на сервере. Действие не будет выполнено,
      * если сервер не находится в состоянии {@code POP3_STATE_AUTHORIZATION}.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processUSER(String buf) {
-        logThread.log("ProcessUSER\n");
+    private int processUSER(CommandParser command) {
+        logThread.trace("ProcessUSER\n");
         if (state != POP3_STATE_AUTHORIZATION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
-        String arguments = getParam(buf);
+        String arguments = command.argument(0);
         if (arguments == null)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "You should specify the username");
         userName = arguments;
-        File connectingUserHome = new File(USERS_DIRECTORY + File.separator + userName);
-        if (!connectingUserHome.exists()) {
-            logThread.log("User " + userName + "'s Home '" + connectingUserHome.getAbsolutePath() + "' not found\n");
+        if (!CredentialStore.shared().isKnown(userName)) {
+            logThread.log("User " + userName + " not found\n");
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Wrong username");
         }
-        logThread.log("OK User " + userName + " Home " + connectingUserHome.getAbsolutePath() + "\n");
+        logThread.log("OK User " + userName + "\n");
         return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
     }
 
@@ -258,27 +331,39 @@ public class POP3Session implements POP3Defines {
      * ранее от клиента имени пользователя, от лица которого происходит
      * аутентификация. Также проверяет, было ли ранее предоставлено
      * клиентом имя пользователя, зарегестрированного в системе (т. е.
-     * действие может быть выполнено только после завершения {@link #processUSER(String)}
+     * действие может быть выполнено только после завершения {@link #processUSER(CommandParser)}
      * c индикатором {@code POP3_DEFAULT_AFFIRMATIVE_RESPONSE}).
      * Кроме того, действие не будет выполнено, если сервер не
      * находится в состоянии {@code POP3_STATE_AUTHORIZATION}.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processPASS(String buf) {
-        logThread.log("ProcessPASS\n");
+    private int processPASS(CommandParser command) {
+        logThread.trace("ProcessPASS\n");
         if (state != POP3_STATE_AUTHORIZATION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
-        if (userName.length() < 1)
+        if (userName == null || userName.length() < 1)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "You did not introduce yourself");
-        String arguments = getParam(buf);
+        String arguments = command.argument(0);
         if (arguments == null)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "You should specify a password");
-        password = arguments;
-        if (login(userName, password))
-            return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, "Now you can check your mail");
-        else return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Wrong password");
+        long start = System.nanoTime();
+        boolean loggedIn = login(userName, arguments);
+        boolean locked = false;
+        if (loggedIn) {
+            long lockStart = System.nanoTime();
+            locked = lockMailDrop();
+            ServerMetrics.LOCK_MAILDROP.record(System.nanoTime() - lockStart);
+            if (locked)
+                state = POP3_STATE_TRANSACTION;
+        }
+        ServerMetrics.LOGIN.record(System.nanoTime() - start);
+        if (!loggedIn)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Wrong password");
+        if (!locked)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "[IN-USE] Maildrop is locked by another session");
+        return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, "Now you can check your mail");
     }
 
     /**
@@ -292,11 +377,12 @@ public class POP3Session implements POP3Defines {
      * сообщающий, что клиент закончил сессию
      */
     private int processQUIT() {
-        logThread.log("ProcessQUIT\n");
+        logThread.trace("ProcessQUIT\n");
         if (state == POP3_STATE_TRANSACTION) {
             state = POP3_STATE_UPDATE;
             updateMails();
         }
+        unlockMailDrop();
         sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, "Goodbye");
         return POP3_SESSION_QUITED;
     }
@@ -311,11 +397,27 @@ public class POP3Session implements POP3Defines {
      * @return индикатор выполнения действия
      */
     private int processSTAT() {
-        logThread.log("ProcessSTAT\n");
+        logThread.trace("ProcessSTAT\n");
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
         lastMsg = 1;
-        return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(pop3LetterList.size()) + " " + String.valueOf(totalMailSize));
+        return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(pop3LetterList.size()) + " " + String.valueOf(getTotalMailSize()));
+    }
+
+    /**
+     * Возвращает суммарный размер писем в почтовом ящике. Размер
+     * вычисляется при первом обращении.
+     *
+     * @return суммарный размер писем в байтах
+     */
+    private long getTotalMailSize() {
+        if (totalMailSize < 0) {
+            long total = 0;
+            for (POP3Letter letter : pop3LetterList)
+                total += letter.getSize();
+            totalMailSize = total;
+        }
+        return totalMailSize;
     }
 
     /**
@@ -329,38 +431,42 @@ public class POP3Session implements POP3Defines {
      * идентификатором не существует или было ранее удалено клиентом, то
      * клиент получит сообщение об ошибке.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processLIST(String buf) {
-        int msgId = 0;
-        String arguments = getParam(buf);
-        if (arguments != null) {
-            try {
-                msgId = Integer.valueOf(arguments);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-            }
-        }
-        logThread.log("ProcessLIST " + msgId + "\n");
+    private int processLIST(CommandParser command) {
+        int msgId = command.argumentCount() > 0 ? command.number(0) : 0;
+        if (logThread.isTraceEnabled())
+            logThread.trace("ProcessLIST " + msgId + "\n");
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+        if (command.argumentCount() > 0 && msgId < 1)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid message number");
         if (msgId > pop3LetterList.size())
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "No such message, only " + pop3LetterList.size() + " messages in maildrop");
         if (msgId > 0) {
-            POP3Letter message = pop3LetterList.get(msgId);
+            POP3Letter message = pop3LetterList.get(msgId - 1);
             if (message.getStatus() == POP3_MSG_STATUS_DELETED)
                 return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "This message has been deleted");
             else
                 return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(msgId) + " " + message.getSize());
         } else {
             sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
-
-            for (int i = 0; i < pop3LetterList.size(); i++) {
-                if (pop3LetterList.get(i).getStatus() != POP3_MSG_STATUS_DELETED)
-                    sendResponse(String.valueOf(i + 1) + " " + pop3LetterList.get(i).getSize());
+            logThread.trace("Sending scan listing of " + pop3LetterList.size() + " messages\n");
+            try {
+                for (int i = 0; i < pop3LetterList.size(); i++) {
+                    POP3Letter letter = pop3LetterList.get(i);
+                    if (letter.getStatus() != POP3_MSG_STATUS_DELETED) {
+                        out.writeNumber(i + 1);
+                        out.write(' ');
+                        out.writeNumber(letter.getSize());
+                        out.writeCRLF();
+                    }
+                }
+                out.write(ResponseWriter.TERMINATOR);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            sendResponse(".");
         }
         return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
     }
@@ -372,41 +478,135 @@ public class POP3Session implements POP3Defines {
      * переданным в качестве параметра. В других состояниях команда выполнена
      * не будет. Если письмо с указанным идентификатором не существует или
      * было ранее удалено клиентом, то клиент получит сообщение об ошибке.
+     * <p>Если ответы накапливаются в памяти (см. {@link ResponseWriter#isQueued()}),
+     * то письмо передаётся подготовленным файлом и не берётся из кэша
+     * писем, чтобы объём памяти соединения не зависел от размера письма.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processRETR(String buf) {
+    private int processRETR(CommandParser command) {
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
-        int msgId = 0;
-        String arguments = getParam(buf);
-        if (arguments != null) {
-            try {
-                msgId = Integer.valueOf(arguments);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-            }
-        } else
+        if (command.argumentCount() == 0)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "No arguments");
-        logThread.log("ProcessRETR " + msgId + "\n");
-        if (msgId > pop3LetterList.size())
+        int msgId = command.number(0);
+        if (logThread.isTraceEnabled())
+            logThread.trace("ProcessRETR " + msgId + "\n");
+        if (msgId < 1 || msgId > pop3LetterList.size())
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid message number");
         POP3Letter letter = pop3LetterList.get(msgId - 1);
         if (letter.getStatus() == POP3Defines.POP3_MSG_STATUS_DELETED)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "This message has been deleted");
-        sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(letter.getSize()) + " octets");
         try {
-            letter.send(socConnection.getOutputStream());
+            if (MessageRenderer.isEnabled() || out.isQueued()) {
+                if (!sendRendered(letter))
+                    return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Cannot read message");
+            } else if (!sendCached(letter))
+                sendStreamed(letter);
         } catch (IOException e) {
-            e.printStackTrace();
+            return abort(e);
         }
-        sendResponse("\r\n.");
         if (msgId > lastMsg)
             lastMsg = msgId;
         return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
     }
 
+    /**
+     * Отправляет клиенту письмо, собирая его по мере записи. Строка,
+     * завершающая ответ, отправляется и в том случае, если письмо не
+     * удалось передать полностью, поэтому клиент не ожидает её бесконечно.
+     *
+     * @param letter письмо
+     */
+    private void sendStreamed(POP3Letter letter) {
+        sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(letter.getSize()) + " octets");
+        DotStuffingOutputStream body = new DotStuffingOutputStream(out);
+        try {
+            letter.send(body);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                body.finish();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Отправляет клиенту письмо из общего кэша писем (см. {@link LetterCache}).
+     *
+     * @param letter письмо
+     * @return {@code false}, если кэш отключён или письмо не может быть
+     * закэшировано, и письмо нужно передать потоком
+     * @throws IOException если письмо не удалось передать после строки
+     *                     состояния ответа
+     */
+    private boolean sendCached(POP3Letter letter) throws IOException {
+        LetterCache cache = LetterCache.shared();
+        if (cache == null || !cache.accepts(letter.getSize()))
+            return false;
+        byte[] data;
+        try {
+            data = cache.get(letter);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (data == null)
+            return false;
+        sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(data.length) + " octets");
+        out.write(data);
+        out.write(ResponseWriter.TERMINATOR);
+        return true;
+    }
+
+    /**
+     * Отправляет клиенту подготовленный файл письма (см. {@link MessageRenderer}).
+     * Размер в ответе берётся из того же открытого файла, который
+     * затем передаётся клиенту.
+     *
+     * @param letter письмо
+     * @return {@code false}, если файл письма не удалось подготовить или открыть
+     * @throws IOException если письмо не удалось передать после строки
+     *                     состояния ответа
+     */
+    private boolean sendRendered(POP3Letter letter) throws IOException {
+        FileChannel file;
+        try {
+            file = FileChannel.open(MessageRenderer.render(letter.getLetterDir()).toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(file.size()) + " octets");
+            out.writeFile(file);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(file);
+            throw e;
+        }
+        out.write(ResponseWriter.TERMINATOR);
+        return true;
+    }
+
+    /**
+     * Прерывает сессию после ошибки передачи ответа, строка состояния
+     * которого уже отправлена клиенту. Такой ответ нельзя завершить
+     * правильно, поэтому почтовый ящик освобождается без применения
+     * изменений, как при разрыве соединения, а соединение закрывается.
+     *
+     * @param e ошибка передачи
+     * @return индикатор {@code POP3_SESSION_QUITED}
+     */
+    private int abort(IOException e) {
+        logThread.warn("Response aborted: " + e.getMessage() + "\n");
+        close();
+        return POP3_SESSION_QUITED;
+    }
+
     /**
      * Обрабатывает команду {@code DELE}, полученную от клиента. Если на момент
      * обработки сервер находится в состоянии {@code POP3_STATE_TRANSACTION},
@@ -415,23 +615,19 @@ public class POP3Session implements POP3Defines {
      * не будет. Если письмо с указанным идентификатором не существует,
      * то клиент получит сообщение об ошибке.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processDELE(String buf) {
-        int msgId = 0;
-        String arguments = getParam(buf);
-        if (arguments != null) {
-            try {
-                msgId = Integer.valueOf(arguments);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-            }
-        } else
+    private int processDELE(CommandParser command) {
+        if (command.argumentCount() == 0)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "No arguments");
-        logThread.log("ProcessDELE " + msgId + "\n");
-        if (state != POP3_STATE_TRANSACTION || msgId > pop3LetterList.size())
+        int msgId = command.number(0);
+        if (logThread.isTraceEnabled())
+            logThread.trace("ProcessDELE " + msgId + "\n");
+        if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+        if (msgId < 1 || msgId > pop3LetterList.size())
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid message number");
         pop3LetterList.get(msgId - 1).delete();
         if (msgId > lastMsg)
             lastMsg = msgId;
@@ -444,7 +640,7 @@ public class POP3Session implements POP3Defines {
      * @return индикатор выполнения действия
      */
     private int processNOOP() {
-        logThread.log("ProcessNOOP");
+        logThread.trace("ProcessNOOP");
         return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
     }
 
@@ -459,7 +655,7 @@ public class POP3Session implements POP3Defines {
     private int processLAST() {
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
-        logThread.log("ProcessLAST\n");
+        logThread.trace("ProcessLAST\n");
         return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(lastMsg));
     }
 
@@ -472,7 +668,7 @@ public class POP3Session implements POP3Defines {
      * @return индикатор выполнения действия
      */
     private int processRSET() {
-        logThread.log("ProcessRSET");
+        logThread.trace("ProcessRSET");
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
         pop3LetterList.forEach(POP3Letter::reset);
@@ -488,32 +684,133 @@ public class POP3Session implements POP3Defines {
      * параметром (если второй параметр больше совокупного количества строк в
      * письме, то клиенту будет возвращен весь текст письма). В других
      * состояниях команда выполнена не будет.
+     * <p>Если ответы накапливаются в памяти (см. {@link ResponseWriter#isQueued()}),
+     * то ответ передаётся частью подготовленного файла письма.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processTOP(String buf) {
-        logThread.log("ProcessTOP");
+    private int processTOP(CommandParser command) {
+        logThread.trace("ProcessTOP");
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
-        String[] parts = buf.split(" ");
-        int msgId = Integer.valueOf(parts[1]);
-        int lineNumber = Integer.valueOf(parts[2]);
+        if (command.argumentCount() < 2)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "No arguments");
+        int msgId = command.number(0);
+        int lineNumber = command.number(1);
+        if (msgId < 1 || msgId > pop3LetterList.size())
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid message number");
+        if (lineNumber < 0)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid number of lines");
         POP3Letter message = pop3LetterList.get(msgId - 1);
         if (message.getStatus() == POP3_MSG_STATUS_DELETED)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "This message has been deleted");
+        if (MessageRenderer.isEnabled() || out.isQueued()) {
+            try {
+                if (!sendRenderedTop(message, lineNumber))
+                    return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Message is unavailable");
+            } catch (IOException e) {
+                return abort(e);
+            }
+            return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
+        }
+        if (!message.load())
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Message is unavailable");
         sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
-        sendResponse(message.getHeader());
-        String[] lines = message.getText().split(System.getProperty("line.separator"));
-        if (lineNumber > lines.length)
-            lineNumber = lines.length;
-        for (int i = 0; i < lineNumber; i++) {
-            sendResponse(lines[i].replace(System.getProperty("line.separator"), "\r\n"));
+        DotStuffingOutputStream body = new DotStuffingOutputStream(out);
+        try {
+            MessageWriter writer = new DefaultMessageWriter();
+            if (lineNumber == 0)
+                writer.writeHeader(message.getMimeMessage().getHeader(), body);
+            else
+                writer.writeMessage(message.getMimeMessage(), new TopOutputStream(body, -1, lineNumber));
+        } catch (TopOutputStream.LimitReachedException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            message.release();
+        }
+        try {
+            body.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        sendResponse(".");
         return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
     }
 
+    /**
+     * Отправляет клиенту заголовок и первые строки тела подготовленного
+     * письма (см. {@link MessageRenderer}). Ответ передаётся началом файла
+     * письма (см. {@link ResponseWriter#writeFile(FileChannel, long, long)}),
+     * поэтому не копируется в память. Длина заголовка берётся из индекса
+     * почтового ящика, если файл письма не подготовлен заново после её
+     * вычисления, поэтому при нулевом количестве строк тело письма не
+     * читается; иначе длина ответа вычисляется чтением файла до последней
+     * нужной строки.
+     *
+     * @param letter письмо
+     * @param lines  количество строк тела письма
+     * @return {@code false}, если файл письма не удалось подготовить или открыть
+     * @throws IOException если ответ не удалось передать после строки
+     *                     состояния
+     */
+    private boolean sendRenderedTop(POP3Letter letter, int lines) throws IOException {
+        File rendered;
+        FileChannel file;
+        try {
+            rendered = MessageRenderer.render(letter.getLetterDir());
+            file = FileChannel.open(rendered.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        long length;
+        try {
+            long headerLength = letter.getHeaderLength(rendered);
+            length = lines == 0 ? headerLength : topLength(file, headerLength, lines);
+        } catch (IOException e) {
+            e.printStackTrace();
+            IOUtils.closeQuietly(file);
+            return false;
+        }
+        try {
+            sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
+            out.writeFile(file, 0, length);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(file);
+            throw e;
+        }
+        out.write(ResponseWriter.TERMINATOR);
+        return true;
+    }
+
+    /**
+     * Вычисляет длину начала подготовленного письма, содержащего заголовок
+     * и заданное количество строк тела (см. {@link TopOutputStream}).
+     * Файл читается блоками, пока не будут найдены все строки.
+     *
+     * @param file         открытый канал файла письма
+     * @param headerLength длина заголовка или {@code -1}, если она неизвестна
+     * @param lines        количество строк тела письма
+     * @return длина начала письма в байтах
+     * @throws IOException если при чтении произошла ошибка
+     */
+    private static long topLength(FileChannel file, long headerLength, int lines) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        TopOutputStream top = new TopOutputStream(counter, headerLength, lines);
+        ByteBuffer chunk = ByteBuffer.allocate(ResponseWriter.DEFAULT_BUFFER_SIZE);
+        long position = 0;
+        try {
+            while (!top.isComplete() && file.read(chunk, position) > 0) {
+                position += chunk.position();
+                top.write(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+        } catch (TopOutputStream.LimitReachedException ignored) {
+        }
+        return counter.getByteCount();
+    }
+
     /**
      * Обрабатывает команду {@code UIDL}, полученную от клиента. Если на момент
      * обработки сервер находится в состоянии {@code POP3_STATE_TRANSACTION},
@@ -525,37 +822,42 @@ public class POP3Session implements POP3Defines {
      * идентификатором не существует или было ранее удалено клиентом, то
      * клиент получит сообщение об ошибке.
      *
-     * @param buf строка, содержащая запрос от клиента
+     * @param command разобранный запрос клиента
      * @return индикатор выполнения действия
      */
-    private int processUIDL(String buf) {
-        int msgId = 0;
-        String arguments = getParam(buf);
-        if (arguments != null) {
-            try {
-                msgId = Integer.valueOf(arguments);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-            }
-        }
-        logThread.log("ProcessUIDL " + msgId + "\n");
+    private int processUIDL(CommandParser command) {
+        int msgId = command.argumentCount() > 0 ? command.number(0) : 0;
+        if (logThread.isTraceEnabled())
+            logThread.trace("ProcessUIDL " + msgId + "\n");
         if (state != POP3_STATE_TRANSACTION)
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE);
+        if (command.argumentCount() > 0 && msgId < 1)
+            return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "Invalid message number");
         if (msgId > pop3LetterList.size())
             return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "No such message, only " + pop3LetterList.size() + " messages in maildrop");
         if (msgId > 0) {
-            POP3Letter message = pop3LetterList.get(msgId);
+            POP3Letter message = pop3LetterList.get(msgId - 1);
             if (message.getStatus() == POP3_MSG_STATUS_DELETED)
                 return sendResponse(POP3_DEFAULT_NEGATIVE_RESPONSE, "This message has been deleted");
             else
                 return sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, String.valueOf(msgId) + " " + message.getUniqueId());
         } else {
             sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE);
-            for (int i = 0; i < pop3LetterList.size(); i++) {
-                if (pop3LetterList.get(i).getStatus() != POP3_MSG_STATUS_DELETED)
-                    sendResponse(String.valueOf(i + 1) + " " + pop3LetterList.get(i).getUniqueId());
+            logThread.trace("Sending unique-id listing of " + pop3LetterList.size() + " messages\n");
+            try {
+                for (int i = 0; i < pop3LetterList.size(); i++) {
+                    POP3Letter letter = pop3LetterList.get(i);
+                    if (letter.getStatus() != POP3_MSG_STATUS_DELETED) {
+                        out.writeNumber(i + 1);
+                        out.write(' ');
+                        out.writeString(letter.getUniqueId());
+                        out.writeCRLF();
+                    }
+                }
+                out.write(ResponseWriter.TERMINATOR);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            sendResponse(".");
         }
         return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
     }
@@ -563,60 +865,49 @@ public class POP3Session implements POP3Defines {
     /**
      * Обрабатывает команду {@code CAPA}, полученную от клиента,
      * возвращая клиенту список дополнительных команд, поддерживаемых
-     * сервером.
+     * сервером. Возможность {@code PIPELINING} (RFC 2449) означает, что
+     * клиент может отправлять несколько команд, не дожидаясь ответов:
+     * команды выполняются по порядку, а ответы на них отправляются вместе.
+     * Возможность {@code RESP-CODES} означает, что ответы {@code -ERR} могут
+     * содержать код причины в квадратных скобках, например {@code [IN-USE]}.
      *
      * @return индикатор выполнения действия
      */
     private int processCAPA() {
-        logThread.log("processCAPA");
+        logThread.trace("processCAPA");
         sendResponse(POP3_DEFAULT_AFFIRMATIVE_RESPONSE, "List of capabilities:");
         sendResponse("TOP");
         sendResponse("USER");
         sendResponse("UIDL");
+        sendResponse("PIPELINING");
+        sendResponse("RESP-CODES");
         sendResponse(".");
         return POP3_DEFAULT_AFFIRMATIVE_RESPONSE;
     }
 
     /**
-     * Выполняет авторизацию пользователя. Если авторизация успешна, то
-     * сервер переводится в состояние {@code POP3_STATE_TRANSACTION}.
+     * Проверяет пароль пользователя по хранилищу учётных данных
+     * ({@link CredentialStore}). Пароль в лог не записывается.
      *
      * @param userName     имя пользователя
      * @param userPassword пароль
      * @return результат авторизации
      */
     private boolean login(String userName, String userPassword) {
-        logThread.log("Login: ");
-        logThread.log("user= [" + this.userName + "] password = [" + password + "]\n");
-        String passPath = USERS_DIRECTORY + File.separator + userName + File.separator + PASS_FILE;
-        File passFile = new File(passPath);
-        logThread.log("Pwd file: " + passPath + "\n");
-        try (BufferedReader reader = new BufferedReader(new FileReader(passFile))) {
-            String filePassword = "";
-            int c;
-            while ((c = reader.read()) != -1)
-                filePassword += (char) c;
-            if (filePassword.equals(userPassword)) {
-                logThread.log("Password ok\n");
-                state = POP3_STATE_TRANSACTION;
-                userHome = new File(USERS_DIRECTORY + File.separator + this.userName);
-                lockMailDrop();
-                return true;
-            }
-        } catch (FileNotFoundException e) {
-            logThread.log("Password file is missing!");
+        logThread.log("Login: user= [" + userName + "]\n");
+        if (!CredentialStore.shared().verify(userName, userPassword))
             return false;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return false;
+        logThread.log("Password ok\n");
+        userHome = new File(USERS_DIRECTORY + File.separator + userName);
+        return true;
     }
 
     /**
      * Удаляет файлы сообщений, помеченные как удаленные (имеющие
      * статус {@code POP3_MSG_STATUS_DELETED}). Если сервер не
      * находится в состоянии {@code POP3_STATE_UPDATE}, то действие
-     * выполнено не будет.
+     * выполнено не будет. Если у пользователя нет почтового ящика (индекс
+     * не открыт), то удалять нечего.
      */
     private void updateMails() {
         logThread.log("Updating mails\n");
@@ -624,34 +915,104 @@ public class POP3Session implements POP3Defines {
             logThread.log("Called update but state is not POP3_STATE_UPDATE (" + POP3_STATE_UPDATE + ")\n");
             return;
         }
+        if (mailDropIndex == null)
+            return;
         for (POP3Letter letter : pop3LetterList) {
             if (letter.getStatus() == POP3_MSG_STATUS_DELETED)
                 try {
                     FileUtils.deleteDirectory(letter.getLetterDir());
+                    mailDropIndex.remove(letter.getLetterDir());
+                    if (LetterCache.shared() != null)
+                        LetterCache.shared().invalidate(letter.getLetterDir());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
         }
+        mailDropIndex.save();
     }
 
     /**
-     * Ограничевает доступ к ящику одним пользователем и собирает информацию о письмах.
+     * Ограничевает доступ к ящику одним пользователем (см. {@link MailDropLocks})
+     * и составляет список писем по индексу почтового ящика ({@link MailDropIndex}).
+     * Файлы писем читаются только для писем, добавленных или изменённых после
+     * предыдущего входа. Если ящик открыт другой сессией, то письма не читаются.
+     * Если директории пользователя нет, то ящик считается пустым, а индекс
+     * не открывается.
+     *
+     * @return {@code false}, если ящик открыт другой сессией или другим процессом
      */
-    private void lockMailDrop() {
+    private boolean lockMailDrop() {
         logThread.log("Locking maildrop");
         if (!userHome.isDirectory()) {
-            return;
+            return true;
+        }
+        mailDropLock = MailDropLocks.shared().acquire(userName, userHome);
+        if (mailDropLock == null) {
+            logThread.log("Maildrop of " + userName + " is in use\n");
+            return false;
+        }
+        mailDropIndex = MailDropIndex.open(userHome);
+        long bytes = 0;
+        for (MailDropIndex.Entry entry : mailDropIndex.entries()) {
+            pop3LetterList.add(new POP3Letter(POP3_MSG_STATUS_INITIAL, new File(userHome, entry.getName()),
+                    entry.getSize(), entry.getUniqueId(), entry.getHeaderLength(), entry.getHeaderStamp()));
+            bytes += entry.getSize();
+        }
+        heldLetters = pop3LetterList.size();
+        heldBytes = bytes;
+        if (pop3LetterList.isEmpty())
+            logThread.log("No messages in " + userHome.getPath());
+        return true;
+    }
+
+    /**
+     * Освобождает почтовый ящик, открытый сессией.
+     */
+    private void unlockMailDrop() {
+        if (mailDropLock != null) {
+            mailDropLock.release();
+            mailDropLock = null;
         }
-        File[] files = userHome.listFiles();
-        if (files.length > 1)
-            for (File file : files) {
-                if (file.isDirectory()){
-                    POP3Letter letter = new POP3Letter(POP3_MSG_STATUS_INITIAL, file);
-                    pop3LetterList.add(letter);
-                    totalMailSize += letter.getSize();
-                }
-            }
-        else logThread.log("No messages in " + userHome.getPath());
+    }
+
+    /**
+     * Возвращает состояние сессии. Может вызываться из любого потока.
+     *
+     * @return {@code POP3_STATE_AUTHORIZATION}, {@code POP3_STATE_TRANSACTION}
+     * или {@code POP3_STATE_UPDATE}
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Возвращает количество писем, открытых сессией. Может вызываться
+     * из любого потока.
+     *
+     * @return количество писем
+     */
+    public int getHeldLetters() {
+        return heldLetters;
+    }
+
+    /**
+     * Возвращает суммарный размер писем, открытых сессией, по индексу
+     * почтового ящика. Может вызываться из любого потока.
+     *
+     * @return размер в байтах
+     */
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * Возвращает количество байтов, отправленных клиенту сессией. Может
+     * вызываться из любого потока; значение приблизительное.
+     *
+     * @return количество байтов
+     */
+    public long getBytesSent() {
+        return out.getBytesWritten();
     }
 
     /**
@@ -663,4 +1024,13 @@ public class POP3Session implements POP3Defines {
         processQUIT();
     }
 
+    /**
+     * Освобождает почтовый ящик после разрыва соединения. Изменения,
+     * сделанные клиентом, не применяются (RFC 1939, раздел 6). Повторные
+     * вызовы и вызов после {@code QUIT} ничего не делают.
+     */
+    public void close() {
+        unlockMailDrop();
+    }
+
 }
@@ -0,0 +1,202 @@
+package com.company;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Структурированная трассировка диалога клиент-сервер. Для каждой
+ * команды клиента записывается одна строка с полями, разделёнными
+ * табуляцией:
+ * <pre>время  сессия  команда  аргумент  ответ  байты  микросекунды</pre>
+ * где {@code время} - время завершения команды в миллисекундах,
+ * {@code аргумент} - длина аргументов команды в байтах (сами аргументы
+ * не записываются), {@code ответ} - {@code +OK} или {@code -ERR},
+ * {@code байты} - количество байтов ответа, {@code микросекунды} -
+ * время обработки команды сервером.
+ * <p>Записываются не все сессии: сессия трассируется целиком с заданной
+ * вероятностью, а остальные сессии записываются только если одна из их
+ * команд обрабатывалась дольше заданного порога. Команды такой сессии,
+ * выполненные до медленной, хранятся в памяти сессии (не более
+ * {@value #MAX_PENDING}) и записываются вместе с ней.
+ * <p>Запись выполняет отдельный поток {@link LogThread}, поэтому
+ * трассировка не блокирует потоки сессий. Если поток записи не успевает,
+ * то записи отбрасываются, а их количество записывается строкой-комментарием,
+ * начинающейся с {@code '#'}. Файлы трассировки обрабатываются утилитой
+ * {@link TraceReport}, которая пропускает такие строки.
+ * @see ServerConfig
+ */
+public class ProtocolTrace {
+    /**
+     * Максимальное количество команд, хранимых в памяти сессии, которая
+     * не выбрана для трассировки.
+     */
+    public static final int MAX_PENDING = 256;
+    /**
+     * Заголовок файла трассировки.
+     */
+    static final String HEADER = "#time\tsession\tcommand\targ_bytes\tresult\tbytes\tmicros";
+    /**
+     * Трассировка, общая для всех сессий. Равна {@code null}, если
+     * трассировка отключена.
+     */
+    private static volatile ProtocolTrace shared;
+    /**
+     * Поток, записывающий трассировку в файл.
+     */
+    private final LogThread writer;
+    /**
+     * Доля трассируемых сессий от {@code 0} до {@code 1}.
+     */
+    private final double sampleRate;
+    /**
+     * Время обработки команды, начиная с которого сессия записывается,
+     * в наносекундах; {@code 0}, если медленные сессии не выделяются.
+     */
+    private final long slowNanos;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param file          файл трассировки
+     * @param samplePercent доля трассируемых сессий в процентах
+     * @param slowMillis    время обработки команды в миллисекундах, начиная
+     *                      с которого сессия записывается; {@code 0} - не учитывать
+     */
+    public ProtocolTrace(File file, double samplePercent, long slowMillis) {
+        sampleRate = samplePercent / 100.0;
+        slowNanos = slowMillis * 1_000_000L;
+        writer = new LogThread(file, LogThread.LEVEL_INFO, LogThread.OVERFLOW_DROP, false, false, "# ");
+        writer.setName("trace");
+        writer.setDaemon(true);
+        writer.start();
+        writer.log(HEADER);
+    }
+
+    /**
+     * Включает общую трассировку.
+     *
+     * @param file          файл трассировки или {@code null}, чтобы
+     *                      отключить трассировку
+     * @param samplePercent доля трассируемых сессий в процентах
+     * @param slowMillis    время обработки команды в миллисекундах, начиная
+     *                      с которого сессия записывается; {@code 0} - не учитывать
+     */
+    public static void configure(File file, double samplePercent, long slowMillis) {
+        close();
+        if (file != null && (samplePercent > 0 || slowMillis > 0))
+            shared = new ProtocolTrace(file, samplePercent, slowMillis);
+    }
+
+    /**
+     * Возвращает общую трассировку.
+     *
+     * @return общая трассировка или {@code null}, если трассировка отключена
+     */
+    public static ProtocolTrace shared() {
+        return shared;
+    }
+
+    /**
+     * Отключает общую трассировку, дописав накопленные записи в файл.
+     */
+    public static void close() {
+        ProtocolTrace trace = shared;
+        shared = null;
+        if (trace != null)
+            trace.writer.closeThread();
+    }
+
+    /**
+     * Начинает трассировку сессии и решает, записывается ли она целиком.
+     *
+     * @param sessionId идентификатор сессии
+     * @return трассировка сессии или {@code null}, если сессия не может
+     * быть записана
+     */
+    public Session openSession(long sessionId) {
+        boolean sampled = sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+        if (!sampled && slowNanos == 0)
+            return null;
+        return new Session(sessionId, sampled);
+    }
+
+    /**
+     * Трассировка одной сессии. Используется только потоком, обрабатывающим
+     * команды сессии.
+     */
+    public class Session {
+        /**
+         * Идентификатор сессии.
+         */
+        private final long sessionId;
+        /**
+         * Флаг, показывающий, что команды сессии записываются сразу.
+         */
+        private boolean recording;
+        /**
+         * Записи, ожидающие, окажется ли сессия медленной.
+         */
+        private List<String> pending;
+
+        private Session(long sessionId, boolean recording) {
+            this.sessionId = sessionId;
+            this.recording = recording;
+        }
+
+        /**
+         * Записывает выполненную команду.
+         *
+         * @param line          буфер, содержащий команду клиента
+         * @param offset        начало команды в буфере
+         * @param length        длина команды
+         * @param result        {@code true}, если команда выполнена успешно
+         * @param bytes         количество байтов ответа
+         * @param durationNanos время обработки команды в наносекундах
+         */
+        public void record(byte[] line, int offset, int length, boolean result, long bytes, long durationNanos) {
+            String entry = format(line, offset, length, result, bytes, durationNanos);
+            if (!recording && slowNanos > 0 && durationNanos >= slowNanos) {
+                recording = true;
+                if (pending != null) {
+                    for (String earlier : pending)
+                        writer.log(earlier);
+                    pending = null;
+                }
+            }
+            if (recording) {
+                writer.log(entry);
+                return;
+            }
+            if (pending == null)
+                pending = new ArrayList<>();
+            if (pending.size() < MAX_PENDING)
+                pending.add(entry);
+        }
+
+        /**
+         * Формирует запись трассировки.
+         */
+        private String format(byte[] line, int offset, int length, boolean result, long bytes, long durationNanos) {
+            int end = 0;
+            while (end < length && line[offset + end] != ' ')
+                end++;
+            StringBuilder sb = new StringBuilder(64);
+            sb.append(System.currentTimeMillis()).append('\t').append(sessionId).append('\t');
+            for (int i = 0; i < Math.min(end, 4); i++) {
+                int c = line[offset + i] & 0xFF;
+                if (c >= 'a' && c <= 'z')
+                    c -= 'a' - 'A';
+                sb.append(c >= 'A' && c <= 'Z' ? (char) c : '?');
+            }
+            if (end == 0)
+                sb.append('?');
+            sb.append('\t').append(Math.max(0, length - end - 1))
+                    .append('\t').append(result ? "+OK" : "-ERR")
+                    .append('\t').append(bytes)
+                    .append('\t').append(durationNanos / 1000);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Счётчик частоты событий за последнюю минуту.
+ * <p>События подсчитываются по секундам в кольцевом массиве. Каждая
+ * ячейка хранит номер секунды и количество событий в одном значении
+ * {@code long}, поэтому ячейка переходит на новую секунду одной
+ * операцией compare-and-set без блокировок и потери событий.
+ */
+final class RateMeter {
+    /**
+     * Количество секунд, за которое вычисляется частота, вместе с текущей.
+     */
+    private static final int WINDOW = 61;
+    /**
+     * Количество битов ячейки, отведённых под счётчик событий.
+     */
+    private static final int COUNT_BITS = 24;
+    /**
+     * Маска счётчика событий.
+     */
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    /**
+     * Ячейки с номером секунды и количеством событий.
+     */
+    private final AtomicLongArray slots = new AtomicLongArray(WINDOW);
+
+    /**
+     * Учитывает событие.
+     */
+    void mark() {
+        long second = System.currentTimeMillis() / 1000;
+        int index = (int) (second % WINDOW);
+        while (true) {
+            long value = slots.get(index);
+            long next = value >>> COUNT_BITS == second
+                    ? (value & COUNT_MASK) < COUNT_MASK ? value + 1 : value
+                    : second << COUNT_BITS | 1;
+            if (slots.compareAndSet(index, value, next))
+                return;
+        }
+    }
+
+    /**
+     * Возвращает среднее количество событий в секунду за последнюю
+     * минуту, не считая текущей секунды.
+     *
+     * @return частота событий
+     */
+    double rate() {
+        long second = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            long value = slots.get(i);
+            long age = second - (value >>> COUNT_BITS);
+            if (age >= 1 && age < WINDOW)
+                total += value & COUNT_MASK;
+        }
+        return total / (double) (WINDOW - 1);
+    }
+}
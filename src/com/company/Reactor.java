@@ -0,0 +1,176 @@
+package com.company;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Поток-реактор, обслуживающий множество клиентов с помощью
+ * одного {@link Selector}. Принимает события готовности каналов
+ * к чтению и записи и передаёт их соответствующим {@link NioConnection}.
+ * <p>Ошибка при обработке события, в том числе непроверяемое исключение
+ * (например, {@link java.nio.channels.CancelledKeyException}, если ключ
+ * отменён после проверки), закрывает только соединение, в котором она
+ * произошла; реактор продолжает обслуживать остальные соединения.
+ * @see NioServer
+ */
+class Reactor extends Thread {
+    /**
+     * Селектор каналов клиентов.
+     */
+    private final Selector selector;
+    /**
+     * Принятые каналы, ожидающие регистрации в селекторе.
+     */
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    /**
+     * Задачи, переданные реактору другими потоками.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Реестр подключённых клиентов.
+     */
+    private final SessionRegistry registry;
+    /**
+     * Количество принятых и ещё не закрытых соединений сервера.
+     */
+    private final AtomicInteger admitted;
+    /**
+     * Поток логгирования сессий.
+     */
+    private final LogThread logThread;
+    /**
+     * Флаг, показывающий, работает ли реактор.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param name      имя потока
+     * @param logThread поток для логгирования диалога клиент-сервер
+     * @param registry  реестр подключённых клиентов
+     * @param admitted  количество принятых и ещё не закрытых соединений
+     *                  сервера; уменьшается при закрытии соединения
+     * @throws IOException если не удалось открыть селектор
+     */
+    Reactor(String name, LogThread logThread, SessionRegistry registry, AtomicInteger admitted) throws IOException {
+        super(name);
+        this.logThread = logThread;
+        this.registry = registry;
+        this.admitted = admitted;
+        selector = Selector.open();
+    }
+
+    /**
+     * Передаёт реактору новый канал клиента.
+     *
+     * @param channel канал клиента в неблокирующем режиме
+     */
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Передаёт задачу на выполнение в потоке реактора. Используется для
+     * работы с соединениями из других потоков.
+     *
+     * @param task задача
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerNewChannels();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logThread.warn("Reactor task failed: " + e + "\n");
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.handleRead();
+                        else if (key.isWritable())
+                            connection.handleWrite();
+                    } catch (IOException e) {
+                        logThread.log("Connection error: " + e.getMessage());
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        logThread.warn("Connection " + connection.getId() + " failed: " + e + "\n");
+                        connection.close();
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys())
+                if (key.isValid())
+                    ((NioConnection) key.attachment()).shutdown();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Регистрирует в селекторе каналы, принятые с момента
+     * предыдущей итерации.
+     */
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            NioConnection connection = null;
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                connection = new NioConnection(channel, key, this, logThread, registry);
+                key.attach(connection);
+                connection.handleWrite();
+            } catch (IOException e) {
+                logThread.log("Connection error: " + e.getMessage());
+                if (connection != null)
+                    connection.close();
+                else {
+                    connectionClosed();
+                    IOUtils.closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Учитывает закрытие соединения реактора.
+     */
+    void connectionClosed() {
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Останавливает реактор. Все сессии реактора будут принудительно
+     * завершены.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,381 @@
+package com.company;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Буферизованный поток ответов сервера клиенту.
+ * <p>Ответы накапливаются в буфере сессии и передаются в сокет только
+ * при вызове {@link #flush()} или при заполнении буфера, поэтому
+ * многострочный ответ (например, на {@code LIST} или {@code UIDL})
+ * отправляется несколькими крупными блоками, а не отдельной записью на
+ * каждую строку. Часто используемые ответы закодированы заранее, а
+ * числа записываются в буфер без создания промежуточных строк.
+ * <p>Содержимое файлов (см. {@link #writeFile(FileChannel)}) передаётся через
+ * {@link FileSink}, если он задан, минуя буфер и память Java.
+ * <p>Если выходной поток не передаёт данные в сокет, а складывает их в
+ * очередь в памяти (см. {@link #setQueued(boolean)}), то длинные ответы
+ * следует передавать файлами, иначе ответ целиком окажется в памяти.
+ */
+public class ResponseWriter extends OutputStream implements POP3Defines {
+    /**
+     * Размер буфера по-умолчанию.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    /**
+     * Краткий положительный ответ.
+     */
+    static final byte[] OK_DEFAULT = ascii("+OK Action performed\r\n");
+    /**
+     * Краткий отрицательный ответ.
+     */
+    static final byte[] ERR_DEFAULT = ascii("-ERR An error occurred\r\n");
+    /**
+     * Приветствие сервера.
+     */
+    static final byte[] WELCOME = ascii("+OK " + APP_TITLE + " POP3 Server ready on\r\n");
+    /**
+     * Начало положительного ответа.
+     */
+    static final byte[] OK_PREFIX = ascii("+OK ");
+    /**
+     * Начало отрицательного ответа.
+     */
+    static final byte[] ERR_PREFIX = ascii("-ERR ");
+    /**
+     * Конец строки.
+     */
+    static final byte[] CRLF = ascii("\r\n");
+    /**
+     * Строка, завершающая многострочный ответ.
+     */
+    static final byte[] TERMINATOR = ascii(".\r\n");
+    /**
+     * Поток, в который передаются накопленные ответы.
+     */
+    private final OutputStream out;
+    /**
+     * Приёмник содержимого файлов. Равен {@code null}, если файлы
+     * копируются через поток.
+     */
+    private final FileSink fileSink;
+    /**
+     * Буфер ответов.
+     */
+    private final byte[] buffer;
+    /**
+     * Количество байтов в буфере.
+     */
+    private int count;
+    /**
+     * Количество байтов, переданных в выходной поток или приёмник файлов.
+     */
+    private long bytesWritten;
+    /**
+     * Гистограмма времени передачи данных в выходной поток или
+     * {@code null}, если время не измеряется.
+     */
+    private LatencyHistogram writeTimer;
+    /**
+     * Флаг, показывающий, что выходной поток складывает данные в очередь
+     * в памяти, а не передаёт их в сокет.
+     */
+    private boolean queued;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param out поток, в который передаются накопленные ответы
+     */
+    public ResponseWriter(OutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Конструктор класса.
+     *
+     * @param out      поток, в который передаются накопленные ответы
+     * @param fileSink приёмник содержимого файлов или {@code null}
+     */
+    public ResponseWriter(OutputStream out, FileSink fileSink) {
+        this(out, fileSink, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Конструктор класса.
+     *
+     * @param out        поток, в который передаются накопленные ответы
+     * @param fileSink   приёмник содержимого файлов или {@code null}
+     * @param bufferSize размер буфера
+     */
+    public ResponseWriter(OutputStream out, FileSink fileSink, int bufferSize) {
+        this.out = out;
+        this.fileSink = fileSink;
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Создаёт приёмник, передающий файлы в блокирующий канал с помощью
+     * {@link FileChannel#transferTo}. Если файл оказался короче
+     * передаваемой части (например, был усечён после того, как клиенту
+     * сообщили его размер), то канал клиента закрывается, а передача
+     * прерывается исключением {@link EOFException}: ответ уже не может
+     * быть завершён правильно, поэтому сессия не продолжается.
+     *
+     * @param target канал, в который передаются файлы
+     * @return приёмник содержимого файлов
+     */
+    public static FileSink channelSink(WritableByteChannel target) {
+        return (file, position, count) -> {
+            try (FileChannel channel = file) {
+                long end = position + count;
+                while (position < end) {
+                    long n = channel.transferTo(position, end - position, target);
+                    if (n <= 0 && position >= channel.size()) {
+                        target.close();
+                        throw new EOFException("File truncated at " + position + " of " + end + " bytes");
+                    }
+                    position += n;
+                }
+            }
+        };
+    }
+
+    /**
+     * Кодирует строку из символов ASCII.
+     *
+     * @param s строка
+     * @return байты строки
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length)
+            flushBuffer();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.length - count) {
+            flushBuffer();
+            if (len >= buffer.length) {
+                long start = writeTimer != null ? System.nanoTime() : 0;
+                out.write(b, off, len);
+                bytesWritten += len;
+                if (writeTimer != null)
+                    writeTimer.record(System.nanoTime() - start);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Записывает строку в кодировке UTF-8. Символы ASCII записываются
+     * в буфер напрямую.
+     *
+     * @param s строка
+     * @throws IOException если при записи произошла ошибка
+     */
+    public void writeString(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (count == buffer.length)
+                flushBuffer();
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    /**
+     * Записывает десятичное представление числа.
+     *
+     * @param value число
+     * @throws IOException если при записи произошла ошибка
+     */
+    public void writeNumber(long value) throws IOException {
+        if (buffer.length - count < 20)
+            flushBuffer();
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeString(String.valueOf(value));
+                return;
+            }
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            digits++;
+        int pos = count + digits;
+        do {
+            buffer[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        count += digits;
+    }
+
+    /**
+     * Записывает содержимое файла. Накопленные ответы передаются в
+     * выходной поток до содержимого файла. Канал файла закрывается после
+     * передачи, в том числе если она выполняется асинхронно.
+     *
+     * @param file открытый канал файла
+     * @throws IOException если при чтении или записи произошла ошибка
+     */
+    public void writeFile(FileChannel file) throws IOException {
+        writeFile(file, 0, file.size());
+    }
+
+    /**
+     * Записывает часть файла. Накопленные ответы передаются в выходной
+     * поток до содержимого файла. Канал файла закрывается после передачи,
+     * в том числе если она выполняется асинхронно. Если файл оказался
+     * короче передаваемой части, то передача прерывается исключением
+     * {@link EOFException}, как и в приёмнике {@link #channelSink}.
+     *
+     * @param file     открытый канал файла
+     * @param position смещение начала передаваемой части
+     * @param length   количество передаваемых байтов
+     * @throws EOFException если файл короче передаваемой части
+     * @throws IOException  если при чтении или записи произошла ошибка
+     */
+    public void writeFile(FileChannel file, long position, long length) throws IOException {
+        if (fileSink != null) {
+            flush();
+            long start = writeTimer != null ? System.nanoTime() : 0;
+            fileSink.transfer(file, position, length);
+            bytesWritten += length;
+            if (writeTimer != null)
+                writeTimer.record(System.nanoTime() - start);
+            return;
+        }
+        try (FileChannel channel = file) {
+            flushBuffer();
+            ByteBuffer chunk = ByteBuffer.wrap(buffer);
+            long end = position + length;
+            while (position < end) {
+                chunk.limit((int) Math.min(buffer.length, end - position));
+                int n = channel.read(chunk, position);
+                if (n <= 0)
+                    throw new EOFException("File truncated at " + position + " of " + end + " bytes");
+                position += n;
+                count = n;
+                flushBuffer();
+                chunk.clear();
+            }
+        }
+    }
+
+    /**
+     * Записывает конец строки.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    public void writeCRLF() throws IOException {
+        write(CRLF);
+    }
+
+    /**
+     * Возвращает количество записанных байтов, включая находящиеся в буфере.
+     *
+     * @return количество байтов
+     */
+    public long getBytesWritten() {
+        return bytesWritten + count;
+    }
+
+    /**
+     * Задаёт гистограмму, в которую записывается время передачи данных
+     * в выходной поток. Используется, когда выходной поток пишет
+     * непосредственно в сокет клиента.
+     *
+     * @param writeTimer гистограмма или {@code null}
+     * @see ServerMetrics#SOCKET_WRITE
+     */
+    public void setWriteTimer(LatencyHistogram writeTimer) {
+        this.writeTimer = writeTimer;
+    }
+
+    /**
+     * Задаёт, складывает ли выходной поток данные в очередь в памяти.
+     * Используется неблокирующим режимом сервера, в котором ответы
+     * отправляются по мере готовности сокета к записи.
+     *
+     * @param queued {@code true}, если данные накапливаются в памяти
+     * @see NioConnection
+     */
+    public void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Проверяет, складывает ли выходной поток данные в очередь в памяти.
+     * В этом случае содержимое писем передаётся файлами (см.
+     * {@link #writeFile(FileChannel)}), объём которых не ограничен
+     * памятью.
+     *
+     * @return {@code true}, если данные накапливаются в памяти
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * Передаёт содержимое буфера в выходной поток и сбрасывает его.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Передаёт содержимое буфера в выходной поток.
+     *
+     * @throws IOException если при записи произошла ошибка
+     */
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            long start = writeTimer != null ? System.nanoTime() : 0;
+            out.write(buffer, 0, count);
+            bytesWritten += count;
+            count = 0;
+            if (writeTimer != null)
+                writeTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Приёмник содержимого файлов, передающий их клиенту без копирования
+     * в буфер ответов.
+     */
+    public interface FileSink {
+        /**
+         * Передаёт клиенту часть файла. Приёмник закрывает канал файла
+         * после завершения передачи.
+         *
+         * @param file     открытый канал файла
+         * @param position смещение начала передаваемой части
+         * @param count    количество передаваемых байтов
+         * @throws IOException если при передаче произошла ошибка
+         */
+        void transfer(FileChannel file, long position, long count) throws IOException;
+    }
+}
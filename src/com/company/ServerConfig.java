@@ -0,0 +1,456 @@
+package com.company;
+
+/**
+ * Параметры запуска сервера, полученные из аргументов командной строки.
+ * <p>Каждый параметр задаётся в виде {@code --имя=значение}:
+ * <ul>
+ * <li>{@code --port} - порт, на котором сервер принимает соединения
+ * (по-умолчанию {@code POP3_PORT});
+ * <li>{@code --mode} - режим обслуживания клиентов: {@value #MODE_THREAD}
+ * (отдельный поток на каждое соединение), {@value #MODE_VIRTUAL}
+ * (отдельный виртуальный поток на каждое соединение, требует Java 21)
+ * или {@value #MODE_NIO} (неблокирующий ввод-вывод на основе
+ * {@link java.nio.channels.Selector});
+ * <li>{@code --reactors} - количество потоков-реакторов в режиме {@value #MODE_NIO};
+ * <li>{@code --max-sessions} - максимальное количество одновременно
+ * обслуживаемых клиентов (по-умолчанию {@value #DEFAULT_MAX_SESSIONS});
+ * <li>{@code --queue} - количество соединений, ожидающих освобождения
+ * потока сессии в режимах {@value #MODE_THREAD} и {@value #MODE_VIRTUAL}
+ * (по-умолчанию {@value #DEFAULT_QUEUE_LENGTH});
+ * <li>{@code --prerender} - {@code true}, чтобы хранить письма в
+ * подготовленном для передачи виде и отправлять их без копирования
+ * в память (см. {@link MessageRenderer}, по-умолчанию {@code false});
+ * <li>{@code --cache-size} - объём общего кэша писем в мегабайтах
+ * (см. {@link LetterCache}, по-умолчанию {@code 0} - кэш отключён);
+ * <li>{@code --load-parallelism} - количество потоков, читающих письма
+ * при входе пользователей (см. {@link MailDropIndex}, по-умолчанию равно
+ * количеству процессоров; {@code 1} - письма читает только поток сессии);
+ * <li>{@code --lock-wait} - время в миллисекундах, в течение которого
+ * вход ждёт освобождения почтового ящика, открытого другой сессией
+ * (см. {@link MailDropLocks}, по-умолчанию {@code 0} - сразу отвечать
+ * {@code -ERR [IN-USE]}); в режиме {@value #MODE_NIO} ожидание заняло бы
+ * поток-реактор вместе со всеми его соединениями, поэтому в нём
+ * допускается только {@code 0};
+ * <li>{@code --lock-files} - {@code true}, чтобы дополнительно блокировать
+ * файл {@code LOCK_FILE} в директории пользователя для защиты от других
+ * процессов (по-умолчанию {@code false});
+ * <li>{@code --log-level} - минимальный уровень сообщений лога:
+ * {@code trace} (включая построчную трассировку диалога клиент-сервер),
+ * {@code info} (по-умолчанию) или {@code warn};
+ * <li>{@code --log-overflow} - поведение при переполнении буфера лога:
+ * {@code drop} (сообщение отбрасывается, по-умолчанию) или {@code block}
+ * (поток ждёт освобождения места);
+ * <li>{@code --log-console} - {@code false}, чтобы не выводить лог в
+ * терминал (по-умолчанию {@code true});
+ * <li>{@code --trace-file} - файл структурированной трассировки диалога
+ * клиент-сервер (см. {@link ProtocolTrace}, по-умолчанию трассировка отключена);
+ * <li>{@code --trace-sample} - доля трассируемых сессий в процентах,
+ * может быть дробной (по-умолчанию {@code 100});
+ * <li>{@code --trace-slow} - время обработки команды в миллисекундах,
+ * начиная с которого трассируется сессия, не попавшая в выборку
+ * (по-умолчанию {@code 0} - не учитывается);
+ * <li>{@code --admin-port} - порт на локальном интерфейсе, на котором
+ * метрики сервера отдаются по HTTP в формате Prometheus
+ * (см. {@link MetricsServer}, по-умолчанию {@code 0} - отключено).
+ * </ul>
+ * Соединения сверх этих ограничений сразу получают ответ
+ * {@code SERVER_BUSY_RESPONSE} и закрываются.
+ */
+public class ServerConfig implements POP3Defines {
+    /**
+     * Режим, при котором для каждого клиента создаётся отдельный поток.
+     */
+    public static final String MODE_THREAD = "thread";
+    /**
+     * Режим, при котором для каждого клиента создаётся отдельный
+     * виртуальный поток.
+     */
+    public static final String MODE_VIRTUAL = "virtual";
+    /**
+     * Режим, при котором все клиенты обслуживаются небольшим числом
+     * потоков-реакторов.
+     */
+    public static final String MODE_NIO = "nio";
+    /**
+     * Максимальное количество одновременно обслуживаемых клиентов по-умолчанию.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 1000;
+    /**
+     * Длина очереди ожидающих соединений по-умолчанию.
+     */
+    public static final int DEFAULT_QUEUE_LENGTH = 100;
+    /**
+     * Порт, на котором сервер принимает соединения.
+     */
+    private int port = POP3_PORT;
+    /**
+     * Режим обслуживания клиентов.
+     */
+    private String mode = MODE_THREAD;
+    /**
+     * Количество потоков-реакторов.
+     */
+    private int reactorCount = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * Максимальное количество одновременно обслуживаемых клиентов.
+     */
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    /**
+     * Длина очереди ожидающих соединений.
+     */
+    private int queueLength = DEFAULT_QUEUE_LENGTH;
+    /**
+     * Флаг, показывающий, включён ли режим подготовленных писем.
+     */
+    private boolean prerender;
+    /**
+     * Объём общего кэша писем в мегабайтах.
+     */
+    private int cacheSize;
+    /**
+     * Количество потоков, читающих письма при входе пользователей.
+     */
+    private int loadParallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Время ожидания освобождения почтового ящика в миллисекундах.
+     */
+    private int lockWait;
+    /**
+     * Флаг, показывающий, захватываются ли файловые блокировки ящиков.
+     */
+    private boolean lockFiles;
+    /**
+     * Минимальный уровень сообщений лога.
+     */
+    private int logLevel = LogThread.LEVEL_INFO;
+    /**
+     * Поведение при переполнении буфера лога.
+     */
+    private int logOverflow = LogThread.OVERFLOW_DROP;
+    /**
+     * Флаг, показывающий, выводится ли лог в терминал.
+     */
+    private boolean logConsole = true;
+    /**
+     * Файл трассировки диалога клиент-сервер.
+     */
+    private String traceFile;
+    /**
+     * Доля трассируемых сессий в процентах.
+     */
+    private double traceSample = 100;
+    /**
+     * Время обработки команды, начиная с которого трассируется сессия.
+     */
+    private int traceSlow;
+    /**
+     * Порт, на котором отдаются метрики сервера.
+     */
+    private int adminPort;
+
+    /**
+     * Разбирает аргументы командной строки.
+     *
+     * @param args аргументы командной строки, переданные при запуске
+     * @return параметры запуска сервера
+     * @throws IllegalArgumentException если аргумент не распознан или имеет неверное значение
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "port":
+                    config.port = parsePositive(name, value);
+                    break;
+                case "mode":
+                    if (!value.equals(MODE_THREAD) && !value.equals(MODE_VIRTUAL) && !value.equals(MODE_NIO))
+                        throw new IllegalArgumentException("Unknown mode: " + value);
+                    config.mode = value;
+                    break;
+                case "reactors":
+                    config.reactorCount = parsePositive(name, value);
+                    break;
+                case "max-sessions":
+                    config.maxSessions = parsePositive(name, value);
+                    break;
+                case "queue":
+                    config.queueLength = parseNonNegative(name, value);
+                    break;
+                case "prerender":
+                    config.prerender = parseBoolean(name, value);
+                    break;
+                case "cache-size":
+                    config.cacheSize = parseNonNegative(name, value);
+                    break;
+                case "load-parallelism":
+                    config.loadParallelism = parsePositive(name, value);
+                    break;
+                case "lock-wait":
+                    config.lockWait = parseNonNegative(name, value);
+                    break;
+                case "lock-files":
+                    config.lockFiles = parseBoolean(name, value);
+                    break;
+                case "log-level":
+                    switch (value) {
+                        case "trace":
+                            config.logLevel = LogThread.LEVEL_TRACE;
+                            break;
+                        case "info":
+                            config.logLevel = LogThread.LEVEL_INFO;
+                            break;
+                        case "warn":
+                            config.logLevel = LogThread.LEVEL_WARN;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown log level: " + value);
+                    }
+                    break;
+                case "log-overflow":
+                    if (value.equals("drop"))
+                        config.logOverflow = LogThread.OVERFLOW_DROP;
+                    else if (value.equals("block"))
+                        config.logOverflow = LogThread.OVERFLOW_BLOCK;
+                    else
+                        throw new IllegalArgumentException("Unknown log overflow policy: " + value);
+                    break;
+                case "log-console":
+                    config.logConsole = parseBoolean(name, value);
+                    break;
+                case "trace-file":
+                    if (value.isEmpty())
+                        throw new IllegalArgumentException("Option " + name + " expects a file name");
+                    config.traceFile = value;
+                    break;
+                case "trace-sample":
+                    try {
+                        config.traceSample = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Option " + name + " expects a number: " + value);
+                    }
+                    if (!(config.traceSample >= 0 && config.traceSample <= 100))
+                        throw new IllegalArgumentException("Option " + name + " must be between 0 and 100: " + value);
+                    break;
+                case "trace-slow":
+                    config.traceSlow = parseNonNegative(name, value);
+                    break;
+                case "admin-port":
+                    config.adminPort = parseNonNegative(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (config.lockWait > 0 && config.mode.equals(MODE_NIO))
+            throw new IllegalArgumentException("Option lock-wait is not supported in " + MODE_NIO + " mode");
+        return config;
+    }
+
+    /**
+     * Разбирает положительное целое значение параметра.
+     *
+     * @param name  имя параметра
+     * @param value значение параметра
+     * @return значение параметра
+     */
+    private static int parsePositive(String name, String value) {
+        int result = parseNonNegative(name, value);
+        if (result < 1)
+            throw new IllegalArgumentException("Option " + name + " must be positive: " + value);
+        return result;
+    }
+
+    /**
+     * Разбирает логическое значение параметра.
+     *
+     * @param name  имя параметра
+     * @param value значение параметра
+     * @return значение параметра
+     */
+    private static boolean parseBoolean(String name, String value) {
+        if (value.equals("true"))
+            return true;
+        if (value.equals("false"))
+            return false;
+        throw new IllegalArgumentException("Option " + name + " expects true or false: " + value);
+    }
+
+    /**
+     * Разбирает неотрицательное целое значение параметра.
+     *
+     * @param name  имя параметра
+     * @param value значение параметра
+     * @return значение параметра
+     */
+    private static int parseNonNegative(String name, String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " expects a number: " + value);
+        }
+        if (result < 0)
+            throw new IllegalArgumentException("Option " + name + " must not be negative: " + value);
+        return result;
+    }
+
+    /**
+     * Возвращает порт, на котором сервер принимает соединения.
+     *
+     * @return номер порта
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Возвращает режим обслуживания клиентов.
+     *
+     * @return {@link #MODE_THREAD}, {@link #MODE_VIRTUAL} или {@link #MODE_NIO}
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Возвращает количество потоков-реакторов.
+     *
+     * @return количество потоков-реакторов
+     */
+    public int getReactorCount() {
+        return reactorCount;
+    }
+
+    /**
+     * Возвращает максимальное количество одновременно обслуживаемых клиентов.
+     *
+     * @return максимальное количество сессий
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Возвращает длину очереди соединений, ожидающих освобождения потока сессии.
+     *
+     * @return длина очереди
+     */
+    public int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * Проверяет, включён ли режим подготовленных писем.
+     *
+     * @return {@code true}, если письма отправляются из подготовленных файлов
+     */
+    public boolean isPrerender() {
+        return prerender;
+    }
+
+    /**
+     * Возвращает объём общего кэша писем.
+     *
+     * @return объём кэша в байтах; {@code 0}, если кэш отключён
+     */
+    public long getCacheSize() {
+        return cacheSize * 1024L * 1024L;
+    }
+
+    /**
+     * Возвращает количество потоков, читающих письма при входе пользователей.
+     *
+     * @return количество потоков
+     */
+    public int getLoadParallelism() {
+        return loadParallelism;
+    }
+
+    /**
+     * Возвращает время ожидания освобождения почтового ящика, открытого
+     * другой сессией.
+     *
+     * @return время в миллисекундах; {@code 0} - немедленный отказ
+     */
+    public int getLockWait() {
+        return lockWait;
+    }
+
+    /**
+     * Проверяет, захватываются ли файловые блокировки почтовых ящиков.
+     *
+     * @return {@code true}, если блокируется файл в директории пользователя
+     */
+    public boolean isLockFiles() {
+        return lockFiles;
+    }
+
+    /**
+     * Возвращает минимальный уровень сообщений лога.
+     *
+     * @return {@link LogThread#LEVEL_TRACE}, {@link LogThread#LEVEL_INFO} или {@link LogThread#LEVEL_WARN}
+     */
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Возвращает поведение при переполнении буфера лога.
+     *
+     * @return {@link LogThread#OVERFLOW_DROP} или {@link LogThread#OVERFLOW_BLOCK}
+     */
+    public int getLogOverflow() {
+        return logOverflow;
+    }
+
+    /**
+     * Проверяет, выводится ли лог в терминал.
+     *
+     * @return {@code true}, если лог выводится в терминал
+     */
+    public boolean isLogConsole() {
+        return logConsole;
+    }
+
+    /**
+     * Возвращает файл трассировки диалога клиент-сервер.
+     *
+     * @return имя файла или {@code null}, если трассировка отключена
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * Возвращает долю трассируемых сессий.
+     *
+     * @return доля сессий в процентах
+     */
+    public double getTraceSample() {
+        return traceSample;
+    }
+
+    /**
+     * Возвращает время обработки команды, начиная с которого трассируется
+     * сессия, не попавшая в выборку.
+     *
+     * @return время в миллисекундах; {@code 0}, если не учитывается
+     */
+    public int getTraceSlow() {
+        return traceSlow;
+    }
+
+    /**
+     * Возвращает порт, на котором отдаются метрики сервера.
+     *
+     * @return номер порта; {@code 0}, если метрики не отдаются
+     */
+    public int getAdminPort() {
+        return adminPort;
+    }
+}
@@ -0,0 +1,84 @@
+package com.company;
+
+/**
+ * Гистограммы времени выполнения команд POP3 и этапов их обработки,
+ * общие для всех сессий.
+ * <p>Для каждой команды ведётся отдельная гистограмма; команды, не
+ * поддерживаемые сервером, учитываются вместе. Этапы:
+ * <ul>
+ * <li>{@link #LOGIN} - проверка пароля и открытие почтового ящика;
+ * <li>{@link #LOCK_MAILDROP} - открытие почтового ящика и составление
+ * списка писем;
+ * <li>{@link #ASSEMBLY} - сборка письма из файлов;
+ * <li>{@link #SOCKET_WRITE} - передача ответов в сокет клиента.
+ * </ul>
+ * Метрики отдаются в текстовом формате Prometheus через {@link MetricsServer}.
+ * @see LatencyHistogram
+ */
+public final class ServerMetrics {
+    /**
+     * Время входа пользователя.
+     */
+    public static final LatencyHistogram LOGIN = new LatencyHistogram();
+    /**
+     * Время открытия почтового ящика.
+     */
+    public static final LatencyHistogram LOCK_MAILDROP = new LatencyHistogram();
+    /**
+     * Время сборки письма.
+     */
+    public static final LatencyHistogram ASSEMBLY = new LatencyHistogram();
+    /**
+     * Время передачи ответов в сокет.
+     */
+    public static final LatencyHistogram SOCKET_WRITE = new LatencyHistogram();
+    /**
+     * Гистограммы команд в порядке номеров команд {@link CommandParser}.
+     */
+    private static final LatencyHistogram[] COMMAND_HISTOGRAMS = new LatencyHistogram[CommandParser.COMMAND_COUNT];
+    /**
+     * Гистограмма неподдерживаемых команд.
+     */
+    private static final LatencyHistogram OTHER = new LatencyHistogram();
+
+    static {
+        for (int i = 0; i < COMMAND_HISTOGRAMS.length; i++)
+            COMMAND_HISTOGRAMS[i] = new LatencyHistogram();
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Возвращает гистограмму команды клиента.
+     *
+     * @param command номер команды {@link CommandParser} или
+     *                {@link CommandParser#UNKNOWN}
+     * @return гистограмма команды
+     */
+    static LatencyHistogram command(int command) {
+        return command != CommandParser.UNKNOWN ? COMMAND_HISTOGRAMS[command] : OTHER;
+    }
+
+    /**
+     * Формирует все метрики в текстовом формате Prometheus.
+     *
+     * @return текст метрик
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder(64 * 1024);
+        sb.append("# HELP pop3_command_duration_seconds Time to process a POP3 command.\n");
+        sb.append("# TYPE pop3_command_duration_seconds histogram\n");
+        for (int i = 0; i < COMMAND_HISTOGRAMS.length; i++)
+            COMMAND_HISTOGRAMS[i].writePrometheus(sb, "pop3_command_duration_seconds",
+                    "command=\"" + CommandParser.name(i) + "\"");
+        OTHER.writePrometheus(sb, "pop3_command_duration_seconds", "command=\"OTHER\"");
+        sb.append("# HELP pop3_phase_duration_seconds Time spent in a phase of command processing.\n");
+        sb.append("# TYPE pop3_phase_duration_seconds histogram\n");
+        LOGIN.writePrometheus(sb, "pop3_phase_duration_seconds", "phase=\"login\"");
+        LOCK_MAILDROP.writePrometheus(sb, "pop3_phase_duration_seconds", "phase=\"lock_maildrop\"");
+        ASSEMBLY.writePrometheus(sb, "pop3_phase_duration_seconds", "phase=\"assembly\"");
+        SOCKET_WRITE.writePrometheus(sb, "pop3_phase_duration_seconds", "phase=\"socket_write\"");
+        return sb.toString();
+    }
+}
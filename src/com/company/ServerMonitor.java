@@ -0,0 +1,188 @@
+package com.company;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Состояние сервера, доступное через JMX (например, в {@code jconsole}
+ * или {@code VisualVM}) под именем {@value #OBJECT_NAME}.
+ * <p>Сведения о сессиях собираются обходом {@link SessionRegistry} при
+ * каждом обращении к атрибуту, поэтому наблюдение не замедляет работу
+ * сессий, а значения отражают состояние на момент обращения.
+ * @see ServerMonitorMBean
+ */
+public class ServerMonitor implements ServerMonitorMBean, POP3Defines {
+    /**
+     * Имя, под которым объект регистрируется в JMX.
+     */
+    public static final String OBJECT_NAME = "com.company:type=ServerMonitor";
+    /**
+     * Реестр активных соединений.
+     */
+    private final SessionRegistry registry;
+    /**
+     * Поток логирования.
+     */
+    private final LogThread logThread;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param registry  реестр активных соединений
+     * @param logThread поток логирования
+     */
+    public ServerMonitor(SessionRegistry registry, LogThread logThread) {
+        this.registry = registry;
+        this.logThread = logThread;
+    }
+
+    /**
+     * Регистрирует объект в платформенном сервере JMX.
+     *
+     * @throws JMException если регистрация не удалась
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return registry.size();
+    }
+
+    @Override
+    public int getAuthorizationSessions() {
+        return countSessions(POP3_STATE_AUTHORIZATION);
+    }
+
+    @Override
+    public int getTransactionSessions() {
+        return countSessions(POP3_STATE_TRANSACTION);
+    }
+
+    @Override
+    public int getUpdateSessions() {
+        return countSessions(POP3_STATE_UPDATE);
+    }
+
+    /**
+     * Подсчитывает сессии в заданном состоянии.
+     *
+     * @param state состояние сессии
+     * @return количество сессий
+     */
+    private int countSessions(int state) {
+        int count = 0;
+        for (ClientConnection connection : registry.connections()) {
+            POP3Session session = connection.getSession();
+            if (session != null && session.getState() == state)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return registry.getAcceptedCount();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return registry.getAcceptRate();
+    }
+
+    @Override
+    public boolean isAcceptingPaused() {
+        return registry.isAcceptPaused();
+    }
+
+    @Override
+    public int getLogQueueDepth() {
+        return logThread.getQueueDepth();
+    }
+
+    @Override
+    public long getLogDroppedCount() {
+        return logThread.getDroppedCount();
+    }
+
+    @Override
+    public long getLettersHeld() {
+        long letters = 0;
+        for (ClientConnection connection : registry.connections()) {
+            POP3Session session = connection.getSession();
+            if (session != null)
+                letters += session.getHeldLetters();
+        }
+        return letters;
+    }
+
+    @Override
+    public long getBytesHeld() {
+        long bytes = 0;
+        for (ClientConnection connection : registry.connections()) {
+            POP3Session session = connection.getSession();
+            if (session != null)
+                bytes += session.getHeldBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return registry.getBytesSent();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        LetterCache cache = LetterCache.shared();
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        LetterCache cache = LetterCache.shared();
+        return cache != null ? cache.getMissCount() : 0;
+    }
+
+    @Override
+    public long getCacheBytes() {
+        LetterCache cache = LetterCache.shared();
+        return cache != null ? cache.getWeight() : 0;
+    }
+
+    @Override
+    public long getLockedMaildrops() {
+        return MailDropLocks.shared().getHeldCount();
+    }
+
+    @Override
+    public long getMaildropLockRefusals() {
+        return MailDropLocks.shared().getRefusedCount();
+    }
+
+    @Override
+    public boolean endSession(long id) {
+        ClientConnection connection = registry.get(id);
+        if (connection == null)
+            return false;
+        logThread.log("Ending session " + id + " by operator request");
+        connection.endSession();
+        return true;
+    }
+
+    @Override
+    public void pauseAccepting() {
+        logThread.log("Accepting paused by operator request");
+        registry.setAcceptPaused(true);
+    }
+
+    @Override
+    public void resumeAccepting() {
+        logThread.log("Accepting resumed by operator request");
+        registry.setAcceptPaused(false);
+    }
+}
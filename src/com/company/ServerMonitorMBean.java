@@ -0,0 +1,113 @@
+package com.company;
+
+/**
+ * Интерфейс управления сервером через JMX. Атрибуты отражают текущее
+ * состояние сервера и вычисляются при каждом обращении.
+ * @see ServerMonitor
+ */
+public interface ServerMonitorMBean {
+    /**
+     * @return количество активных соединений
+     */
+    int getConnectionCount();
+
+    /**
+     * @return количество сессий в состоянии {@code POP3_STATE_AUTHORIZATION}
+     */
+    int getAuthorizationSessions();
+
+    /**
+     * @return количество сессий в состоянии {@code POP3_STATE_TRANSACTION}
+     */
+    int getTransactionSessions();
+
+    /**
+     * @return количество сессий в состоянии {@code POP3_STATE_UPDATE}
+     */
+    int getUpdateSessions();
+
+    /**
+     * @return количество соединений, принятых с момента запуска сервера
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return среднее количество соединений, принятых за секунду в течение
+     * последней минуты
+     */
+    double getAcceptRate();
+
+    /**
+     * @return {@code true}, если приём соединений приостановлен
+     */
+    boolean isAcceptingPaused();
+
+    /**
+     * @return количество сообщений, ожидающих записи в лог
+     */
+    int getLogQueueDepth();
+
+    /**
+     * @return количество сообщений лога, отброшенных из-за переполнения буфера
+     */
+    long getLogDroppedCount();
+
+    /**
+     * @return количество писем, открытых активными сессиями
+     */
+    long getLettersHeld();
+
+    /**
+     * @return суммарный размер писем, открытых активными сессиями, в байтах
+     */
+    long getBytesHeld();
+
+    /**
+     * @return количество байтов, отправленных клиентам с момента запуска сервера
+     */
+    long getBytesSent();
+
+    /**
+     * @return количество писем, найденных в общем кэше писем
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return количество писем, не найденных в общем кэше писем
+     */
+    long getCacheMissCount();
+
+    /**
+     * @return суммарный размер писем в общем кэше в байтах
+     */
+    long getCacheBytes();
+
+    /**
+     * @return количество почтовых ящиков, открытых сессиями
+     */
+    long getLockedMaildrops();
+
+    /**
+     * @return количество отказов открыть почтовый ящик, уже открытый
+     * другой сессией
+     */
+    long getMaildropLockRefusals();
+
+    /**
+     * Завершает сессию с заданным идентификатором.
+     *
+     * @param id идентификатор соединения
+     * @return {@code false}, если соединение не найдено
+     */
+    boolean endSession(long id);
+
+    /**
+     * Приостанавливает приём новых соединений. Активные сессии продолжают работу.
+     */
+    void pauseAccepting();
+
+    /**
+     * Возобновляет приём новых соединений.
+     */
+    void resumeAccepting();
+}
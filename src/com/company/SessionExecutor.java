@@ -0,0 +1,108 @@
+package com.company;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ограниченный пул потоков для выполнения сессий клиентов.
+ * <p>Одновременно выполняется не более {@code maxSessions} сессий.
+ * Соединения сверх этого числа ожидают в очереди длиной
+ * {@code queueLength}, а если и очередь заполнена, то соединение
+ * отклоняется. Потоки пула завершаются после минуты простоя.
+ * @see ServerConfig
+ */
+public class SessionExecutor {
+    /**
+     * Время простоя, после которого поток пула завершается, в секундах.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    /**
+     * Пул потоков сессий.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param maxSessions   максимальное количество одновременно выполняемых сессий
+     * @param queueLength   количество соединений, ожидающих освобождения потока
+     * @param threadFactory фабрика потоков сессий либо {@code null}, чтобы
+     *                      использовать обычные потоки
+     */
+    public SessionExecutor(int maxSessions, int queueLength, ThreadFactory threadFactory) {
+        BlockingQueue<Runnable> queue = queueLength > 0
+                ? new ArrayBlockingQueue<>(queueLength)
+                : new SynchronousQueue<>();
+        if (threadFactory == null)
+            threadFactory = new SessionThreadFactory();
+        pool = new ThreadPoolExecutor(maxSessions, maxSessions, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Передаёт сессию на выполнение.
+     *
+     * @param session задача, обслуживающая клиента
+     * @return {@code true}, если сессия принята, и {@code false}, если пул
+     * и очередь заполнены
+     */
+    public boolean submit(Runnable session) {
+        try {
+            pool.execute(session);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Возвращает количество выполняемых сессий.
+     *
+     * @return количество занятых потоков пула
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * Возвращает количество соединений, ожидающих в очереди.
+     *
+     * @return длина очереди
+     */
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Прекращает приём новых сессий и ожидает завершения выполняемых.
+     *
+     * @param timeoutMillis максимальное время ожидания в миллисекундах
+     */
+    public void shutdown(long timeoutMillis) {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Фабрика обычных потоков сессий с именами вида {@code session-N}.
+     */
+    private static class SessionThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "session-" + counter.incrementAndGet());
+        }
+    }
+}
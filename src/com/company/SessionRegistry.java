@@ -0,0 +1,207 @@
+package com.company;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Реестр активных соединений.
+ * <p>Соединение добавляется в реестр при начале сессии и само удаляет
+ * себя из него при её завершении, поэтому реестр не растёт при
+ * постоянном подключении и отключении клиентов. Реестр не использует
+ * блокировок и может одновременно изменяться потоком, принимающим
+ * соединения, потоками сессий и обработчиком завершения работы сервера.
+ * <p>Реестр также учитывает принятые соединения и байты, отправленные
+ * завершёнными сессиями, и позволяет приостановить приём новых
+ * соединений (см. {@link ServerMonitor}).
+ */
+public class SessionRegistry {
+    /**
+     * Активные соединения, упорядоченные по идентификатору.
+     */
+    private final ConcurrentSkipListMap<Long, ClientConnection> connections = new ConcurrentSkipListMap<>();
+    /**
+     * Количество активных соединений. Хранится отдельно, так как
+     * {@link ConcurrentSkipListMap#size()} обходит всю коллекцию.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+    /**
+     * Источник идентификаторов соединений.
+     */
+    private final AtomicLong nextId = new AtomicLong();
+    /**
+     * Частота приёма соединений.
+     */
+    private final RateMeter acceptRate = new RateMeter();
+    /**
+     * Количество принятых соединений.
+     */
+    private final LongAdder accepted = new LongAdder();
+    /**
+     * Количество байтов, отправленных завершёнными сессиями.
+     */
+    private final LongAdder closedBytesSent = new LongAdder();
+    /**
+     * Блокировка, под которой потоки приёма соединений ждут возобновления приёма.
+     */
+    private final Object acceptLock = new Object();
+    /**
+     * Флаг, показывающий, что приём соединений приостановлен.
+     */
+    private volatile boolean acceptPaused;
+
+    /**
+     * Выдаёт идентификатор для нового соединения.
+     *
+     * @return уникальный идентификатор соединения
+     */
+    public long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * Добавляет соединение в реестр.
+     *
+     * @param connection соединение с клиентом
+     */
+    public void add(ClientConnection connection) {
+        if (connections.put(connection.getId(), connection) == null)
+            count.incrementAndGet();
+    }
+
+    /**
+     * Удаляет соединение из реестра. Повторное удаление ни на что не влияет.
+     *
+     * @param connection соединение с клиентом
+     */
+    public void remove(ClientConnection connection) {
+        if (connections.remove(connection.getId(), connection)) {
+            count.decrementAndGet();
+            POP3Session session = connection.getSession();
+            if (session != null)
+                closedBytesSent.add(session.getBytesSent());
+        }
+    }
+
+    /**
+     * Возвращает соединение с заданным идентификатором.
+     *
+     * @param id идентификатор соединения
+     * @return соединение либо {@code null}, если оно уже завершено
+     */
+    public ClientConnection get(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * Возвращает количество активных соединений.
+     *
+     * @return количество активных соединений
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Возвращает активные соединения. Коллекция отражает изменения
+     * реестра и может обходиться одновременно с ними.
+     *
+     * @return активные соединения
+     */
+    public Collection<ClientConnection> connections() {
+        return connections.values();
+    }
+
+    /**
+     * Завершает все активные сессии.
+     */
+    public void endAll() {
+        for (ClientConnection connection : connections.values())
+            connection.endSession();
+    }
+
+    /**
+     * Учитывает принятое соединение, в том числе отклонённое.
+     */
+    public void recordAccept() {
+        accepted.increment();
+        acceptRate.mark();
+    }
+
+    /**
+     * Возвращает количество принятых соединений.
+     *
+     * @return количество соединений с момента запуска сервера
+     */
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * Возвращает среднее количество соединений, принятых за секунду в
+     * течение последней минуты.
+     *
+     * @return частота приёма соединений
+     */
+    public double getAcceptRate() {
+        return acceptRate.rate();
+    }
+
+    /**
+     * Возвращает количество байтов, отправленных всеми сессиями, включая
+     * завершённые.
+     *
+     * @return количество байтов
+     */
+    public long getBytesSent() {
+        long total = closedBytesSent.sum();
+        for (ClientConnection connection : connections.values()) {
+            POP3Session session = connection.getSession();
+            if (session != null)
+                total += session.getBytesSent();
+        }
+        return total;
+    }
+
+    /**
+     * Приостанавливает или возобновляет приём новых соединений. Клиенты,
+     * подключающиеся во время паузы, ожидают в очереди сокета сервера;
+     * соединение, принятое в момент паузы, ожидает возобновления приёма
+     * без ответа.
+     *
+     * @param paused {@code true}, чтобы приостановить приём
+     */
+    public void setAcceptPaused(boolean paused) {
+        synchronized (acceptLock) {
+            acceptPaused = paused;
+            acceptLock.notifyAll();
+        }
+    }
+
+    /**
+     * Проверяет, приостановлен ли приём соединений.
+     *
+     * @return {@code true}, если приём приостановлен
+     */
+    public boolean isAcceptPaused() {
+        return acceptPaused;
+    }
+
+    /**
+     * Ожидает, пока приём соединений приостановлен. Вызывается потоком,
+     * принимающим соединения, после приёма очередного соединения и до
+     * начала его обслуживания.
+     *
+     * @throws InterruptedException если ожидание прервано
+     */
+    public void awaitAccepting() throws InterruptedException {
+        if (!acceptPaused)
+            return;
+        synchronized (acceptLock) {
+            while (acceptPaused)
+                acceptLock.wait();
+        }
+    }
+}
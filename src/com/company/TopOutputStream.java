@@ -0,0 +1,111 @@
+package com.company;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток, пропускающий заголовок письма и заданное количество строк его
+ * тела (ответ на команду {@code TOP}, RFC 1939). Остальные байты не
+ * записываются, а попытка записать их приводит к исключению
+ * {@link LimitReachedException}, которое прерывает сборку письма.
+ * <p>Граница заголовка либо известна заранее, либо определяется по первой
+ * пустой строке.
+ */
+public class TopOutputStream extends FilterOutputStream {
+    /**
+     * Количество байтов заголовка, которые ещё нужно пропустить. Равно
+     * {@code -1}, если граница заголовка определяется по пустой строке.
+     */
+    private long headerRemaining;
+    /**
+     * Количество строк тела, которые ещё нужно пропустить.
+     */
+    private long linesRemaining;
+    /**
+     * Флаг, показывающий, что заголовок передан.
+     */
+    private boolean inBody;
+    /**
+     * Флаг, показывающий, что следующий байт начинает новую строку.
+     */
+    private boolean atLineStart = true;
+
+    /**
+     * Конструктор класса.
+     *
+     * @param out          выходной поток
+     * @param headerLength длина заголовка вместе с пустой строкой или
+     *                     {@code -1}, если она неизвестна
+     * @param lines        количество передаваемых строк тела письма
+     */
+    public TopOutputStream(OutputStream out, long headerLength, long lines) {
+        super(out);
+        headerRemaining = headerLength;
+        linesRemaining = lines;
+    }
+
+    /**
+     * Проверяет, переданы ли заголовок и все запрошенные строки.
+     *
+     * @return {@code true}, если дальнейшие байты не нужны
+     */
+    public boolean isComplete() {
+        return inBody && linesRemaining == 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int from = off;
+        int i = off;
+        while (i < end) {
+            if (isComplete()) {
+                out.write(b, from, i - from);
+                throw new LimitReachedException();
+            }
+            if (!inBody && headerRemaining >= 0) {
+                int n = (int) Math.min(headerRemaining, end - i);
+                i += n;
+                headerRemaining -= n;
+                inBody = headerRemaining == 0;
+                continue;
+            }
+            byte c = b[i++];
+            if (!inBody) {
+                if (c == '\n' && atLineStart)
+                    inBody = true;
+                else if (c != '\r')
+                    atLineStart = c == '\n';
+            } else if (c == '\n')
+                linesRemaining--;
+        }
+        out.write(b, from, i - from);
+    }
+
+    /**
+     * Исключение, сообщающее, что все запрошенные строки переданы.
+     * Используется для прерывания записи, поэтому стек вызовов не
+     * заполняется.
+     */
+    public static class LimitReachedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Конструктор класса.
+         */
+        public LimitReachedException() {
+            super("TOP limit reached");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
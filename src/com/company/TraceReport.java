@@ -0,0 +1,165 @@
+package com.company;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Утилита, сводящая файлы трассировки {@link ProtocolTrace} в таблицу
+ * пропускной способности и задержек по командам.
+ * <p>Запуск: {@code java com.company.TraceReport trace.tsv [trace2.tsv ...]}.
+ * Для каждой команды выводятся количество выполнений и ошибок, количество
+ * команд и мегабайтов ответов в секунду (за время от первой до последней
+ * записи всех файлов), а также среднее время обработки и его перцентили
+ * в миллисекундах.
+ */
+public class TraceReport {
+    /**
+     * Статистика по командам, упорядоченная по имени команды.
+     */
+    private final Map<String, CommandStats> commands = new TreeMap<>();
+    /**
+     * Время первой записи.
+     */
+    private long firstTime = Long.MAX_VALUE;
+    /**
+     * Время последней записи.
+     */
+    private long lastTime = Long.MIN_VALUE;
+    /**
+     * Количество строк, которые не удалось разобрать.
+     */
+    private long malformed;
+
+    /**
+     * Точка входа утилиты.
+     *
+     * @param args имена файлов трассировки
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: java com.company.TraceReport <trace file>...");
+            System.exit(2);
+        }
+        TraceReport report = new TraceReport();
+        for (String name : args) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(name), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    report.add(line);
+            } catch (IOException e) {
+                System.err.println("Cannot read " + name + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        report.print();
+    }
+
+    /**
+     * Учитывает строку файла трассировки.
+     *
+     * @param line строка файла
+     */
+    void add(String line) {
+        if (line.isEmpty() || line.charAt(0) == '#')
+            return;
+        String[] fields = line.split("\t");
+        if (fields.length != 7) {
+            malformed++;
+            return;
+        }
+        long time;
+        long bytes;
+        long micros;
+        try {
+            time = Long.parseLong(fields[0]);
+            bytes = Long.parseLong(fields[5]);
+            micros = Long.parseLong(fields[6]);
+        } catch (NumberFormatException e) {
+            malformed++;
+            return;
+        }
+        firstTime = Math.min(firstTime, time);
+        lastTime = Math.max(lastTime, time);
+        commands.computeIfAbsent(fields[2], k -> new CommandStats())
+                .add(!fields[4].equals("+OK"), bytes, micros);
+    }
+
+    /**
+     * Выводит сводную таблицу.
+     */
+    void print() {
+        double seconds = lastTime > firstTime ? (lastTime - firstTime) / 1000.0 : 0;
+        System.out.printf("%-6s %9s %7s %10s %9s %9s %9s %9s %9s %9s%n", "CMD", "COUNT", "ERRORS",
+                "CMD/S", "MB/S", "MEAN_MS", "P50_MS", "P95_MS", "P99_MS", "MAX_MS");
+        CommandStats total = new CommandStats();
+        for (Map.Entry<String, CommandStats> e : commands.entrySet()) {
+            printRow(e.getKey(), e.getValue(), seconds);
+            total.merge(e.getValue());
+        }
+        printRow("TOTAL", total, seconds);
+        if (malformed > 0)
+            System.out.println(malformed + " malformed lines skipped");
+    }
+
+    /**
+     * Выводит строку таблицы.
+     */
+    private static void printRow(String name, CommandStats stats, double seconds) {
+        long[] sorted = Arrays.copyOf(stats.micros, stats.count);
+        Arrays.sort(sorted);
+        System.out.printf("%-6s %9d %7d %10s %9s %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, stats.count, stats.errors,
+                seconds > 0 ? String.format("%.1f", stats.count / seconds) : "-",
+                seconds > 0 ? String.format("%.3f", stats.bytes / seconds / (1024 * 1024)) : "-",
+                stats.count > 0 ? stats.totalMicros / 1000.0 / stats.count : 0.0,
+                percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                sorted.length > 0 ? sorted[sorted.length - 1] / 1000.0 : 0.0);
+    }
+
+    /**
+     * Возвращает перцентиль времени обработки в миллисекундах.
+     *
+     * @param sorted упорядоченные времена обработки в микросекундах
+     * @param p      перцентиль от 0 до 100
+     * @return значение перцентиля
+     */
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    /**
+     * Статистика одной команды.
+     */
+    private static class CommandStats {
+        int count;
+        long errors;
+        long bytes;
+        long totalMicros;
+        long[] micros = new long[16];
+
+        void add(boolean error, long responseBytes, long duration) {
+            if (count == micros.length)
+                micros = Arrays.copyOf(micros, count * 2);
+            micros[count++] = duration;
+            if (error)
+                errors++;
+            bytes += responseBytes;
+            totalMicros += duration;
+        }
+
+        void merge(CommandStats other) {
+            for (int i = 0; i < other.count; i++)
+                add(false, 0, other.micros[i]);
+            errors += other.errors;
+            bytes += other.bytes;
+        }
+    }
+}
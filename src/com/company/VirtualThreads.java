@@ -0,0 +1,37 @@
+package com.company;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Создаёт виртуальные потоки для сессий клиентов.
+ * <p>Проект собирается для Java 8, поэтому API виртуальных потоков
+ * (Java 21 и выше) вызывается через отражение. Если среда выполнения
+ * не поддерживает виртуальные потоки, то фабрика не будет создана.
+ * @see ServerConfig#MODE_VIRTUAL
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    /**
+     * Создаёт фабрику виртуальных потоков с заданным префиксом имени.
+     *
+     * @param prefix префикс имени, к которому добавляется порядковый номер потока
+     * @return фабрика виртуальных потоков
+     * @throws IllegalStateException если среда выполнения не поддерживает виртуальные потоки
+     */
+    static ThreadFactory newFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+}
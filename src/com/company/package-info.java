@@ -12,14 +12,15 @@
  * директории {@code USERS_DIRECTORY} на сервере папку, имя которой
  * соотвтествует имени пользователя. В каждой такой папке находится
  * файл с именем {@code PASS_FILE}, в котором хранится пароль
- * пользователя (значения констант находятся в {@link com.company.POP3Defines}
+ * пользователя или его хэш (см. {@link com.company.CredentialStore}; значения констант находятся в {@link com.company.POP3Defines}
  * и могут быть изменены разработчиком). Также директории пользователя находятся
  * папки, хранящие файлы писем. Каждая такая папка хранит все файлы, необходимые для
  * конструирования письма согласно спецификации MIME. При авторизации сервер
  * проверяет, есть ли в его директории {@code USERS_DIRECTORY} папка,
  * имя которой совпадает с именем пользователя, переданным клиентом,
  * и сравнивает пароль из файла {@code PASS_FILE} с полученным от клиента
- * паролем.
+ * паролем. Файлы паролей читаются при запуске сервера и перечитываются
+ * при их изменении.
  *
  * <p>В рамках транзакции сервер может передавать пользователю информацию
  * о его письмах или содержимое конкретного письма. Кроме того пользователь